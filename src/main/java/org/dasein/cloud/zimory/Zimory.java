@@ -18,13 +18,21 @@
 
 package org.dasein.cloud.zimory;
 
+import org.apache.http.client.HttpClient;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.zimory.compute.ZimoryCompute;
+import org.dasein.cloud.zimory.compute.image.Appliances;
 import org.dasein.cloud.zimory.network.ZimoryNetwork;
+import org.dasein.cloud.zimory.util.ChangeFeed;
+import org.dasein.cloud.zimory.util.PollSchedule;
+import org.dasein.cloud.zimory.util.SingleFlight;
+import org.dasein.cloud.zimory.util.Teardown;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -32,8 +40,19 @@ import org.w3c.dom.NodeList;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.net.URI;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Support for the Zimory cloud. This implementation owes a lot to the work done by the jclouds team
@@ -100,9 +119,86 @@ public class Zimory extends AbstractCloud {
         return str.toString();
     }
 
+    private final HashMap<String,HttpClient> httpClients      = new HashMap<String, HttpClient>();
+    private final HashMap<String,HttpClient> streamingClients = new HashMap<String, HttpClient>();
+    private ExecutorService                  backgroundExecutor;
+    private ScheduledFuture<?>               streamingReaper;
+
     public Zimory() { }
 
+    /**
+     * Provides the deployments, volumes, and networks added, removed, or changed in state in the current account and
+     * region since the specified cursor. All callers in this JVM share one poller per account and region.
+     * @param cursor the cursor from the previous call or <code>null</code> to receive the current state
+     * @return the changes and the cursor from which to continue
+     * @throws CloudException an error occurred polling Zimory
+     * @throws InternalException an error occurred within Dasein Cloud polling Zimory
+     * @see ChangeFeed
+     */
+    public @Nonnull ChangeFeed.Changes changesSince(@Nullable String cursor) throws CloudException, InternalException {
+        return ChangeFeed.changesSince(this, cursor);
+    }
+
+    @Override
+    public void close() {
+        ExecutorService executor;
+
+        synchronized( this ) {
+            executor = backgroundExecutor;
+            backgroundExecutor = null;
+        }
+        if( executor != null ) {
+            executor.shutdownNow();
+        }
+        closeHttpClients();
+        super.close();
+    }
+
+    private void closeHttpClients() {
+        synchronized( httpClients ) {
+            for( HttpClient client : httpClients.values() ) {
+                try { client.getConnectionManager().shutdown(); }
+                catch( Throwable ignore ) { }
+            }
+            httpClients.clear();
+        }
+        synchronized( streamingClients ) {
+            if( streamingReaper != null ) {
+                streamingReaper.cancel(false);
+                streamingReaper = null;
+            }
+            for( HttpClient client : streamingClients.values() ) {
+                try { client.getConnectionManager().shutdown(); }
+                catch( Throwable ignore ) { }
+            }
+            streamingClients.clear();
+        }
+    }
+
+    @Override
+    public void connect(@Nonnull ProviderContext context, @Nullable CloudProvider computeProvider) {
+        closeHttpClients();
+        super.connect(context, computeProvider);
+        warmUp();
+    }
+
+    /**
+     * Identifies the owner of the current account. Concurrent callers, including a background warm-up, share a
+     * single lookup.
+     * @return the account owner
+     * @throws CloudException an error occurred communicating with Zimory
+     * @throws InternalException an error occurred within Dasein Cloud looking up the owner
+     */
     public @Nonnull AccountOwner getAccountOwner() throws CloudException, InternalException {
+        return SingleFlight.get(this, "accountOwner", getWarmUpTTL(), new Callable<AccountOwner>() {
+            @Override
+            public AccountOwner call() throws CloudException, InternalException {
+                return loadAccountOwner();
+            }
+        });
+    }
+
+    private @Nonnull AccountOwner loadAccountOwner() throws CloudException, InternalException {
         ProviderContext ctx = getContext();
 
         if( ctx == null ) {
@@ -149,6 +245,56 @@ public class Zimory extends AbstractCloud {
         return owner;
     }
 
+    /**
+     * Provides a small pool of daemon threads shared by the background work of this provider, such as the warm-up
+     * prefetches and the concurrent prerequisite lookups of a launch. The pool is shut down when the provider is
+     * closed.
+     * @return the shared background executor
+     */
+    public synchronized @Nonnull ExecutorService getBackgroundExecutor() {
+        if( backgroundExecutor == null ) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(4, 4, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r);
+
+                    t.setName("Zimory Background");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            pool.allowCoreThreadTimeOut(true);
+            backgroundExecutor = pool;
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * Identifies the scope under which state shared across provider instances is stored, following the same
+     * rules Dasein Cloud applies to {@link org.dasein.cloud.util.Cache} instances.
+     * @param level the level at which the shared state applies
+     * @return a key uniquely identifying the endpoint, account, and region as appropriate for the level
+     * @throws NoContextException no context has been established for this provider
+     */
+    public @Nonnull String getCacheKey(@Nonnull CacheLevel level) throws NoContextException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        StringBuilder key = new StringBuilder();
+
+        key.append(ctx.getEndpoint());
+        if( level.equals(CacheLevel.CLOUD_ACCOUNT) || level.equals(CacheLevel.REGION_ACCOUNT) ) {
+            key.append("/").append(ctx.getAccountNumber());
+        }
+        if( level.equals(CacheLevel.REGION) || level.equals(CacheLevel.REGION_ACCOUNT) ) {
+            key.append("/").append(ctx.getRegionId());
+        }
+        return key.toString();
+    }
+
     @Override
     public @Nonnull String getCloudName() {
         ProviderContext ctx = getContext();
@@ -162,6 +308,29 @@ public class Zimory extends AbstractCloud {
         return new ZimoryCompute(this);
     }
 
+    /**
+     * Reads a numeric tuning value from the custom properties of the current context.
+     * @param name the name of the custom property
+     * @param defaultValue the value to use when the property is missing or not a valid number
+     * @return the configured value or the default
+     */
+    public long getCustomLong(@Nonnull String name, long defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value == null || value.trim().length() < 1 ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
     @Override
     public @Nonnull ZimoryDataCenters getDataCenterServices() {
         return new ZimoryDataCenters(this);
@@ -169,7 +338,7 @@ public class Zimory extends AbstractCloud {
 
     public @Nonnull String getDelegateRoleId() throws CloudException, InternalException {
         ZimoryMethod method = new ZimoryMethod(this);
-        Document xml = method.getObject("delegateRoles");
+        Document xml = method.getConstant("delegateRoles");
 
         if( xml == null ) {
             logger.error("Unable to communicate with the Zimory delegate roles endpoint");
@@ -206,6 +375,75 @@ public class Zimory extends AbstractCloud {
         return id;
     }
 
+    /**
+     * Provides the pooled HTTP client for the scheme and port of the specified URI. All calls made through this
+     * provider share the client and its keep-alive connections, up to <code>httpMaxConnections</code> at once.
+     * Connections idle for longer than <code>httpIdleTimeout</code> milliseconds are closed the next time a client
+     * is requested. The remaining connections stay open until the provider is closed or connected to a new context,
+     * so callers must {@link #close()} a provider they no longer need.
+     * @param uri a URI with the scheme and port of the target endpoint
+     * @return the shared HTTP client
+     * @throws CloudException no context has been established for this provider
+     * @throws InternalException the credentials in the context could not be loaded
+     */
+    public @Nonnull HttpClient getHttpClient(@Nonnull URI uri) throws CloudException, InternalException {
+        String key = uri.getScheme() + ":" + uri.getPort();
+        long idle = Math.max(1L, getCustomLong("httpIdleTimeout", 30000L));
+
+        synchronized( httpClients ) {
+            HttpClient client = httpClients.get(key);
+
+            if( client == null ) {
+                client = ZimoryMethod.createClient(this, uri);
+                httpClients.put(key, client);
+            }
+            else {
+                client.getConnectionManager().closeExpiredConnections();
+                client.getConnectionManager().closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Provides the pooled HTTP client through which responses are streamed for the scheme and port of the specified
+     * URI. Streamed responses stay open for as long as their readers take, so they get a pool of their own, again
+     * limited to <code>httpMaxConnections</code>, rather than holding connections that ordinary calls need. A
+     * reaper on the shared poll scheduler closes connections idle for longer than <code>httpIdleTimeout</code>
+     * until the provider is closed or connected to a new context.
+     * @param uri a URI with the scheme and port of the target endpoint
+     * @return the shared streaming HTTP client
+     * @throws CloudException no context has been established for this provider
+     * @throws InternalException the credentials in the context could not be loaded
+     */
+    public @Nonnull HttpClient getStreamingHttpClient(@Nonnull URI uri) throws CloudException, InternalException {
+        String key = uri.getScheme() + ":" + uri.getPort();
+
+        synchronized( streamingClients ) {
+            HttpClient client = streamingClients.get(key);
+
+            if( client == null ) {
+                client = ZimoryMethod.createClient(this, uri);
+                streamingClients.put(key, client);
+            }
+            if( streamingReaper == null ) {
+                final long idle = Math.max(1L, getCustomLong("httpIdleTimeout", 30000L));
+
+                streamingReaper = PollSchedule.getScheduler().scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        synchronized( streamingClients ) {
+                            for( HttpClient c : streamingClients.values() ) {
+                                c.getConnectionManager().closeExpiredConnections();
+                                c.getConnectionManager().closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+                            }
+                        }
+                    }
+                }, idle, idle, TimeUnit.MILLISECONDS);
+            }
+            return client;
+        }
+    }
+
     @Override
     public @Nonnull ZimoryNetwork getNetworkServices() {
         return new ZimoryNetwork(this);
@@ -221,7 +459,7 @@ public class Zimory extends AbstractCloud {
 
     public @Nonnull String getQualifierId(@Nonnull String locationId, String providerId) throws CloudException, InternalException {
         ZimoryMethod method = new ZimoryMethod(this);
-        Document xml = method.getObject("clouds");
+        Document xml = method.getConstant("clouds");
 
         if( xml == null ) {
             logger.error("Unable to communicate with the Zimory clouds endpoint");
@@ -256,6 +494,14 @@ public class Zimory extends AbstractCloud {
         throw new CloudException("No matching qualifier ID");
     }
 
+    /**
+     * @return how long in milliseconds values fetched during warm-up are reused, from the <code>warmUpTTL</code>
+     * custom property (0, the default, disables warm-up)
+     */
+    public @Nonnegative long getWarmUpTTL() {
+        return Math.max(0L, getCustomLong("warmUpTTL", 0L));
+    }
+
     public @Nonnegative long parseTimestamp(@Nullable String date) throws CloudException {
         //"createDate":"2012-02-25T17:34:22-06:00"
         if( date == null || date.equals("") ) {
@@ -286,8 +532,31 @@ public class Zimory extends AbstractCloud {
         }
     }
 
+    /**
+     * Removes deployments, volumes, and networks in dependency order: deployments and volumes in parallel first,
+     * then the requested networks together with the networks those resources were attached to.
+     * @param vmIds the IDs of the deployments to terminate
+     * @param volumeIds the IDs of the volumes to remove
+     * @param vlanIds the IDs of any further networks to remove
+     * @return the outcome of each removal
+     * @throws InternalException the calling thread was interrupted while waiting
+     * @see Teardown
+     */
+    public @Nonnull Teardown.Report teardown(@Nonnull Collection<String> vmIds, @Nonnull Collection<String> volumeIds, @Nonnull Collection<String> vlanIds) throws InternalException {
+        return Teardown.run(this, vmIds, volumeIds, vlanIds);
+    }
+
     @Override
     public @Nullable String testContext() {
+        String accountId = checkAccount();
+
+        if( accountId != null ) {
+            warmUp();
+        }
+        return accountId;
+    }
+
+    private @Nullable String checkAccount() {
         if( logger.isTraceEnabled() ) {
             logger.trace("ENTER - " + Zimory.class.getName() + ".testContext()");
         }
@@ -366,4 +635,59 @@ public class Zimory extends AbstractCloud {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Prefetches in the background the slow-changing data the first calls against a new provider would otherwise
+     * load inline: regions, clouds and qualifier IDs, delegate roles, the account owner, and the appliance catalog.
+     * Callers that need any of it while the warm-up is running join the in-flight fetch. Warm-up happens when a
+     * context is connected or successfully tested and only if the <code>warmUpTTL</code> custom property is set.
+     */
+    public void warmUp() {
+        if( getContext() == null || getWarmUpTTL() < 1L ) {
+            return;
+        }
+        ExecutorService executor = getBackgroundExecutor();
+        final Zimory provider = this;
+
+        executor.execute(new WarmUpTask("regions") {
+            public void warm() throws CloudException, InternalException {
+                getDataCenterServices().listRegions();
+            }
+        });
+        executor.execute(new WarmUpTask("delegate roles") {
+            public void warm() throws CloudException, InternalException {
+                new ZimoryMethod(provider).getConstant("delegateRoles");
+            }
+        });
+        executor.execute(new WarmUpTask("account owner") {
+            public void warm() throws CloudException, InternalException {
+                getAccountOwner();
+            }
+        });
+        executor.execute(new WarmUpTask("appliance catalog") {
+            public void warm() throws CloudException, InternalException {
+                new Appliances(provider).getCatalog();
+            }
+        });
+    }
+
+    private abstract class WarmUpTask implements Runnable {
+        private final String name;
+
+        public WarmUpTask(@Nonnull String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            try {
+                warm();
+            }
+            catch( Throwable t ) {
+                logger.warn("Warm-up of " + name + " failed: " + t.getMessage());
+            }
+        }
+
+        public abstract void warm() throws CloudException, InternalException;
+    }
+}
@@ -30,6 +30,7 @@ import org.dasein.cloud.dc.Region;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.util.SingleFlight;
 import org.dasein.util.uom.time.Hour;
 import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
@@ -42,6 +43,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 /**
  * Implements data center services for Zimory describing the different Zimory regions. This class maps
@@ -122,26 +124,13 @@ public class ZimoryDataCenters implements DataCenterServices {
             if( regions != null ) {
                 return regions;
             }
-            regions = new ArrayList<Region>();
-
-            ZimoryMethod method = new ZimoryMethod(provider);
-
-            Document xml = method.getObject("clouds");
-
-            if( xml == null ) {
-                logger.error("Unable to communicate with the Zimory clouds endpoint");
-                throw new CloudException("Could not communicate with the Zimory clouds endpoint");
-            }
-            NodeList clouds = xml.getElementsByTagName("cloud");
-
-            for( int i=0; i<clouds.getLength(); i++ ) {
-                Region r = toRegion(method, clouds.item(i));
-
-                if( r != null ) {
-                    regions.add(r);
+            // a background warm-up may already be loading the regions
+            regions = SingleFlight.get(provider, "regions", 0L, new Callable<Collection<Region>>() {
+                @Override
+                public Collection<Region> call() throws CloudException, InternalException {
+                    return loadRegions();
                 }
-
-            }
+            });
             cache.put(ctx, regions);
             return regions;
         }
@@ -150,6 +139,29 @@ public class ZimoryDataCenters implements DataCenterServices {
         }
     }
 
+    private @Nonnull Collection<Region> loadRegions() throws CloudException, InternalException {
+        ArrayList<Region> regions = new ArrayList<Region>();
+        ZimoryMethod method = new ZimoryMethod(provider);
+
+        Document xml = method.getConstant("clouds");
+
+        if( xml == null ) {
+            logger.error("Unable to communicate with the Zimory clouds endpoint");
+            throw new CloudException("Could not communicate with the Zimory clouds endpoint");
+        }
+        NodeList clouds = xml.getElementsByTagName("cloud");
+
+        for( int i=0; i<clouds.getLength(); i++ ) {
+            Region r = toRegion(method, clouds.item(i));
+
+            if( r != null ) {
+                regions.add(r);
+            }
+
+        }
+        return regions;
+    }
+
     private @Nullable Region toRegion(@Nonnull ZimoryMethod method, @Nullable Node xml) throws CloudException, InternalException {
         if( xml == null ) {
             return null;
@@ -170,7 +182,7 @@ public class ZimoryDataCenters implements DataCenterServices {
         if( providerId == null || locationId == null ) {
             return null;
         }
-        Document doc = method.getObject("constants/locations/" + locationId);
+        Document doc = method.getConstant("constants/locations/" + locationId);
 
         if( doc == null ) {
             logger.error("Unable to communicate with the Zimory locations endpoint");
@@ -193,7 +205,7 @@ public class ZimoryDataCenters implements DataCenterServices {
                 }
             }
         }
-        doc = method.getObject("constants/providers/" + providerId);
+        doc = method.getConstant("constants/providers/" + providerId);
 
         if( doc == null ) {
             logger.error("Unable to communicate with the Zimory providers endpoint");
@@ -32,6 +32,8 @@ import javax.annotation.Nonnull;
  * @since 2012.09
  */
 public class ZimoryException extends CloudException {
+    static private final int BAD_REQUEST = 400;
+    static private final int CONFLICT    = 409;
 
     public ZimoryException(@Nonnull Throwable cause) {
         super(cause);
@@ -40,4 +42,22 @@ public class ZimoryException extends CloudException {
     public ZimoryException(@Nonnull CloudErrorType type, @Nonnegative int httpCode, @Nonnull String providerCode, @Nonnull String message) {
         super(type, httpCode, providerCode, message);
     }
+
+    /**
+     * Indicates whether Zimory refused the request because the target resource is still in use by another resource,
+     * which is a condition that clears once the other resource is gone. Zimory reports this either as a conflict or
+     * as a bad request whose message says the resource is in use, attached, or assigned.
+     * @return true if the request may succeed when retried after dependent resources are removed
+     */
+    public boolean isResourceInUse() {
+        if( getHttpCode() == CONFLICT ) {
+            return true;
+        }
+        if( getHttpCode() != BAD_REQUEST || getMessage() == null ) {
+            return false;
+        }
+        String message = getMessage().toLowerCase();
+
+        return (message.contains("in use") || message.contains("still used") || message.contains("attached") || message.contains("assigned"));
+    }
 }
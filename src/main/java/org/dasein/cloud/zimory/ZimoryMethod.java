@@ -28,13 +28,12 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
@@ -49,6 +48,9 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.X509SSLSocketFactory;
 import org.dasein.cloud.util.X509Store;
+import org.dasein.cloud.zimory.util.ConstantStore;
+import org.dasein.cloud.zimory.util.ResponseCache;
+import org.dasein.cloud.zimory.util.SingleFlight;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
@@ -58,7 +60,9 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -68,6 +72,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 /**
  * Handles communication with the Zimory REST endpoint by abstracting out the specifics of authentication and
@@ -115,6 +120,7 @@ public class ZimoryMethod {
                     throw new ZimoryConfigurationException(e);
                 }
                 HttpClient client = getClient(uri);
+                HttpPost post = new HttpPost(target);
 
                 try {
                     ProviderContext ctx = provider.getContext();
@@ -122,8 +128,6 @@ public class ZimoryMethod {
                     if( ctx == null ) {
                         throw new NoContextException();
                     }
-                    HttpPost post = new HttpPost(target);
-
                     post.addHeader("Content-type", "application/xml;charset=utf-8");
                     try {
                         post.setEntity(new StringEntity(body, "utf-8"));
@@ -208,8 +212,7 @@ public class ZimoryMethod {
                     }
                 }
                 finally {
-                    try { client.getConnectionManager().shutdown(); }
-                    catch( Throwable ignore ) { }
+                    post.releaseConnection();
                 }
             }
             finally {
@@ -248,6 +251,7 @@ public class ZimoryMethod {
                     throw new ZimoryConfigurationException(e);
                 }
                 HttpClient client = getClient(uri);
+                HttpDelete delete = new HttpDelete(target);
 
                 try {
                     ProviderContext ctx = provider.getContext();
@@ -255,8 +259,6 @@ public class ZimoryMethod {
                     if( ctx == null ) {
                         throw new NoContextException();
                     }
-                    HttpDelete delete = new HttpDelete(target);
-
                     if( wire.isDebugEnabled() ) {
                         wire.debug(delete.getRequestLine().toString());
                         for( Header header : delete.getAllHeaders() ) {
@@ -319,8 +321,7 @@ public class ZimoryMethod {
                     }
                 }
                 finally {
-                    try { client.getConnectionManager().shutdown(); }
-                    catch( Throwable ignore ) { }
+                    delete.releaseConnection();
                 }
             }
             finally {
@@ -337,9 +338,41 @@ public class ZimoryMethod {
         }
     }
 
+    /**
+     * Fetches a slow-changing resource such as <code>clouds</code> or <code>delegateRoles</code>, answering from
+     * the persistent {@link ConstantStore} when one is configured and holds the resource. A stored response past its
+     * <code>constantStoreTTL</code> is revalidated in the background. Concurrent requests for the same resource share
+     * a single fetch, and the response is reused for <code>warmUpTTL</code> milliseconds.
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the parsed response or <code>null</code> if the resource does not exist
+     * @throws InternalException an error occurred within Dasein Cloud processing the request
+     * @throws CloudException an error occurred communicating with Zimory
+     */
+    public @Nullable Document getConstant(@Nonnull final String resource) throws InternalException, CloudException {
+        String body = SingleFlight.get(provider, "constants:" + resource, provider.getWarmUpTTL(), new Callable<String>() {
+            @Override
+            public String call() throws CloudException, InternalException {
+                ConstantStore store = ConstantStore.getInstance(provider);
+                String body = (store == null ? null : store.get(provider, resource));
+
+                if( body == null ) {
+                    body = getString(resource);
+                    if( store != null && body != null ) {
+                        store.put(resource, body);
+                    }
+                }
+                return body;
+            }
+        });
+
+        return parse(body);
+    }
+
     public @Nullable Document getObject(@Nonnull String resource) throws InternalException, CloudException {
-        String body = getString(resource);
+        return parse(getString(resource));
+    }
 
+    private @Nullable Document parse(@Nullable String body) throws InternalException, CloudException {
         if( body == null || body.trim().length() < 1 ) {
             return null;
         }
@@ -369,11 +402,68 @@ public class ZimoryMethod {
         }
     }
 
+    /**
+     * Fetches the specified resource, answering from the {@link ResponseCache} when a TTL has been configured for
+     * the resource's prefix and a fresh response is cached. A fetched response is not cached if a mutation of the
+     * same resource class was published while it was in flight.
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the response body or <code>null</code> if the resource does not exist
+     * @throws InternalException an error occurred within Dasein Cloud processing the request
+     * @throws CloudException an error occurred communicating with Zimory
+     */
     public @Nullable String getString(@Nonnull String resource) throws InternalException, CloudException {
-        if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + Zimory.class.getName() + ".getString(" + resource + ")");
+        long ttl = ResponseCache.getTTL(provider, resource);
+
+        if( ttl < 1L ) {
+            return fetch(resource);
         }
+        ResponseCache cache = ResponseCache.getInstance(provider);
+        String key = ResponseCache.toKey(provider, resource);
+        String body = cache.get(key);
 
+        if( body != null ) {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Response cache hit: " + resource);
+            }
+            return body;
+        }
+        String group = ResponseCache.toGroup(provider, resource);
+        long generation = cache.getGeneration(group);
+
+        body = fetch(resource);
+        if( body != null ) {
+            cache.put(key, group, generation, body, ttl);
+        }
+        return body;
+    }
+
+    /**
+     * Opens the specified resource for reading as a stream rather than loading the whole response into memory. A
+     * fresh response in the {@link ResponseCache} is served from memory; otherwise the response body is read
+     * straight off the wire and is not cached. Streamed responses use the provider's dedicated streaming client
+     * (see {@link Zimory#getStreamingHttpClient(URI)}) so that a slow reader never holds a connection other calls
+     * are waiting for. Callers must close the stream to return its connection.
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the response body or <code>null</code> if the resource does not exist
+     * @throws InternalException an error occurred within Dasein Cloud processing the request
+     * @throws CloudException an error occurred communicating with Zimory
+     */
+    public @Nullable InputStream getStream(@Nonnull String resource) throws InternalException, CloudException {
+        if( ResponseCache.getTTL(provider, resource) > 0L ) {
+            String body = ResponseCache.getInstance(provider).get(ResponseCache.toKey(provider, resource));
+
+            if( body != null ) {
+                try {
+                    return new ByteArrayInputStream(body.getBytes("utf-8"));
+                }
+                catch( UnsupportedEncodingException e ) {
+                    throw new InternalException(e);
+                }
+            }
+        }
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + Zimory.class.getName() + ".getStream(" + resource + ")");
+        }
         try {
             String target = getEndpoint(resource);
 
@@ -381,111 +471,101 @@ public class ZimoryMethod {
                 wire.debug("");
                 wire.debug(">>> [GET (" + (new Date()) + ")] -> " + target + " >--------------------------------------------------------------------------------------");
             }
+            final HttpGet get = new HttpGet(target);
+            boolean streaming = false;
+
             try {
-                URI uri;
+                HttpResponse response = get(resource, provider.getStreamingHttpClient(toURI(target)), get);
+
+                if( response == null ) {
+                    return null;
+                }
+                HttpEntity entity = response.getEntity();
+
+                if( entity == null ) {
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+                InputStream content;
 
                 try {
-                    uri = new URI(target);
+                    content = entity.getContent();
                 }
-                catch( URISyntaxException e ) {
-                    throw new ZimoryConfigurationException(e);
+                catch( IOException e ) {
+                    throw new ZimoryException(e);
                 }
-                HttpClient client = getClient(uri);
+                streaming = true;
+                return new FilterInputStream(content) {
+                    private boolean closed = false;
+
+                    @Override
+                    public void close() throws IOException {
+                        if( !closed ) {
+                            closed = true;
+                            // abort rather than drain whatever the caller chose not to read
+                            get.abort();
+                        }
+                    }
+                };
+            }
+            finally {
+                if( !streaming ) {
+                    get.releaseConnection();
+                }
+                if( wire.isDebugEnabled() ) {
+                    wire.debug("<<< [GET (" + (new Date()) + ")] -> " + target + (streaming ? " (streaming)" : "") + " <--------------------------------------------------------------------------------------");
+                    wire.debug("");
+                }
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + Zimory.class.getName() + ".getStream()");
+            }
+        }
+    }
+
+    private @Nullable String fetch(@Nonnull String resource) throws InternalException, CloudException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + Zimory.class.getName() + ".getString(" + resource + ")");
+        }
+
+        try {
+            String target = getEndpoint(resource);
+
+            if( wire.isDebugEnabled() ) {
+                wire.debug("");
+                wire.debug(">>> [GET (" + (new Date()) + ")] -> " + target + " >--------------------------------------------------------------------------------------");
+            }
+            try {
+                HttpGet get = new HttpGet(target);
 
                 try {
-                    ProviderContext ctx = provider.getContext();
+                    HttpResponse response = get(resource, getClient(toURI(target)), get);
 
-                    if( ctx == null ) {
-                        throw new NoContextException();
+                    if( response == null ) {
+                        return null;
                     }
-                    HttpGet get = new HttpGet(target);
+                    HttpEntity entity = response.getEntity();
 
-                    if( wire.isDebugEnabled() ) {
-                        wire.debug(get.getRequestLine().toString());
-                        for( Header header : get.getAllHeaders() ) {
-                            wire.debug(header.getName() + ": " + header.getValue());
-                        }
-                        wire.debug("");
+                    if( entity == null ) {
+                        return "";
                     }
-                    HttpResponse response;
-                    StatusLine status;
+                    String body;
 
                     try {
-                        APITrace.trace(provider, "GET " + resource);
-                        response = client.execute(get);
-                        status = response.getStatusLine();
+                        body = EntityUtils.toString(entity);
                     }
                     catch( IOException e ) {
-                        logger.error("Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                        throw new CloudException(e);
-                    }
-                    if( logger.isDebugEnabled() ) {
-                        logger.debug("HTTP Status " + status);
+                        throw new ZimoryException(e);
                     }
-                    Header[] headers = response.getAllHeaders();
-
                     if( wire.isDebugEnabled() ) {
-                        wire.debug(status.toString());
-                        for( Header h : headers ) {
-                            if( h.getValue() != null ) {
-                                wire.debug(h.getName() + ": " + h.getValue().trim());
-                            }
-                            else {
-                                wire.debug(h.getName() + ":");
-                            }
-                        }
-                        wire.debug("");
-                    }
-                    if( status.getStatusCode() == NOT_FOUND ) {
-                        return null;
-                    }
-                    if( status.getStatusCode() != OK && status.getStatusCode() != NO_CONTENT ) {
-                        logger.error("Expected OK for GET request, got " + status.getStatusCode());
-                        HttpEntity entity = response.getEntity();
-                        String body;
-
-                        if( entity == null ) {
-                            throw new ZimoryException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), status.getReasonPhrase());
-                        }
-                        try {
-                            body = EntityUtils.toString(entity);
-                        }
-                        catch( IOException e ) {
-                            throw new ZimoryException(e);
-                        }
-                        if( wire.isDebugEnabled() ) {
-                            wire.debug(body);
-                        }
-                        wire.debug("");
-                        if( status.getStatusCode() == BAD_REQUEST && body.contains("could not be found") ) {
-                            return null;
-                        }
-                        throw new ZimoryException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), body);
-                    }
-                    else {
-                        HttpEntity entity = response.getEntity();
-
-                        if( entity == null ) {
-                            return "";
-                        }
-                        String body;
-
-                        try {
-                            body = EntityUtils.toString(entity);
-                        }
-                        catch( IOException e ) {
-                            throw new ZimoryException(e);
-                        }
-                        if( wire.isDebugEnabled() ) {
-                            wire.debug(body);
-                        }
-                        wire.debug("");
-                        return body;
+                        wire.debug(body);
                     }
+                    wire.debug("");
+                    return body;
                 }
                 finally {
-                    try { client.getConnectionManager().shutdown(); }
-                    catch( Throwable ignore ) { }
+                    get.releaseConnection();
                 }
             }
             finally {
@@ -502,7 +582,117 @@ public class ZimoryMethod {
         }
     }
 
+    /**
+     * Executes a GET request and checks the response status. The caller reads the entity of a successful response
+     * and is responsible for releasing the request's connection in every case.
+     * @param resource the resource path relative to the Zimory endpoint
+     * @param client the client through which the request is made
+     * @param get the request
+     * @return the successful response or <code>null</code> if the resource does not exist
+     * @throws InternalException an error occurred within Dasein Cloud processing the request
+     * @throws CloudException an error occurred communicating with Zimory or Zimory rejected the request
+     */
+    private @Nullable HttpResponse get(@Nonnull String resource, @Nonnull HttpClient client, @Nonnull HttpGet get) throws InternalException, CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug(get.getRequestLine().toString());
+            for( Header header : get.getAllHeaders() ) {
+                wire.debug(header.getName() + ": " + header.getValue());
+            }
+            wire.debug("");
+        }
+        HttpResponse response;
+        StatusLine status;
+
+        try {
+            APITrace.trace(provider, "GET " + resource);
+            response = client.execute(get);
+            status = response.getStatusLine();
+        }
+        catch( IOException e ) {
+            logger.error("Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
+            throw new CloudException(e);
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("HTTP Status " + status);
+        }
+        Header[] headers = response.getAllHeaders();
+
+        if( wire.isDebugEnabled() ) {
+            wire.debug(status.toString());
+            for( Header h : headers ) {
+                if( h.getValue() != null ) {
+                    wire.debug(h.getName() + ": " + h.getValue().trim());
+                }
+                else {
+                    wire.debug(h.getName() + ":");
+                }
+            }
+            wire.debug("");
+        }
+        if( status.getStatusCode() == NOT_FOUND ) {
+            return null;
+        }
+        if( status.getStatusCode() != OK && status.getStatusCode() != NO_CONTENT ) {
+            HttpEntity entity = response.getEntity();
+            String body;
+
+            if( entity == null ) {
+                logger.error("Expected OK for GET request, got " + status.getStatusCode());
+                throw new ZimoryException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), status.getReasonPhrase());
+            }
+            try {
+                body = EntityUtils.toString(entity);
+            }
+            catch( IOException e ) {
+                throw new ZimoryException(e);
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug(body);
+            }
+            wire.debug("");
+            if( status.getStatusCode() == BAD_REQUEST && body.contains("could not be found") ) {
+                // Zimory reports lookups of unknown resources this way, which is a normal not found
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("No such resource: " + resource);
+                }
+                return null;
+            }
+            logger.error("Expected OK for GET request, got " + status.getStatusCode());
+            throw new ZimoryException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), body);
+        }
+        return response;
+    }
+
+    private @Nonnull URI toURI(@Nonnull String target) throws ZimoryConfigurationException {
+        try {
+            return new URI(target);
+        }
+        catch( URISyntaxException e ) {
+            throw new ZimoryConfigurationException(e);
+        }
+    }
+
     private @Nonnull HttpClient getClient(URI uri) throws InternalException, CloudException {
+        return provider.getHttpClient(uri);
+    }
+
+    /**
+     * Constructs a new pooled HTTP client for calls to the scheme and port of the specified URI using the
+     * credentials and proxy settings of the provider's current context. Callers should share the client through
+     * {@link Zimory#getHttpClient(URI)} or {@link Zimory#getStreamingHttpClient(URI)} rather than construct one per
+     * call.
+     * @param provider the provider whose context supplies the credentials and proxy settings
+     * @param uri a URI with the scheme and port for which the client is being constructed
+     * @return a new HTTP client
+     * @throws InternalException the credentials in the context could not be loaded
+     * @throws CloudException no context has been established for the provider
+     */
+    static @Nonnull HttpClient createClient(@Nonnull Zimory provider, @Nonnull URI uri) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
@@ -561,7 +751,11 @@ public class ZimoryMethod {
                 params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
             }
         }
-        ClientConnectionManager ccm = new ThreadSafeClientConnManager(registry);
+        PoolingClientConnectionManager ccm = new PoolingClientConnectionManager(registry);
+        int connections = (int)Math.max(1L, provider.getCustomLong("httpMaxConnections", 20L));
+
+        ccm.setMaxTotal(connections);
+        ccm.setDefaultMaxPerRoute(connections);
 
         return new DefaultHttpClient(ccm, params);
     }
@@ -598,35 +792,7 @@ public class ZimoryMethod {
     }
 
     public @Nullable Document postObject(@Nonnull String resource, @Nonnull String body) throws InternalException, CloudException {
-        String response = postString(resource, body);
-
-        if( response == null || response.trim().length() < 1 ) {
-            return null;
-        }
-        try {
-            ByteArrayInputStream bas = new ByteArrayInputStream(response.getBytes("utf-8"));
-
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder parser = factory.newDocumentBuilder();
-
-            return parser.parse(bas);
-        }
-        catch( UnsupportedEncodingException e ) {
-            logger.error("UTF-8 not supported: " + e.getMessage());
-            throw new InternalException(e);
-        }
-        catch( ParserConfigurationException e ) {
-            logger.error("Misconfigured XML parser: " + e.getMessage());
-            throw new InternalException(e);
-        }
-        catch( SAXException e ) {
-            logger.error("Error parsing XML from the cloud provider: " + e.getMessage());
-            throw new CloudException(e);
-        }
-        catch( IOException e ) {
-            logger.error("Error communicating with the cloud provider: " + e.getMessage());
-            throw new CloudException(e);
-        }
+        return parse(postString(resource, body));
     }
 
     public @Nullable String postString(@Nonnull String resource, @Nonnull String body) throws InternalException, CloudException {
@@ -651,6 +817,7 @@ public class ZimoryMethod {
                     throw new ZimoryConfigurationException(e);
                 }
                 HttpClient client = getClient(uri);
+                HttpPost post = new HttpPost(target);
 
                 try {
                     ProviderContext ctx = provider.getContext();
@@ -658,8 +825,6 @@ public class ZimoryMethod {
                     if( ctx == null ) {
                         throw new NoContextException();
                     }
-                    HttpPost post = new HttpPost(target);
-
                     post.addHeader("Content-type", "application/xml;charset=utf-8");
                     try {
                         post.setEntity(new StringEntity(body, "utf-8"));
@@ -749,8 +914,7 @@ public class ZimoryMethod {
                     }
                 }
                 finally {
-                    try { client.getConnectionManager().shutdown(); }
-                    catch( Throwable ignore ) { }
+                    post.releaseConnection();
                 }
             }
             finally {
@@ -766,4 +930,25 @@ public class ZimoryMethod {
             }
         }
     }
+
+    /**
+     * Fetches a slow-changing resource from Zimory regardless of what the persistent {@link ConstantStore} holds,
+     * updating the store with the new response.
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the parsed response or <code>null</code> if the resource does not exist
+     * @throws InternalException an error occurred within Dasein Cloud processing the request
+     * @throws CloudException an error occurred communicating with Zimory
+     */
+    public @Nullable Document refreshConstant(@Nonnull String resource) throws InternalException, CloudException {
+        String body = fetch(resource);
+
+        if( body != null ) {
+            ConstantStore store = ConstantStore.getInstance(provider);
+
+            if( store != null ) {
+                store.put(resource, body);
+            }
+        }
+        return parse(body);
+    }
 }
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.compute.image;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.Platform;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the Zimory appliance catalog with secondary indexes supporting fast in-memory
+ * searches. Candidates are narrowed through the platform, architecture, owner, and keyword indexes and then
+ * verified against the full filter, so a search always returns exactly what a linear scan would return. The
+ * catalog hands out copies of its images so callers cannot alter the shared snapshot.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ApplianceCatalog {
+    static private final String PUBLIC_OWNER = "";
+
+    private final List<MachineImage>                   images;
+    private final Map<String,MachineImage>             byId           = new HashMap<String, MachineImage>();
+    private final Map<Platform,List<MachineImage>>     byPlatform     = new HashMap<Platform, List<MachineImage>>();
+    private final Map<Architecture,List<MachineImage>> byArchitecture = new HashMap<Architecture, List<MachineImage>>();
+    private final Map<String,List<MachineImage>>       byOwner        = new HashMap<String, List<MachineImage>>();
+    private final Map<String,List<MachineImage>>       byToken        = new HashMap<String, List<MachineImage>>();
+    private final Map<MachineImage,Integer>            ordinals       = new IdentityHashMap<MachineImage, Integer>();
+    private final long                                 timestamp;
+
+    public ApplianceCatalog(@Nonnull Collection<MachineImage> images, @Nonnegative long timestamp) {
+        ArrayList<MachineImage> snapshot = new ArrayList<MachineImage>();
+
+        for( MachineImage img : images ) {
+            snapshot.add(copy(img));
+        }
+        this.images = Collections.unmodifiableList(snapshot);
+        this.timestamp = timestamp;
+        for( MachineImage img : this.images ) {
+            String owner = img.getProviderOwnerId();
+
+            ordinals.put(img, ordinals.size());
+            byId.put(img.getProviderMachineImageId(), img);
+            index(byPlatform, img.getPlatform(), img);
+            index(byArchitecture, img.getArchitecture(), img);
+            index(byOwner, owner == null ? PUBLIC_OWNER : owner, img);
+
+            Set<String> tokens = new HashSet<String>();
+
+            tokens.addAll(tokenize(img.getName()));
+            tokens.addAll(tokenize(img.getDescription()));
+            // ImageFilterOptions also matches the keyword against tag values
+            for( String value : img.getTags().values() ) {
+                tokens.addAll(tokenize(value));
+            }
+            for( String token : tokens ) {
+                index(byToken, token, img);
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation") // the 2013.07 core offers no non-deprecated way to set most image fields
+    static private @Nonnull MachineImage copy(@Nonnull MachineImage img) {
+        MachineImage copy = new MachineImage();
+
+        copy.setProviderMachineImageId(img.getProviderMachineImageId());
+        copy.setProviderOwnerId(img.getProviderOwnerId());
+        copy.setProviderRegionId(img.getProviderRegionId());
+        copy.setName(img.getName());
+        copy.setDescription(img.getDescription());
+        copy.setSoftware(img.getSoftware());
+        copy.setStorageFormat(img.getStorageFormat());
+        copy.setType(img.getType());
+        copy.setCurrentState(img.getCurrentState());
+        copy.setImageClass(img.getImageClass());
+        copy.setPlatform(img.getPlatform());
+        copy.setArchitecture(img.getArchitecture());
+        copy.setKernelImageId(img.getKernelImageId());
+        copy.setCreationTimestamp(img.getCreationTimestamp());
+        if( img.getProviderDataCenterId() != null ) {
+            copy.constrainedTo(img.getProviderDataCenterId());
+        }
+        copy.setTags(new HashMap<String, String>(img.getTags()));
+        return copy;
+    }
+
+    static private @Nonnull List<MachineImage> copyAll(@Nonnull Collection<MachineImage> images) {
+        ArrayList<MachineImage> list = new ArrayList<MachineImage>();
+
+        for( MachineImage img : images ) {
+            list.add(copy(img));
+        }
+        return list;
+    }
+
+    static private <K> void index(@Nonnull Map<K,List<MachineImage>> index, @Nullable K key, @Nonnull MachineImage img) {
+        if( key == null ) {
+            return;
+        }
+        List<MachineImage> list = index.get(key);
+
+        if( list == null ) {
+            list = new ArrayList<MachineImage>();
+            index.put(key, list);
+        }
+        list.add(img);
+    }
+
+    static private @Nonnull List<String> tokenize(@Nullable String text) {
+        ArrayList<String> tokens = new ArrayList<String>();
+
+        if( text == null ) {
+            return tokens;
+        }
+        StringBuilder token = new StringBuilder();
+
+        text = text.toLowerCase(Locale.ENGLISH);
+        for( int i=0; i<text.length(); i++ ) {
+            char c = text.charAt(i);
+
+            if( Character.isLetterOrDigit(c) ) {
+                token.append(c);
+            }
+            else if( token.length() > 0 ) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if( token.length() > 0 ) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Extracts the literal text a keyword regular expression requires to be present in a matching name,
+     * description, or tag value. Only simple patterns of the form <code>(?i).*some words.*</code> are understood; anything
+     * else yields <code>null</code>, meaning the keyword index cannot be used to narrow the search.
+     * @param regex the regular expression from the image filter
+     * @return the literal keyword text or <code>null</code> if the expression is not a simple keyword
+     */
+    static private @Nullable String toKeyword(@Nonnull String regex) {
+        if( regex.startsWith("(?i)") ) {
+            regex = regex.substring(4);
+        }
+        if( regex.startsWith(".*") ) {
+            regex = regex.substring(2);
+        }
+        if( regex.endsWith(".*") ) {
+            regex = regex.substring(0, regex.length()-2);
+        }
+        for( int i=0; i<regex.length(); i++ ) {
+            char c = regex.charAt(i);
+
+            if( !Character.isLetterOrDigit(c) && c != ' ' && c != '_' && c != '-' ) {
+                return null;
+            }
+        }
+        return (regex.trim().length() < 1 ? null : regex);
+    }
+
+    private @Nonnull Collection<MachineImage> findByKeyword(@Nonnull String keyword) {
+        Set<MachineImage> candidates = null;
+
+        // each fragment of the keyword must fall within a single indexed token of the name, description, or a tag value
+        for( String fragment : tokenize(keyword) ) {
+            Set<MachineImage> matches = Collections.newSetFromMap(new IdentityHashMap<MachineImage, Boolean>());
+
+            for( Map.Entry<String,List<MachineImage>> entry : byToken.entrySet() ) {
+                if( entry.getKey().contains(fragment) ) {
+                    matches.addAll(entry.getValue());
+                }
+            }
+            if( candidates == null ) {
+                candidates = matches;
+            }
+            else {
+                candidates.retainAll(matches);
+            }
+            if( candidates.isEmpty() ) {
+                break;
+            }
+        }
+        if( candidates == null ) {
+            return images;
+        }
+        ArrayList<MachineImage> list = new ArrayList<MachineImage>(candidates);
+
+        Collections.sort(list, new Comparator<MachineImage>() {
+            @Override
+            public int compare(MachineImage a, MachineImage b) {
+                return ordinals.get(a).compareTo(ordinals.get(b));
+            }
+        });
+        return list;
+    }
+
+    public @Nullable MachineImage getImage(@Nonnull String providerImageId) {
+        MachineImage img = byId.get(providerImageId);
+
+        return (img == null ? null : copy(img));
+    }
+
+    public @Nonnegative long getTimestamp() {
+        return timestamp;
+    }
+
+    public @Nonnull Iterable<MachineImage> listImages() {
+        return copyAll(images);
+    }
+
+    /**
+     * Lists the images owned by the specified account or the public images if no owner is specified.
+     * @param ownerId the account owning the images or <code>null</code> for public images
+     * @return the matching images
+     */
+    public @Nonnull Iterable<MachineImage> listImages(@Nullable String ownerId) {
+        List<MachineImage> list = byOwner.get(ownerId == null ? PUBLIC_OWNER : ownerId);
+
+        if( list == null ) {
+            return Collections.emptyList();
+        }
+        return copyAll(list);
+    }
+
+    /**
+     * Searches the catalog for images matching the specified filter options.
+     * @param options the filter options to match, if any
+     * @param publicOnly true if only public images should be returned
+     * @return the images matching the filter in catalog order
+     */
+    public @Nonnull Iterable<MachineImage> search(@Nullable ImageFilterOptions options, boolean publicOnly) {
+        Collection<MachineImage> candidates = (publicOnly ? byOwner.get(PUBLIC_OWNER) : images);
+
+        if( candidates == null ) {
+            return Collections.emptyList();
+        }
+        if( options == null ) {
+            return copyAll(candidates);
+        }
+        if( !options.isMatchesAny() ) {
+            if( options.getPlatform() != null ) {
+                candidates = narrow(candidates, byPlatform.get(options.getPlatform()));
+            }
+            if( options.getArchitecture() != null ) {
+                candidates = narrow(candidates, byArchitecture.get(options.getArchitecture()));
+            }
+            if( options.getAccountNumber() != null ) {
+                candidates = narrow(candidates, byOwner.get(options.getAccountNumber()));
+            }
+            String regex = options.getRegex();
+            String keyword = (regex == null ? null : toKeyword(regex));
+
+            if( keyword != null ) {
+                candidates = narrow(candidates, findByKeyword(keyword));
+            }
+        }
+        ArrayList<MachineImage> matches = new ArrayList<MachineImage>();
+
+        // the narrowest index is only a superset of the result, so every candidate is checked against the full filter
+        for( MachineImage img : candidates ) {
+            if( publicOnly && img.getProviderOwnerId() != null ) {
+                continue;
+            }
+            if( options.matches(img) ) {
+                matches.add(copy(img));
+            }
+        }
+        return matches;
+    }
+
+    static private @Nonnull Collection<MachineImage> narrow(@Nonnull Collection<MachineImage> current, @Nullable Collection<MachineImage> index) {
+        if( index == null ) {
+            return Collections.emptyList();
+        }
+        return (index.size() < current.size() ? index : current);
+    }
+
+    public int size() {
+        return images.size();
+    }
+}
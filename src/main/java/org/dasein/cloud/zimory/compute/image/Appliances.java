@@ -36,9 +36,16 @@ import org.dasein.cloud.compute.MachineImageType;
 import org.dasein.cloud.compute.Platform;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.zimory.NoContextException;
 import org.dasein.cloud.zimory.Zimory;
 import org.dasein.cloud.zimory.ZimoryMethod;
+import org.dasein.cloud.zimory.util.ListQuery;
+import org.dasein.cloud.zimory.util.NegativeCache;
+import org.dasein.cloud.zimory.util.OffHeapMap;
+import org.dasein.cloud.zimory.util.PagedListing;
+import org.dasein.cloud.zimory.util.XmlStream;
+import org.dasein.util.CalendarWrapper;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -47,7 +54,10 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implements Dasein Cloud machine image support tying in Zimory appliances as machine images.
@@ -59,6 +69,15 @@ import java.util.Locale;
 public class Appliances extends AbstractImageSupport {
     static private final Logger logger = Zimory.getLogger(Appliances.class);
 
+    static private final Map<ListQuery.Field,String> FIELDS = new EnumMap<ListQuery.Field, String>(ListQuery.Field.class);
+
+    static {
+        FIELDS.put(ListQuery.Field.NAME, "name");
+    }
+
+    static private final ConcurrentHashMap<String,ApplianceCatalog> catalogs     = new ConcurrentHashMap<String, ApplianceCatalog>();
+    static private final ConcurrentHashMap<String,Object>           refreshLocks = new ConcurrentHashMap<String, Object>();
+
     private Zimory provider;
 
     public Appliances(@Nonnull Zimory provider) {
@@ -66,6 +85,45 @@ public class Appliances extends AbstractImageSupport {
         this.provider = provider;
     }
 
+    /**
+     * Provides the current snapshot of the appliance catalog for this account and region, loading a new one
+     * when the existing snapshot is older than the <code>applianceCatalogTTL</code> custom property
+     * (in milliseconds, five minutes by default).
+     * @return the current appliance catalog
+     * @throws CloudException an error occurred loading the catalog from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud while loading the catalog
+     */
+    public @Nonnull ApplianceCatalog getCatalog() throws CloudException, InternalException {
+        String key = provider.getCacheKey(CacheLevel.REGION_ACCOUNT);
+        ApplianceCatalog catalog = getFreshCatalog(key);
+
+        if( catalog != null ) {
+            return catalog;
+        }
+        Object lock = new Object();
+        Object existing = refreshLocks.putIfAbsent(key, lock);
+
+        synchronized( existing == null ? lock : existing ) {
+            // another thread may have completed the load while we were waiting
+            catalog = getFreshCatalog(key);
+            if( catalog != null ) {
+                return catalog;
+            }
+            // with no catalog in memory, a copy persisted by a previous run is good enough to start with
+            return loadCatalog(catalogs.containsKey(key));
+        }
+    }
+
+    private @Nullable ApplianceCatalog getFreshCatalog(@Nonnull String key) {
+        ApplianceCatalog catalog = catalogs.get(key);
+        long ttl = provider.getCustomLong("applianceCatalogTTL", CalendarWrapper.MINUTE * 5L);
+
+        if( catalog != null && (System.currentTimeMillis() - catalog.getTimestamp()) < ttl ) {
+            return catalog;
+        }
+        return null;
+    }
+
     @Override
     public MachineImage getImage(@Nonnull String providerImageId) throws CloudException, InternalException {
         APITrace.begin(provider, "getImage");
@@ -81,13 +139,27 @@ public class Appliances extends AbstractImageSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
+            ApplianceCatalog catalog = getFreshCatalog(provider.getCacheKey(CacheLevel.REGION_ACCOUNT));
+
+            if( catalog != null ) {
+                MachineImage img = catalog.getImage(providerImageId);
+
+                if( img != null ) {
+                    return img;
+                }
+            }
+            NegativeCache missing = NegativeCache.getInstance(provider, "appliances", CacheLevel.REGION_ACCOUNT);
+
+            if( missing.isMissing(providerImageId) ) {
+                return null;
+            }
             ZimoryMethod method = new ZimoryMethod(provider);
 
             Document response = method.getObject("appliances/" + providerImageId);
 
             if( response == null ) {
-                logger.error("Unable to identify endpoint for deployments in Zimory");
-                throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
+                missing.markMissing(providerImageId);
+                return null;
             }
             NodeList appliances = response.getElementsByTagName("appliance");
 
@@ -141,32 +213,19 @@ public class Appliances extends AbstractImageSupport {
     @Override
     public @Nonnull Iterable<ResourceStatus> listImageStatus(@Nonnull ImageClass cls) throws CloudException, InternalException {
         APITrace.begin(provider, "listImageStatus");
-        if( !ImageClass.MACHINE.equals(cls) ) {
-            return Collections.emptyList();
-        }
         try {
+            if( !ImageClass.MACHINE.equals(cls) ) {
+                return Collections.emptyList();
+            }
             ProviderContext ctx = provider.getContext();
 
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            ZimoryMethod method = new ZimoryMethod(provider);
-
-            Document response = method.getObject("appliances");
-
-            if( response == null ) {
-                logger.error("Unable to identify endpoint for deployments in Zimory");
-                throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
-            }
             ArrayList<ResourceStatus> images = new ArrayList<ResourceStatus>();
-            NodeList appliances = response.getElementsByTagName("appliance");
 
-            for( int i=0; i<appliances.getLength(); i++ ) {
-                ResourceStatus status = toStatus(appliances.item(i), ctx.getAccountNumber());
-
-                if( status != null ) {
-                    images.add(status);
-                }
+            for( MachineImage img : getCatalog().listImages(ctx.getAccountNumber()) ) {
+                images.add(new ResourceStatus(img.getProviderMachineImageId(), MachineImageState.ACTIVE));
             }
             return images;
         }
@@ -179,30 +238,56 @@ public class Appliances extends AbstractImageSupport {
     public @Nonnull Iterable<MachineImage> listImages(@Nullable ImageFilterOptions options) throws CloudException, InternalException {
         APITrace.begin(provider, "listImages");
         try {
-            ProviderContext ctx = provider.getContext();
-
-            if( ctx == null ) {
-                throw new NoContextException();
-            }
-
-            ZimoryMethod method = new ZimoryMethod(provider);
-
-            Document response = method.getObject("appliances");
+            return getCatalog().search(options, false);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            if( response == null ) {
-                logger.error("Unable to identify endpoint for deployments in Zimory");
-                throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
-            }
-            ArrayList<MachineImage> images = new ArrayList<MachineImage>();
-            NodeList appliances = response.getElementsByTagName("appliance");
+    /**
+     * Lists the appliances matching a query directly from Zimory, bypassing the cached appliance catalog. Only the
+     * name can be filtered on; Zimory is asked to filter and page the listing and the name filter is also applied
+     * to the results (see {@link PagedListing}).
+     * @param query the criteria for the listing
+     * @return the matching machine images, fetched a page at a time as iteration proceeds
+     * @throws CloudException an error occurred fetching the first page from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Iterable<MachineImage> listImages(@Nonnull ListQuery query) throws CloudException, InternalException {
+        APITrace.begin(provider, "listImages");
+        try {
+            return PagedListing.list(provider, "appliances", "appliance", FIELDS, query, new OffHeapMap.Materializer<MachineImage>() {
+                @Override
+                public @Nullable MachineImage materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toMachineImage(node);
+                }
+            });
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            for( int i=0; i<appliances.getLength(); i++ ) {
-                MachineImage img = toMachineImage(appliances.item(i));
-                if( img != null && (options == null || options.matches(img)) ) {
-                    images.add(img);
+    /**
+     * Streams the appliances straight from the Zimory listing, parsing and mapping each one only when iteration
+     * reaches it, so a caller that stops early does not pay for the rest of the listing. Unlike the cached listings,
+     * every call fetches the listing from Zimory (or the response cache).
+     * The stream holds a connection to Zimory until it is iterated to the end or closed, and may be iterated once.
+     * @return the appliances, mapped on demand; close it if iteration stops early
+     * @throws CloudException an error occurred requesting the listing from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @see XmlStream
+     */
+    public @Nonnull XmlStream<MachineImage> streamImages() throws CloudException, InternalException {
+        APITrace.begin(provider, "streamImages");
+        try {
+            return XmlStream.stream(provider, "appliances", "appliance", new OffHeapMap.Materializer<MachineImage>() {
+                @Override
+                public @Nullable MachineImage materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toMachineImage(node);
                 }
-            }
-            return images;
+            });
         }
         finally {
             APITrace.end();
@@ -234,38 +319,66 @@ public class Appliances extends AbstractImageSupport {
         return Collections.singletonList(MachineImageType.VOLUME);
     }
 
-    @Override
-    public void remove(@Nonnull String providerImageId, boolean checkState) throws CloudException, InternalException {
-        throw new OperationNotSupportedException("Cannot remove this image");
-    }
-
-    @Override
-    public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
-        return new String[0];
+    /**
+     * Loads a fresh snapshot of the appliance catalog from Zimory regardless of the age of the current one.
+     * @return the newly loaded catalog
+     * @throws CloudException an error occurred loading the catalog from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud while loading the catalog
+     */
+    public @Nonnull ApplianceCatalog refreshCatalog() throws CloudException, InternalException {
+        return loadCatalog(true);
     }
 
-    @Override
-    public @Nonnull Iterable<MachineImage> searchPublicImages(@Nonnull ImageFilterOptions options) throws CloudException, InternalException {
-        APITrace.begin(provider, "searchPublicImages");
+    private @Nonnull ApplianceCatalog loadCatalog(boolean refresh) throws CloudException, InternalException {
+        APITrace.begin(provider, "loadApplianceCatalog");
         try {
-            ArrayList<MachineImage> images = new ArrayList<MachineImage>();
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new NoContextException();
+            }
             ZimoryMethod method = new ZimoryMethod(provider);
-            Document response = method.getObject("appliances");
+            Document response = (refresh ? method.refreshConstant("appliances") : method.getConstant("appliances"));
 
             if( response == null ) {
-                logger.error("Unable to identify endpoint for deployments in Zimory");
-                throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
+                logger.error("Unable to identify endpoint for appliances in Zimory");
+                throw new CloudException("Unable to identify endpoint for machine images (appliances)");
             }
+            ArrayList<MachineImage> images = new ArrayList<MachineImage>();
             NodeList appliances = response.getElementsByTagName("appliance");
 
-            System.out.println("Possibles=" + appliances.getLength());
             for( int i=0; i<appliances.getLength(); i++ ) {
                 MachineImage img = toMachineImage(appliances.item(i));
-                if( img != null && img.getProviderOwnerId() == null && options.matches(img) ) {
+
+                if( img != null ) {
                     images.add(img);
                 }
             }
-            return images;
+            ApplianceCatalog catalog = new ApplianceCatalog(images, System.currentTimeMillis());
+
+            catalogs.put(provider.getCacheKey(CacheLevel.REGION_ACCOUNT), catalog);
+            return catalog;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    @Override
+    public void remove(@Nonnull String providerImageId, boolean checkState) throws CloudException, InternalException {
+        throw new OperationNotSupportedException("Cannot remove this image");
+    }
+
+    @Override
+    public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
+        return new String[0];
+    }
+
+    @Override
+    public @Nonnull Iterable<MachineImage> searchPublicImages(@Nonnull ImageFilterOptions options) throws CloudException, InternalException {
+        APITrace.begin(provider, "searchPublicImages");
+        try {
+            return getCatalog().search(options, true);
         }
         finally {
             APITrace.end();
@@ -411,48 +524,4 @@ public class Appliances extends AbstractImageSupport {
         }
         return Platform.guess(name + " " + description);
     }
-
-    private @Nullable ResourceStatus toStatus(@Nullable Node node, @Nullable String accountNumber) throws InternalException, CloudException {
-        if( node == null ) {
-            return null;
-        }
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new NoContextException();
-        }
-        NodeList attributes = node.getChildNodes();
-        String id;
-
-        if( node.hasAttributes() ) {
-            Node idNode = node.getAttributes().getNamedItem("id");
-
-            if( idNode != null ) {
-                id = idNode.getNodeValue().trim();
-            }
-            else {
-                return null;
-            }
-        }
-        else {
-            return null;
-        }
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attribute = attributes.item(i);
-
-            if( attribute.getNodeName().equalsIgnoreCase("custom") ) {
-                if( attribute.hasChildNodes() && attribute.getFirstChild().getNodeValue().trim().equalsIgnoreCase("true") ) {
-                    if( accountNumber != null && accountNumber.equals(ctx.getAccountNumber()) ) {
-                        return new ResourceStatus(id, MachineImageState.ACTIVE);
-                    }
-                }
-                else {
-                    if( accountNumber == null ) {
-                        return new ResourceStatus(id, MachineImageState.ACTIVE);
-                    }
-                }
-            }
-        }
-        return null;
-    }
 }
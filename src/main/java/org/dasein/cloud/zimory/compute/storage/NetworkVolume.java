@@ -42,6 +42,17 @@ import org.dasein.cloud.zimory.NoContextException;
 import org.dasein.cloud.zimory.Zimory;
 import org.dasein.cloud.zimory.ZimoryConfigurationException;
 import org.dasein.cloud.zimory.ZimoryMethod;
+import org.dasein.cloud.zimory.util.InvalidationBus;
+import org.dasein.cloud.zimory.util.InventoryCache;
+import org.dasein.cloud.zimory.util.InventorySnapshot;
+import org.dasein.cloud.zimory.util.ListQuery;
+import org.dasein.cloud.zimory.util.LookupBatcher;
+import org.dasein.cloud.zimory.util.NegativeCache;
+import org.dasein.cloud.zimory.util.OffHeapMap;
+import org.dasein.cloud.zimory.util.PagedListing;
+import org.dasein.cloud.zimory.util.PollSchedule;
+import org.dasein.cloud.zimory.util.StatusExtractor;
+import org.dasein.cloud.zimory.util.XmlStream;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Storage;
@@ -56,7 +67,10 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Implements support for Zimory network volumes as a Dasein Cloud volume.
@@ -68,6 +82,13 @@ import java.util.Locale;
 public class NetworkVolume extends AbstractVolumeSupport {
     static private final Logger logger = Zimory.getLogger(NetworkVolume.class);
 
+    static private final Map<ListQuery.Field,String> FIELDS = new EnumMap<ListQuery.Field, String>(ListQuery.Field.class);
+
+    static {
+        FIELDS.put(ListQuery.Field.NAME, "networkStorageName");
+    }
+
+
     private Zimory provider;
 
     public NetworkVolume(@Nonnull Zimory provider) {
@@ -125,17 +146,26 @@ public class NetworkVolume extends AbstractVolumeSupport {
         xml.append("</networkStorageCreationInfoMPO>");
 
         ZimoryMethod method = new ZimoryMethod(provider);
-        method.postObject("networkStorages", xml.toString());
+        final String volumeId = method.create("networkStorages", xml.toString());
+
+        if( volumeId == null ) {
+            logger.error("Unable to POST to network storages endpoint");
+            throw new CloudException("Unable to POST to network storages endpoint");
+        }
+        InvalidationBus.getInstance(provider).publish("networkStorages", volumeId, InvalidationBus.Change.CREATED);
         long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
 
-        while( timeout > System.currentTimeMillis() ) {
-            for( Volume v : listVolumes() ) {
-                if( v.getName().equalsIgnoreCase(options.getName()) ) {
-                    return v.getProviderVolumeId();
-                }
+        String key = "networkStorages|" + productId + "|" + regionId;
+        Volume volume = PollSchedule.learned(provider, key).await(new PollSchedule.Probe<Volume>() {
+            @Override
+            public @Nullable Volume probe() throws CloudException, InternalException {
+                return fetchVolume(volumeId);
             }
-            try { Thread.sleep(15000L); }
-            catch( InterruptedException ignore ) { }
+        }, timeout - System.currentTimeMillis());
+
+        if( volume != null ) {
+            getInventoryCache().put(volumeId, volume);
+            return volumeId;
         }
         /*
         Document doc = method.postObject("networkStorages", xml.toString());
@@ -183,6 +213,57 @@ public class NetworkVolume extends AbstractVolumeSupport {
         return "network storage";
     }
 
+    private @Nullable Volume fetchVolume(@Nonnull String volumeId) throws CloudException, InternalException {
+        ZimoryMethod method = new ZimoryMethod(provider);
+
+        Document response = method.getObject("networkStorages/" + volumeId);
+
+        if( response == null ) {
+            return null;
+        }
+        NodeList list = response.getElementsByTagName("networkStorage");
+
+        for( int i=0; i<list.getLength(); i++ ) {
+            Volume v = toVolume(list.item(i));
+
+            if( v != null ) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    private @Nonnull InventoryCache<Volume> getInventoryCache() throws CloudException {
+        return InventoryCache.getInstance(provider, "networkStorages", CacheLevel.REGION_ACCOUNT);
+    }
+
+    private @Nonnull NegativeCache getNegativeCache() throws CloudException {
+        return NegativeCache.getInstance(provider, "networkStorages", CacheLevel.REGION_ACCOUNT);
+    }
+
+    /**
+     * Provides the volume snapshot when snapshot caching has been enabled through the <code>volumeCacheTTL</code>
+     * custom property. Setting <code>volumeCacheHardTTL</code> to a longer period allows snapshots up to that age
+     * to be served while a background refresh replaces them.
+     * @return a snapshot of all volumes or <code>null</code> if caching is disabled
+     * @throws CloudException an error occurred loading the volumes from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud while loading the volumes
+     */
+    private @Nullable InventorySnapshot<Volume> getSnapshot() throws CloudException, InternalException {
+        long ttl = provider.getCustomLong("volumeCacheTTL", 0L);
+        long hardTtl = provider.getCustomLong("volumeCacheHardTTL", ttl);
+
+        if( ttl < 1L && hardTtl < 1L ) {
+            return null;
+        }
+        return getInventoryCache().get(ttl, hardTtl, new InventoryCache.Loader<Volume>() {
+            @Override
+            public @Nonnull Map<String, Volume> load() throws CloudException, InternalException {
+                return loadVolumes(true);
+            }
+        });
+    }
+
     @Override
     public Volume getVolume(@Nonnull String volumeId) throws InternalException, CloudException {
         APITrace.begin(provider, "getVolume");
@@ -198,23 +279,28 @@ public class NetworkVolume extends AbstractVolumeSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            ZimoryMethod method = new ZimoryMethod(provider);
-
-            Document response = method.getObject("networkStorages/" + volumeId);
+            NegativeCache missing = getNegativeCache();
 
-            if( response == null ) {
+            if( missing.isMissing(volumeId) ) {
                 return null;
             }
-            NodeList list = response.getElementsByTagName("networkStorage");
-
-            for( int i=0; i<list.getLength(); i++ ) {
-                Volume v = toVolume(list.item(i));
+            LookupBatcher<Volume> batcher = LookupBatcher.getInstance(provider, "networkStorages", CacheLevel.REGION_ACCOUNT);
+            Volume volume = batcher.get(provider, volumeId, new LookupBatcher.Source<Volume>() {
+                @Override
+                public @Nullable Volume fetch(@Nonnull String id) throws CloudException, InternalException {
+                    return fetchVolume(id);
+                }
 
-                if( v != null ) {
-                    return v;
+                @Override
+                public @Nonnull Map<String, Volume> fetchAll() throws CloudException, InternalException {
+                    return loadVolumes(false);
                 }
+            });
+
+            if( volume == null ) {
+                missing.markMissing(volumeId);
             }
-            return null;
+            return volume;
         }
         finally {
             APITrace.end();
@@ -283,23 +369,28 @@ public class NetworkVolume extends AbstractVolumeSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
+            InventorySnapshot<Volume> snapshot = getSnapshot();
+
+            if( snapshot != null ) {
+                ArrayList<ResourceStatus> volumes = new ArrayList<ResourceStatus>();
+
+                for( Volume v : snapshot ) {
+                    volumes.add(new ResourceStatus(v.getProviderVolumeId(), v.getCurrentState()));
+                }
+                return volumes;
+            }
             ZimoryMethod method = new ZimoryMethod(provider);
 
-            Document response = method.getObject("networkStorages");
+            String response = method.getString("networkStorages");
 
             if( response == null ) {
                 logger.error("Unable to identify endpoint for network storage in Zimory");
                 throw new CloudException("Unable to identify endpoint for volumes (network storage)");
             }
             ArrayList<ResourceStatus> volumes = new ArrayList<ResourceStatus>();
-            NodeList list = response.getElementsByTagName("networkStorage");
 
-            for( int i=0; i<list.getLength(); i++ ) {
-                ResourceStatus v = toStatus(list.item(i));
-
-                if( v != null ) {
-                    volumes.add(v);
-                }
+            for( StatusExtractor.Entry entry : StatusExtractor.extract(response, "networkStorage") ) {
+                volumes.add(new ResourceStatus(entry.getId(), VolumeState.AVAILABLE));
             }
             return volumes;
         }
@@ -317,29 +408,113 @@ public class NetworkVolume extends AbstractVolumeSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            ZimoryMethod method = new ZimoryMethod(provider);
+            InventorySnapshot<Volume> snapshot = getSnapshot();
+
+            if( snapshot == null ) {
+                snapshot = new InventorySnapshot<Volume>(loadVolumes(false), System.currentTimeMillis());
+            }
+            return snapshot;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            Document response = method.getObject("networkStorages");
 
-            if( response == null ) {
-                logger.error("Unable to identify endpoint for network storage in Zimory");
-                throw new CloudException("Unable to identify endpoint for volumes (network storage)");
+    /**
+     * Streams the volumes straight from the Zimory listing, parsing and mapping each one only when iteration reaches
+     * it, so a caller that stops early does not pay for the rest of the listing. Unlike the cached listings, every
+     * call fetches the listing from Zimory (or the response cache).
+     * The stream holds a connection to Zimory until it is iterated to the end or closed, and may be iterated once.
+     * @return the volumes, mapped on demand; close it if iteration stops early
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred requesting the listing from Zimory
+     * @see XmlStream
+     */
+    public @Nonnull XmlStream<Volume> streamVolumes() throws InternalException, CloudException {
+        APITrace.begin(provider, "streamVolumes");
+        try {
+            return XmlStream.stream(provider, "networkStorages", "networkStorage", new OffHeapMap.Materializer<Volume>() {
+                @Override
+                public @Nullable Volume materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toVolume(node);
+                }
+            });
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Lists the network storage matching a query. Only the name can be filtered on; Zimory is asked to filter and
+     * page the listing and the name filter is also applied to the results (see {@link PagedListing}).
+     * @param query the criteria for the listing
+     * @return the matching volumes, fetched a page at a time as iteration proceeds
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred fetching the first page from Zimory
+     */
+    public @Nonnull Iterable<Volume> listVolumes(@Nonnull ListQuery query) throws InternalException, CloudException {
+        APITrace.begin(provider, "listVolumes");
+        try {
+            return PagedListing.list(provider, "networkStorages", "networkStorage", FIELDS, query, new OffHeapMap.Materializer<Volume>() {
+                @Override
+                public @Nullable Volume materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toVolume(node);
+                }
+            });
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull Map<String,Volume> loadVolumes(boolean cached) throws CloudException, InternalException {
+        ZimoryMethod method = new ZimoryMethod(provider);
+
+        Document response = method.getObject("networkStorages");
+
+        if( response == null ) {
+            logger.error("Unable to identify endpoint for network storage in Zimory");
+            throw new CloudException("Unable to identify endpoint for volumes (network storage)");
+        }
+        NodeList list = response.getElementsByTagName("networkStorage");
+
+        if( cached && OffHeapMap.isEnabled(provider, list.getLength()) ) {
+            OffHeapMap.Builder<Volume> builder = new OffHeapMap.Builder<Volume>();
+
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new NoContextException();
             }
-            ArrayList<Volume> volumes = new ArrayList<Volume>();
-            NodeList list = response.getElementsByTagName("networkStorage");
+            String regionId = ctx.getRegionId();
 
             for( int i=0; i<list.getLength(); i++ ) {
-                Volume v = toVolume(list.item(i));
+                String id = toVolumeId(list.item(i));
 
-                if( v != null ) {
-                    volumes.add(v);
+                // toVolume() accepts any network storage with an ID and places it in the current region
+                if( id != null ) {
+                    builder.add(id, regionId, list.item(i));
                 }
             }
-            return volumes;
+            return builder.build(new OffHeapMap.Materializer<Volume>() {
+                @Override
+                public @Nullable Volume materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toVolume(node);
+                }
+            }, OffHeapMap.getHotSize(provider));
         }
-        finally {
-            APITrace.end();
+        LinkedHashMap<String,Volume> volumes = new LinkedHashMap<String, Volume>();
+
+        for( int i=0; i<list.getLength(); i++ ) {
+            Volume v = toVolume(list.item(i));
+
+            if( v != null ) {
+                volumes.put(v.getProviderVolumeId(), v);
+            }
         }
+        return volumes;
     }
 
     @Override
@@ -349,6 +524,7 @@ public class NetworkVolume extends AbstractVolumeSupport {
             ZimoryMethod method = new ZimoryMethod(provider);
 
             method.delete("networkStorages/" + volumeId);
+            InvalidationBus.getInstance(provider).publish("networkStorages", volumeId, InvalidationBus.Change.REMOVED);
         }
         finally {
             APITrace.end();
@@ -360,22 +536,17 @@ public class NetworkVolume extends AbstractVolumeSupport {
         return new String[0];
     }
 
-    private @Nullable ResourceStatus toStatus(@Nullable Node node) throws CloudException, InternalException {
-        if( node == null ) {
-            return null;
-        }
-        ProviderContext ctx = provider.getContext();
+    private @Nullable String toVolumeId(@Nonnull Node node) {
+        NodeList attributes = node.getChildNodes();
 
-        if( ctx == null ) {
-            throw new NoContextException();
-        }
-        VolumeState state = VolumeState.AVAILABLE;
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
 
-        Node idNode = node.getAttributes().getNamedItem("id");
-        if( idNode == null ) {
-            return null;
+            if( attribute.getNodeName().equalsIgnoreCase("networkStorageId") && attribute.hasChildNodes() ) {
+                return attribute.getFirstChild().getNodeValue().trim();
+            }
         }
-        return new ResourceStatus(idNode.getNodeValue().trim(), state);
+        return null;
     }
 
     private @Nullable Volume toVolume(@Nullable Node node) throws CloudException, InternalException {
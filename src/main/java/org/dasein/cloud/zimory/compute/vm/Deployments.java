@@ -40,8 +40,23 @@ import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.zimory.NoContextException;
 import org.dasein.cloud.zimory.Zimory;
-import org.dasein.cloud.zimory.ZimoryConfigurationException;
 import org.dasein.cloud.zimory.ZimoryMethod;
+import org.dasein.cloud.zimory.util.BulkRunner;
+import org.dasein.cloud.zimory.util.IncrementalMapper;
+import org.dasein.cloud.zimory.util.InvalidationBus;
+import org.dasein.cloud.zimory.util.InventoryCache;
+import org.dasein.cloud.zimory.util.InventorySnapshot;
+import org.dasein.cloud.zimory.util.ListQuery;
+import org.dasein.cloud.zimory.util.LookupBatcher;
+import org.dasein.cloud.zimory.util.NegativeCache;
+import org.dasein.cloud.zimory.util.OffHeapMap;
+import org.dasein.cloud.zimory.util.Outcome;
+import org.dasein.cloud.zimory.util.PagedListing;
+import org.dasein.cloud.zimory.util.PollSchedule;
+import org.dasein.cloud.zimory.util.SettableFuture;
+import org.dasein.cloud.zimory.util.StateWatcher;
+import org.dasein.cloud.zimory.util.StatusExtractor;
+import org.dasein.cloud.zimory.util.XmlStream;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Megabyte;
@@ -50,13 +65,21 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Implements support for Zimory virtual guests as Dasein Cloud virtual machines.
@@ -68,6 +91,22 @@ import java.util.Map;
 public class Deployments extends AbstractVMSupport {
     static private final Logger logger = Zimory.getLogger(Deployments.class);
 
+    static private final Map<ListQuery.Field,String> FIELDS = new EnumMap<ListQuery.Field, String>(ListQuery.Field.class);
+
+    static {
+        FIELDS.put(ListQuery.Field.LOCATION, "locationId");
+        FIELDS.put(ListQuery.Field.PROVIDER, "providerId");
+        FIELDS.put(ListQuery.Field.STATE, "state");
+        FIELDS.put(ListQuery.Field.NAME, "name");
+    }
+
+    static private final InventorySnapshot.RegionMapper<VirtualMachine> REGIONS = new InventorySnapshot.RegionMapper<VirtualMachine>() {
+        @Override
+        public @Nullable String getRegionId(@Nonnull VirtualMachine vm) {
+            return vm.getProviderRegionId();
+        }
+    };
+
     private Zimory provider;
 
     public Deployments(@Nonnull Zimory provider) {
@@ -130,6 +169,117 @@ public class Deployments extends AbstractVMSupport {
         return mi;
     }
 
+    private @Nullable VirtualMachine fetchVirtualMachine(@Nonnull String vmId) throws CloudException, InternalException {
+        ZimoryMethod method = new ZimoryMethod(provider);
+
+        Document response = method.getObject("deployments/" + vmId);
+
+        if( response == null ) {
+            return null;
+        }
+        NodeList list = response.getElementsByTagName("deployment");
+
+        for( int i=0; i<list.getLength(); i++ ) {
+            VirtualMachine vm = toVirtualMachine(list.item(i));
+
+            if( vm != null ) {
+                return vm;
+            }
+        }
+        return null;
+    }
+
+    private int getBulkParallelism() {
+        return (int)Math.max(1L, provider.getCustomLong("bulkParallelism", 10L));
+    }
+
+    private @Nonnull IncrementalMapper<VirtualMachine> getIncrementalMapper() throws CloudException {
+        return IncrementalMapper.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+    }
+
+    private @Nonnull InventoryCache<VirtualMachine> getInventoryCache() throws CloudException {
+        return InventoryCache.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+    }
+
+    private @Nonnull NegativeCache getNegativeCache() throws CloudException {
+        return NegativeCache.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+    }
+
+    /**
+     * Provides the account-wide deployment snapshot when snapshot caching has been enabled through the
+     * <code>deploymentCacheTTL</code> custom property. Setting <code>deploymentCacheHardTTL</code> to a longer
+     * period allows snapshots up to that age to be served while a background refresh replaces them.
+     * @return a snapshot of all deployments in the account across all regions or <code>null</code> if caching is disabled
+     * @throws CloudException an error occurred loading the deployments from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud while loading the deployments
+     */
+    private @Nullable InventorySnapshot<VirtualMachine> getSnapshot() throws CloudException, InternalException {
+        long ttl = getSnapshotTTL();
+        long hardTtl = provider.getCustomLong("deploymentCacheHardTTL", ttl);
+
+        if( ttl < 1L && hardTtl < 1L ) {
+            return null;
+        }
+        return getInventoryCache().get(ttl, hardTtl, new InventoryCache.Loader<VirtualMachine>() {
+            @Override
+            public @Nonnull Map<String, VirtualMachine> load() throws CloudException, InternalException {
+                return loadDeployments(true);
+            }
+        });
+    }
+
+    /**
+     * Provides the account-wide snapshot of deployment status under the same <code>deploymentCacheTTL</code> and
+     * <code>deploymentCacheHardTTL</code> limits as the deployment snapshot. Status is cached separately because
+     * it reports deployments that the deployment snapshot leaves out, such as inactive deployments with no state.
+     * @return a snapshot of the status of all deployments in the account or <code>null</code> if caching is disabled
+     * @throws CloudException an error occurred loading the status from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud while loading the status
+     */
+    private @Nullable InventorySnapshot<StatusExtractor.Entry> getStatusSnapshot() throws CloudException, InternalException {
+        long ttl = getSnapshotTTL();
+        long hardTtl = provider.getCustomLong("deploymentCacheHardTTL", ttl);
+
+        if( ttl < 1L && hardTtl < 1L ) {
+            return null;
+        }
+        InventoryCache<StatusExtractor.Entry> cache = InventoryCache.getInstance(provider, "deploymentStatus", "deployments", CacheLevel.CLOUD_ACCOUNT);
+
+        return cache.get(ttl, hardTtl, new InventoryCache.Loader<StatusExtractor.Entry>() {
+            @Override
+            public @Nonnull Map<String, StatusExtractor.Entry> load() throws CloudException, InternalException {
+                return loadStatus();
+            }
+        });
+    }
+
+    private long getSnapshotTTL() {
+        return provider.getCustomLong("deploymentCacheTTL", 0L);
+    }
+
+    private @Nonnull PollSchedule.Probe<VirtualMachine> getLaunchProbe(@Nonnull final String vmId) {
+        return new PollSchedule.Probe<VirtualMachine>() {
+            @Override
+            public @Nullable VirtualMachine probe() throws CloudException, InternalException {
+                VirtualMachine vm = fetchVirtualMachine(vmId);
+
+                if( vm != null ) {
+                    getInventoryCache().put(vmId, vm);
+                }
+                return vm;
+            }
+        };
+    }
+
+    private @Nonnull PollSchedule getLaunchSchedule(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        return PollSchedule.learned(provider, "deployments|" + withLaunchOptions.getMachineImageId() + "|" + withLaunchOptions.getStandardProductId() + "|" + ctx.getRegionId());
+    }
+
     @Override
     public VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
         String[] parts = productId.split(":");
@@ -178,24 +328,39 @@ public class Deployments extends AbstractVMSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            ZimoryMethod method = new ZimoryMethod(provider);
+            long ttl = getSnapshotTTL();
 
-            Document response = method.getObject("deployments/" + vmId);
+            if( ttl > 0L ) {
+                InventorySnapshot<VirtualMachine> snapshot = getInventoryCache().peek(ttl);
+                VirtualMachine vm = (snapshot == null ? null : snapshot.get(vmId));
 
-            if( response == null ) {
-                logger.error("Unable to identify endpoint for deployments in Zimory");
-                throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
+                if( vm != null ) {
+                    return (ctx.getRegionId().equals(vm.getProviderRegionId()) ? vm : null);
+                }
             }
-            NodeList list = response.getElementsByTagName("deployment");
+            NegativeCache missing = getNegativeCache();
 
-            for( int i=0; i<list.getLength(); i++ ) {
-                VirtualMachine vm = toVirtualMachine(list.item(i));
+            if( missing.isMissing(vmId) ) {
+                return null;
+            }
+            LookupBatcher<VirtualMachine> batcher = LookupBatcher.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+            VirtualMachine vm = batcher.get(provider, vmId, new LookupBatcher.Source<VirtualMachine>() {
+                @Override
+                public @Nullable VirtualMachine fetch(@Nonnull String id) throws CloudException, InternalException {
+                    return fetchVirtualMachine(id);
+                }
 
-                if( vm != null ) {
-                    return vm;
+                @Override
+                public @Nonnull Map<String, VirtualMachine> fetchAll() throws CloudException, InternalException {
+                    return loadDeployments(false);
                 }
+            });
+
+            if( vm == null ) {
+                missing.markMissing(vmId);
+                return null;
             }
-            return null;
+            return (ctx.getRegionId().equals(vm.getProviderRegionId()) ? vm : null);
         }
         finally {
             APITrace.end();
@@ -279,95 +444,219 @@ public class Deployments extends AbstractVMSupport {
 
     // <qualifierId>7</qualifierId>
 
+    private @Nonnull <T> T join(@Nonnull Future<T> future) throws CloudException, InternalException {
+        try {
+            return future.get();
+        }
+        catch( InterruptedException e ) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
     @Override
     public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
         APITrace.begin(provider, "launchVirtualMachine");
         try {
-            ProviderContext ctx = provider.getContext();
+            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+            String vmId = submit(withLaunchOptions);
+            VirtualMachine vm = getLaunchSchedule(withLaunchOptions).await(getLaunchProbe(vmId), timeout - System.currentTimeMillis());
 
-            if( ctx == null ) {
-                throw new NoContextException();
+            if( vm != null ) {
+                return vm;
             }
-            String[] parts = ctx.getRegionId().split(":");
-            StringBuilder xml = new StringBuilder();
+            logger.error("Timed out waiting for deployment " + vmId + " to appear in Zimory");
+            throw new CloudException("Deployment " + vmId + " was accepted by Zimory but timed out before it appeared");
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            xml.append("<deploymentCreationInfo>");
-            xml.append("<applianceId>").append(Zimory.escapeXml(withLaunchOptions.getMachineImageId())).append("</applianceId>");
-            xml.append("<name>").append(Zimory.escapeXml(withLaunchOptions.getHostName())).append("</name>");
-            xml.append("<description>").append(Zimory.escapeXml(withLaunchOptions.getDescription())).append("</description>");
+    /**
+     * Launches a virtual machine without holding the calling thread, or any other thread, while Zimory provisions
+     * it. The returned future completes with the virtual machine once it shows up in Zimory and fails with the
+     * underlying error or with a {@link CloudException} if it does not show up within 20 minutes. Cancelling the
+     * future stops any further checks; a deployment that Zimory has already accepted is not terminated.
+     * @param withLaunchOptions the options for the new virtual machine
+     * @return a future for the launched virtual machine
+     */
+    public @Nonnull Future<VirtualMachine> launchAsync(@Nonnull final VMLaunchOptions withLaunchOptions) {
+        final SettableFuture<VirtualMachine> future = new SettableFuture<VirtualMachine>();
+        final long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+
+        PollSchedule.getIoExecutor().execute(new Runnable() {
+            public void run() {
+                if( future.isDone() ) {
+                    return;
+                }
+                try {
+                    String vmId;
 
-            VirtualMachineProduct product = getProduct(withLaunchOptions.getStandardProductId());
+                    APITrace.begin(provider, "launchVirtualMachine");
+                    try {
+                        vmId = submit(withLaunchOptions);
+                    }
+                    finally {
+                        APITrace.end();
+                    }
+                    getLaunchSchedule(withLaunchOptions).submit(getLaunchProbe(vmId), Math.max(0L, timeout - System.currentTimeMillis()), future);
+                }
+                catch( Throwable t ) {
+                    future.fail(t);
+                }
+            }
+        });
+        return future;
+    }
 
-            if( product == null ) {
-                logger.error("Attempt to launch a VM with an unknown product " + withLaunchOptions.getStandardProductId());
-                throw new CloudException("Unknown product: " + withLaunchOptions.getStandardProductId());
+    /**
+     * Launches many virtual machines in the current region at once. The product, qualifier, and delegate role
+     * lookups are done once for the whole batch, the deployment requests are sent with at most
+     * <code>launchParallelism</code> in flight, and all new deployments are then waited for through a single shared
+     * poll of the deployment listing.
+     * @param withLaunchOptions the options for each new virtual machine
+     * @return one outcome per launch option in the same order; a failed outcome carries the deployment ID if Zimory accepted the request
+     * @throws CloudException an error occurred resolving the shared prerequisites in Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull List<Outcome<VirtualMachine>> launchMany(@Nonnull List<VMLaunchOptions> withLaunchOptions) throws CloudException, InternalException {
+        APITrace.begin(provider, "launchManyVirtualMachines");
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new NoContextException();
             }
-            String[] id = product.getProviderProductId().split(":");
+            ArrayList<Outcome<VirtualMachine>> results = new ArrayList<Outcome<VirtualMachine>>();
 
-            xml.append("<performanceUnit>").append(Zimory.escapeXml(id[0])).append("</performanceUnit>");
-            xml.append("<memoryMb>").append(String.valueOf(product.getRamSize().intValue())).append("</memoryMb>");
-            xml.append("<virtualCPUs>").append(String.valueOf(product.getCpuCount())).append("</virtualCPUs>");
-            xml.append("<useExternalIp>true</useExternalIp>");
-            xml.append("<permanentIp>false</permanentIp>");
-            if( withLaunchOptions.getVlanId() != null ) {
-                xml.append("<network><networkId>").append(Zimory.escapeXml(withLaunchOptions.getVlanId())).append("</networkId></network>");
+            if( withLaunchOptions.isEmpty() ) {
+                return results;
             }
-            if( !withLaunchOptions.getMetaData().isEmpty() ) {
-                // TODO: map tags to custom deployment properties
-                xml.append("<customProperties>");
-                for( Map.Entry<String,Object> entry : withLaunchOptions.getMetaData().entrySet() ) {
-                    xml.append("<customProperty><id>").append(Zimory.escapeXml(entry.getKey())).append("</id>");
-                    xml.append("<value>").append(Zimory.escapeXml(entry.getValue().toString())).append("</value></customProperty>");
+            // validate every request before spending any API calls on the shared prerequisites
+            final ArrayList<Outcome<VirtualMachineProduct>> validated = new ArrayList<Outcome<VirtualMachineProduct>>();
+            boolean launchable = false;
+
+            for( VMLaunchOptions options : withLaunchOptions ) {
+                try {
+                    validated.add(new Outcome<VirtualMachineProduct>(null, validate(options)));
+                    launchable = true;
+                }
+                catch( CloudException e ) {
+                    validated.add(new Outcome<VirtualMachineProduct>(null, e));
                 }
-                xml.append("</customProperties>");
             }
-            xml.append("<locationId>").append(parts[0]).append("</locationId>");
-            xml.append("<providerId>").append(parts[1]).append("</providerId>");
-
-            String qualifierId = provider.getQualifierId(parts[0], parts[1]);
-
-            xml.append("<qualifierId>").append(qualifierId).append("</qualifierId>");
+            final String qualifierId, delegateRoleId;
+
+            if( launchable ) {
+                final String[] parts = ctx.getRegionId().split(":");
+                ExecutorService executor = provider.getBackgroundExecutor();
+                Future<String> qualifierLookup = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws CloudException, InternalException {
+                        return provider.getQualifierId(parts[0], parts[1]);
+                    }
+                });
+                Future<String> delegateRoleLookup = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws CloudException, InternalException {
+                        return provider.getDelegateRoleId();
+                    }
+                });
 
+                qualifierId = join(qualifierLookup);
+                delegateRoleId = join(delegateRoleLookup);
+            }
+            else {
+                qualifierId = null;
+                delegateRoleId = null;
+            }
+            ArrayList<BulkRunner.Task<String>> requests = new ArrayList<BulkRunner.Task<String>>();
 
-            String delegateRoleId = provider.getDelegateRoleId();
+            for( int i=0; i<withLaunchOptions.size(); i++ ) {
+                final VMLaunchOptions options = withLaunchOptions.get(i);
+                final Outcome<VirtualMachineProduct> check = validated.get(i);
 
-            xml.append("<defaultDelegateRole><id>").append(delegateRoleId).append("</id>").append("</defaultDelegateRole>");
+                requests.add(new BulkRunner.Task<String>() {
+                    @Override
+                    public @Nullable String getId() {
+                        return null;
+                    }
 
-            xml.append("</deploymentCreationInfo>");
+                    @Override
+                    public @Nonnull String run() throws CloudException, InternalException {
+                        VirtualMachineProduct product = check.getValue();
 
-            ZimoryMethod method = new ZimoryMethod(provider);
-            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+                        if( product == null ) {
+                            throw (CloudException)check.getError();
+                        }
+                        // prerequisites are always resolved when at least one request is valid
+                        //noinspection ConstantConditions
+                        return submit(options, product, qualifierId, delegateRoleId);
+                    }
+                });
+            }
+            int parallelism = (int)Math.max(1L, provider.getCustomLong("launchParallelism", 10L));
+            List<Outcome<String>> submitted = BulkRunner.runAll("Zimory Launch", parallelism, requests);
+            StateWatcher<VirtualMachine> watcher = StateWatcher.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+            InventoryCache.Loader<VirtualMachine> loader = new InventoryCache.Loader<VirtualMachine>() {
+                @Override
+                public @Nonnull Map<String, VirtualMachine> load() throws CloudException, InternalException {
+                    return loadDeployments(false);
+                }
+            };
+            ArrayList<Future<VirtualMachine>> watches = new ArrayList<Future<VirtualMachine>>();
 
-            method.postObject("deployments", xml.toString());
+            for( Outcome<String> outcome : submitted ) {
+                final String vmId = outcome.getValue();
 
-            while( timeout > System.currentTimeMillis() ) {
-                for( VirtualMachine vm : listVirtualMachines() ) {
-                    if( vm.getName().equalsIgnoreCase(withLaunchOptions.getHostName()) ) {
-                        return vm;
-                    }
+                if( vmId == null ) {
+                    watches.add(null);
+                    continue;
                 }
-                try { Thread.sleep(15000L); }
-                catch( InterruptedException ignore ) { }
+                watches.add(watcher.watch(provider, new StateWatcher.Condition<VirtualMachine>() {
+                    @Override
+                    public @Nullable VirtualMachine match(@Nonnull Map<String, VirtualMachine> vms) {
+                        return vms.get(vmId);
+                    }
+                }, CalendarWrapper.MINUTE * 20L, loader));
             }
-            /*
-            Document doc = method.postObject("deployments", xml.toString());
+            for( int i=0; i<submitted.size(); i++ ) {
+                Outcome<String> outcome = submitted.get(i);
+                String vmId = outcome.getValue();
 
-            if( doc == null ) {
-                logger.error("Unable to POST to deployments endpoint");
-                throw new CloudException("Unable to POST to deployments endpoint");
-            }
-            NodeList results = doc.getElementsByTagName("deployment");
+                if( vmId == null ) {
+                    Throwable error = outcome.getError();
 
-            for( int i=0; i<results.getLength(); i++ ) {
-                VirtualMachine vm = toVirtualMachine(results.item(i));
+                    results.add(new Outcome<VirtualMachine>(null, error == null ? new CloudException("Unable to POST to deployments endpoint") : error));
+                    continue;
+                }
+                VirtualMachine vm = StateWatcher.await(watches.get(i));
 
-                if( vm != null ) {
-                    return vm;
+                if( vm == null ) {
+                    results.add(new Outcome<VirtualMachine>(vmId, new CloudException("Deployment " + vmId + " was accepted by Zimory but did not appear in time")));
+                }
+                else {
+                    getInventoryCache().put(vmId, vm);
+                    results.add(new Outcome<VirtualMachine>(vmId, vm));
                 }
             }
-            */
-            logger.error("The POST to create a new virtual machine in Zimory succeeded, but nothing was returned");
-            throw new CloudException("The POST to create a new virtual machine in Zimory succeeded, but nothing was returned");
+            return results;
         }
         finally {
             APITrace.end();
@@ -429,22 +718,13 @@ public class Deployments extends AbstractVMSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            ZimoryMethod method = new ZimoryMethod(provider);
-
-            Document response = method.getObject("deployments");
-
-            if( response == null ) {
-                logger.error("Unable to identify endpoint for deployments in Zimory");
-                throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
-            }
+            InventorySnapshot<StatusExtractor.Entry> snapshot = getStatusSnapshot();
+            Iterable<StatusExtractor.Entry> entries = (snapshot == null ? loadStatus().values() : snapshot);
             ArrayList<ResourceStatus> vms = new ArrayList<ResourceStatus>();
-            NodeList list = response.getElementsByTagName("deployment");
 
-            for( int i=0; i<list.getLength(); i++ ) {
-                ResourceStatus status = toStatus(list.item(i));
-
-                if( status != null ) {
-                    vms.add(status);
+            for( StatusExtractor.Entry entry : entries ) {
+                if( ctx.getRegionId().equals(entry.getRegionId()) ) {
+                    vms.add(new ResourceStatus(entry.getId(), entry.getState() == null ? VmState.PENDING : toState(entry.getState())));
                 }
             }
             return vms;
@@ -463,29 +743,223 @@ public class Deployments extends AbstractVMSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            ZimoryMethod method = new ZimoryMethod(provider);
+            InventorySnapshot<VirtualMachine> snapshot = getSnapshot();
 
-            Document response = method.getObject("deployments");
+            if( snapshot == null ) {
+                snapshot = new InventorySnapshot<VirtualMachine>(loadDeployments(false), System.currentTimeMillis());
+            }
+            return snapshot.inRegion(ctx.getRegionId(), REGIONS);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            if( response == null ) {
-                logger.error("Unable to identify endpoint for deployments in Zimory");
-                throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
+    /**
+     * Lists the virtual machines of every region in the account from a single fetch of the deployments, which
+     * Zimory returns for all regions at once.
+     * @return the virtual machines of each region indexed by region ID
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred in Zimory
+     */
+    public @Nonnull Map<String,Collection<VirtualMachine>> listVirtualMachinesByRegion() throws InternalException, CloudException {
+        APITrace.begin(provider, "listVirtualMachinesByRegion");
+        try {
+            InventorySnapshot<VirtualMachine> snapshot = getSnapshot();
+
+            if( snapshot == null ) {
+                snapshot = new InventorySnapshot<VirtualMachine>(loadDeployments(false), System.currentTimeMillis());
             }
-            ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
-            NodeList list = response.getElementsByTagName("deployment");
+            return snapshot.byRegion(REGIONS);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Streams the virtual machines in the current region straight from the Zimory listing, parsing and mapping each
+     * one only when iteration reaches it, so a caller that stops early does not pay for the rest of the listing.
+     * Unlike the cached listings, every call fetches the listing from Zimory (or the response cache).
+     * The stream holds a connection to Zimory until it is iterated to the end or closed, and may be iterated once.
+     * @return the virtual machines in the current region, mapped on demand; close it if iteration stops early
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred requesting the listing from Zimory
+     * @see XmlStream
+     */
+    public @Nonnull XmlStream<VirtualMachine> streamVirtualMachines() throws InternalException, CloudException {
+        APITrace.begin(provider, "streamVirtualMachines");
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new NoContextException();
+            }
+            final String regionId = ctx.getRegionId();
+
+            return XmlStream.stream(provider, "deployments", "deployment", new OffHeapMap.Materializer<VirtualMachine>() {
+                @Override
+                public @Nullable VirtualMachine materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    VirtualMachine vm = toVirtualMachine(node);
+
+                    return (vm != null && regionId.equals(vm.getProviderRegionId()) ? vm : null);
+                }
+            });
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Lists the deployments matching a query. Zimory is asked to filter and page the listing and the filters are
+     * also applied to the results, so they are correct whether or not Zimory honors the parameters (see
+     * {@link PagedListing}). Unless the query names a location or provider, it is restricted to the current region.
+     * @param query the criteria for the listing
+     * @return the matching virtual machines, fetched a page at a time as iteration proceeds
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred fetching the first page from Zimory
+     */
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines(@Nonnull ListQuery query) throws InternalException, CloudException {
+        APITrace.begin(provider, "listVirtualMachines");
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new NoContextException();
+            }
+            if( query.getLocationId() == null && query.getProviderId() == null ) {
+                query.inRegion(ctx.getRegionId());
+            }
+            return PagedListing.list(provider, "deployments", "deployment", FIELDS, query, new OffHeapMap.Materializer<VirtualMachine>() {
+                @Override
+                public @Nullable VirtualMachine materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toVirtualMachine(node);
+                }
+            });
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull NodeList fetchDeployments() throws CloudException, InternalException {
+        ZimoryMethod method = new ZimoryMethod(provider);
+
+        Document response = method.getObject("deployments");
+
+        if( response == null ) {
+            logger.error("Unable to identify endpoint for deployments in Zimory");
+            throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
+        }
+        return response.getElementsByTagName("deployment");
+    }
+
+    private @Nonnull Map<String,StatusExtractor.Entry> loadStatus() throws CloudException, InternalException {
+        ZimoryMethod method = new ZimoryMethod(provider);
+
+        String response = method.getString("deployments");
+
+        if( response == null ) {
+            logger.error("Unable to identify endpoint for deployments in Zimory");
+            throw new CloudException("Unable to identify endpoint for virtual machines (deployments)");
+        }
+        LinkedHashMap<String,StatusExtractor.Entry> entries = new LinkedHashMap<String, StatusExtractor.Entry>();
+
+        for( StatusExtractor.Entry entry : StatusExtractor.extract(response, "deployment") ) {
+            entries.put(entry.getId(), entry);
+        }
+        return entries;
+    }
+
+    private @Nonnull Map<String,VirtualMachine> loadDeployments(boolean cached) throws CloudException, InternalException {
+        NodeList list = fetchDeployments();
+
+        if( cached && OffHeapMap.isEnabled(provider, list.getLength()) ) {
+            OffHeapMap.Builder<VirtualMachine> builder = new OffHeapMap.Builder<VirtualMachine>();
+
+            for( int i=0; i<list.getLength(); i++ ) {
+                Node node = list.item(i);
+                String id = toDeploymentId(node);
+
+                // apply the same acceptance rules as toVirtualMachine() without mapping the deployment
+                if( id != null && (getChildValue(node, "state") != null || "true".equalsIgnoreCase(getChildValue(node, "active"))) ) {
+                    builder.add(id, getChildValue(node, "locationId") + ":" + getChildValue(node, "providerId"), node);
+                }
+            }
+            return builder.build(new OffHeapMap.Materializer<VirtualMachine>() {
+                @Override
+                public @Nullable VirtualMachine materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toVirtualMachine(node);
+                }
+            }, OffHeapMap.getHotSize(provider));
+        }
+        return mapDeployments(list);
+    }
+
+    /**
+     * Maps a full listing of deployments. When <code>incrementalMappingTTL</code> is set, the listing is retained
+     * for that long so that the next listing re-maps only the deployments that changed; otherwise every deployment
+     * is mapped and nothing is retained.
+     * @param list the deployment elements of the listing
+     * @return the mapped deployments indexed by ID in listing order
+     * @throws CloudException an error occurred mapping a deployment
+     * @throws InternalException an error occurred within Dasein Cloud mapping a deployment
+     */
+    private @Nonnull Map<String,VirtualMachine> mapDeployments(@Nonnull NodeList list) throws CloudException, InternalException {
+        long retention = provider.getCustomLong("incrementalMappingTTL", 0L);
+
+        if( retention < 1L ) {
+            LinkedHashMap<String,VirtualMachine> vms = new LinkedHashMap<String, VirtualMachine>();
 
             for( int i=0; i<list.getLength(); i++ ) {
-                VirtualMachine vm = toVirtualMachine(list.item(i));
+                Node node = list.item(i);
+                String id = toDeploymentId(node);
+                VirtualMachine vm = (id == null ? null : toVirtualMachine(node));
 
                 if( vm != null ) {
-                    vms.add(vm);
+                    vms.put(id, vm);
                 }
             }
             return vms;
         }
-        finally {
-            APITrace.end();
+        IncrementalMapper.Mapping<VirtualMachine> mapping = getIncrementalMapper().map(list, new IncrementalMapper.Mapper<VirtualMachine>() {
+            @Override
+            public @Nullable String getId(@Nonnull Node node) {
+                return toDeploymentId(node);
+            }
+
+            @Override
+            public @Nullable VirtualMachine map(@Nonnull Node node) throws CloudException, InternalException {
+                return toVirtualMachine(node);
+            }
+        }, retention);
+
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Deployment changes since last poll: " + mapping.getDiff());
         }
+        return mapping.getResources();
+    }
+
+    /**
+     * Starts many deployments at once with at most <code>bulkParallelism</code> requests in flight.
+     * @param vmIds the IDs of the deployments to start
+     * @return one outcome per ID in the same order
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    public @Nonnull List<Outcome<Void>> startAll(@Nonnull Collection<String> vmIds) throws InternalException {
+        ArrayList<BulkRunner.Task<Void>> tasks = new ArrayList<BulkRunner.Task<Void>>();
+
+        for( String vmId : vmIds ) {
+            tasks.add(new VmTask(vmId) {
+                @Override
+                public @Nullable Void run() throws CloudException, InternalException {
+                    start(vmId);
+                    return null;
+                }
+            });
+        }
+        return BulkRunner.runAll("Zimory Start", getBulkParallelism(), tasks);
     }
 
     @Override
@@ -495,6 +969,7 @@ public class Deployments extends AbstractVMSupport {
             ZimoryMethod method = new ZimoryMethod(provider);
 
             method.postString("deployments/" + vmId + "/start", "");
+            InvalidationBus.getInstance(provider).publish("deployments", vmId, InvalidationBus.Change.CHANGED);
         }
         finally {
             APITrace.end();
@@ -508,12 +983,157 @@ public class Deployments extends AbstractVMSupport {
             ZimoryMethod method = new ZimoryMethod(provider);
 
             method.postString("deployments/" + vmId + "/stop", "");
+            InvalidationBus.getInstance(provider).publish("deployments", vmId, InvalidationBus.Change.CHANGED);
         }
         finally {
             APITrace.end();
         }
     }
 
+    /**
+     * Validates the launch options, sends the deployment request to Zimory, and announces the new deployment. The
+     * qualifier and delegate role lookups run on the provider's background executor while the product is looked up
+     * on the calling thread, and all three are joined before the request is sent.
+     * @param withLaunchOptions the options for the new virtual machine
+     * @return the ID of the new deployment
+     * @throws CloudException an error occurred in Zimory or the options were invalid
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nonnull String submit(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        // validate the request before spending any API calls on its prerequisites
+        VirtualMachineProduct product = validate(withLaunchOptions);
+        final String[] parts = ctx.getRegionId().split(":");
+        ExecutorService executor = provider.getBackgroundExecutor();
+        Future<String> qualifierId = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws CloudException, InternalException {
+                return provider.getQualifierId(parts[0], parts[1]);
+            }
+        });
+        Future<String> delegateRoleId = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws CloudException, InternalException {
+                return provider.getDelegateRoleId();
+            }
+        });
+
+        return submit(withLaunchOptions, product, join(qualifierId), join(delegateRoleId));
+    }
+
+    /**
+     * Checks the launch options without going to the cloud: the machine image must be a Zimory appliance ID and
+     * the standard product ID must identify a valid product.
+     * @param withLaunchOptions the options to check
+     * @return the product identified by the options
+     * @throws CloudException the options cannot be launched
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nonnull VirtualMachineProduct validate(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+        try {
+            Long.parseLong(withLaunchOptions.getMachineImageId());
+        }
+        catch( NumberFormatException e ) {
+            logger.error("Attempt to launch a VM from an unknown appliance " + withLaunchOptions.getMachineImageId());
+            throw new CloudException("Unknown machine image: " + withLaunchOptions.getMachineImageId());
+        }
+        VirtualMachineProduct product = getProduct(withLaunchOptions.getStandardProductId());
+
+        if( product == null ) {
+            logger.error("Attempt to launch a VM with an unknown product " + withLaunchOptions.getStandardProductId());
+            throw new CloudException("Unknown product: " + withLaunchOptions.getStandardProductId());
+        }
+        return product;
+    }
+
+    /**
+     * Sends the deployment request to Zimory using prerequisites the caller has already resolved and announces the
+     * new deployment.
+     * @param withLaunchOptions the options for the new virtual machine
+     * @param product the product matching the standard product ID of the options
+     * @param qualifierId the Zimory qualifier for the current region
+     * @param delegateRoleId the delegate role of the current account
+     * @return the ID of the new deployment
+     * @throws CloudException an error occurred in Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nonnull String submit(@Nonnull VMLaunchOptions withLaunchOptions, @Nonnull VirtualMachineProduct product, @Nonnull String qualifierId, @Nonnull String delegateRoleId) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        String[] parts = ctx.getRegionId().split(":");
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<deploymentCreationInfo>");
+        xml.append("<applianceId>").append(Zimory.escapeXml(withLaunchOptions.getMachineImageId())).append("</applianceId>");
+        xml.append("<name>").append(Zimory.escapeXml(withLaunchOptions.getHostName())).append("</name>");
+        xml.append("<description>").append(Zimory.escapeXml(withLaunchOptions.getDescription())).append("</description>");
+
+        String[] id = product.getProviderProductId().split(":");
+
+        xml.append("<performanceUnit>").append(Zimory.escapeXml(id[0])).append("</performanceUnit>");
+        xml.append("<memoryMb>").append(String.valueOf(product.getRamSize().intValue())).append("</memoryMb>");
+        xml.append("<virtualCPUs>").append(String.valueOf(product.getCpuCount())).append("</virtualCPUs>");
+        xml.append("<useExternalIp>true</useExternalIp>");
+        xml.append("<permanentIp>false</permanentIp>");
+        if( withLaunchOptions.getVlanId() != null ) {
+            xml.append("<network><networkId>").append(Zimory.escapeXml(withLaunchOptions.getVlanId())).append("</networkId></network>");
+        }
+        if( !withLaunchOptions.getMetaData().isEmpty() ) {
+            // TODO: map tags to custom deployment properties
+            xml.append("<customProperties>");
+            for( Map.Entry<String,Object> entry : withLaunchOptions.getMetaData().entrySet() ) {
+                xml.append("<customProperty><id>").append(Zimory.escapeXml(entry.getKey())).append("</id>");
+                xml.append("<value>").append(Zimory.escapeXml(entry.getValue().toString())).append("</value></customProperty>");
+            }
+            xml.append("</customProperties>");
+        }
+        xml.append("<locationId>").append(parts[0]).append("</locationId>");
+        xml.append("<providerId>").append(parts[1]).append("</providerId>");
+        xml.append("<qualifierId>").append(qualifierId).append("</qualifierId>");
+        xml.append("<defaultDelegateRole><id>").append(delegateRoleId).append("</id>").append("</defaultDelegateRole>");
+
+        xml.append("</deploymentCreationInfo>");
+
+        ZimoryMethod method = new ZimoryMethod(provider);
+        String vmId = method.create("deployments", xml.toString());
+
+        if( vmId == null ) {
+            logger.error("Unable to POST to deployments endpoint");
+            throw new CloudException("Unable to POST to deployments endpoint");
+        }
+        InvalidationBus.getInstance(provider).publish("deployments", vmId, InvalidationBus.Change.CREATED);
+        return vmId;
+    }
+
+    /**
+     * Stops many deployments at once with at most <code>bulkParallelism</code> requests in flight.
+     * @param vmIds the IDs of the deployments to stop
+     * @param force whether to force the stop
+     * @return one outcome per ID in the same order
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    public @Nonnull List<Outcome<Void>> stopAll(@Nonnull Collection<String> vmIds, final boolean force) throws InternalException {
+        ArrayList<BulkRunner.Task<Void>> tasks = new ArrayList<BulkRunner.Task<Void>>();
+
+        for( String vmId : vmIds ) {
+            tasks.add(new VmTask(vmId) {
+                @Override
+                public @Nullable Void run() throws CloudException, InternalException {
+                    stop(vmId, force);
+                    return null;
+                }
+            });
+        }
+        return BulkRunner.runAll("Zimory Stop", getBulkParallelism(), tasks);
+    }
+
     @Override
     public boolean supportsPauseUnpause(@Nonnull VirtualMachine vm) {
         return false;
@@ -536,6 +1156,7 @@ public class Deployments extends AbstractVMSupport {
             ZimoryMethod method = new ZimoryMethod(provider);
 
             method.delete("deployments/" + vmId);
+            InvalidationBus.getInstance(provider).publish("deployments", vmId, InvalidationBus.Change.REMOVED);
         }
         finally {
             APITrace.end();
@@ -547,6 +1168,54 @@ public class Deployments extends AbstractVMSupport {
         terminate(vmId);
     }
 
+    /**
+     * Terminates many deployments at once with at most <code>bulkParallelism</code> requests in flight.
+     * @param vmIds the IDs of the deployments to terminate
+     * @return one outcome per ID in the same order
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    public @Nonnull List<Outcome<Void>> terminateAll(@Nonnull Collection<String> vmIds) throws InternalException {
+        ArrayList<BulkRunner.Task<Void>> tasks = new ArrayList<BulkRunner.Task<Void>>();
+
+        for( String vmId : vmIds ) {
+            tasks.add(new VmTask(vmId) {
+                @Override
+                public @Nullable Void run() throws CloudException, InternalException {
+                    terminate(vmId);
+                    return null;
+                }
+            });
+        }
+        return BulkRunner.runAll("Zimory Terminate", getBulkParallelism(), tasks);
+    }
+
+    /**
+     * Waits in the background for a deployment to reach the specified state, typically after {@link #start(String)}
+     * or {@link #stop(String, boolean)}. All waiters in the account share a single poll of the deployments.
+     * @param vmId the unique ID of the deployment
+     * @param state the state being waited for
+     * @param timeout how long in milliseconds to wait
+     * @return a future completed with the deployment once in the state or with <code>null</code> on timeout
+     * @throws CloudException no context has been established for this provider
+     */
+    public @Nonnull Future<VirtualMachine> watchState(@Nonnull final String vmId, @Nonnull final VmState state, @Nonnegative long timeout) throws CloudException {
+        StateWatcher<VirtualMachine> watcher = StateWatcher.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+
+        return watcher.watch(provider, new StateWatcher.Condition<VirtualMachine>() {
+            @Override
+            public @Nullable VirtualMachine match(@Nonnull Map<String, VirtualMachine> vms) {
+                VirtualMachine vm = vms.get(vmId);
+
+                return (vm != null && state.equals(vm.getCurrentState()) ? vm : null);
+            }
+        }, timeout, new InventoryCache.Loader<VirtualMachine>() {
+            @Override
+            public @Nonnull Map<String, VirtualMachine> load() throws CloudException, InternalException {
+                return loadDeployments(false);
+            }
+        });
+    }
+
     @Override
     public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
         return new String[0];
@@ -569,52 +1238,24 @@ public class Deployments extends AbstractVMSupport {
         }
     }
 
-    private @Nullable ResourceStatus toStatus(@Nullable Node node) throws CloudException, InternalException {
-        if( node == null ) {
-            return null;
-        }
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new NoContextException();
-        }
-        String regionId = ctx.getRegionId();
-
-        if( regionId == null ) {
-            throw new ZimoryConfigurationException("No region was configured for this request");
-        }
-        String id = null, locationId = null, providerId = null;
-
-        if( node.hasAttributes() ) {
-            Node attr = node.getAttributes().getNamedItem("id");
-
-            if( attr != null ) {
-                id = attr.getNodeValue().trim();
-            }
-        }
-        if( id == null || id.equals("") ) {
-            return null;
-        }
+    private @Nullable String getChildValue(@Nonnull Node node, @Nonnull String name) {
         NodeList attributes = node.getChildNodes();
-        VmState state = VmState.PENDING;
 
         for( int i=0; i<attributes.getLength(); i++ ) {
             Node attr = attributes.item(i);
 
-            if( attr.getNodeName().equalsIgnoreCase("state") && attr.hasChildNodes() ) {
-                state = toState(attr.getFirstChild().getNodeValue().trim());
-            }
-            else if( attr.getNodeName().equalsIgnoreCase("locationId") && attr.hasChildNodes() ) {
-                locationId = attr.getFirstChild().getNodeValue().trim();
+            if( attr.getNodeName().equalsIgnoreCase(name) && attr.hasChildNodes() ) {
+                return attr.getFirstChild().getNodeValue().trim();
             }
-            else if( attr.getNodeName().equalsIgnoreCase("providerId") && attr.hasChildNodes() ) {
-                providerId = attr.getFirstChild().getNodeValue().trim();
-            }
-        }
-        if( !regionId.equals(locationId + ":" + providerId) ) {
-            return null;
         }
-        return new ResourceStatus(id, state);
+        return null;
+    }
+
+    private @Nullable String toDeploymentId(@Nonnull Node node) {
+        Node attr = (node.hasAttributes() ? node.getAttributes().getNamedItem("id") : null);
+        String id = (attr == null ? null : attr.getNodeValue());
+
+        return (id == null || id.trim().equals("") ? null : id.trim());
     }
 
     private @Nullable VirtualMachine toVirtualMachine(@Nullable Node node) throws CloudException, InternalException {
@@ -703,9 +1344,6 @@ public class Deployments extends AbstractVMSupport {
                 privateIp = attr.getFirstChild().getNodeValue().trim();
             }
         }
-        if( !ctx.getRegionId().equals(locationId + ":" + providerId) ) {
-            return null;
-        }
         if( state == null ) {
             if( active == null || !active ) {
                 return null;
@@ -721,8 +1359,8 @@ public class Deployments extends AbstractVMSupport {
 
         vm.setProviderVirtualMachineId(id);
         vm.setProviderOwnerId(ctx.getAccountNumber());
-        vm.setProviderRegionId(ctx.getRegionId());
-        vm.setProviderDataCenterId(ctx.getRegionId());
+        vm.setProviderRegionId(locationId + ":" + providerId);
+        vm.setProviderDataCenterId(locationId + ":" + providerId);
         if( networkId != null && !networkId.equals("") ) {
             vm.setProviderVlanId(networkId);
         }
@@ -758,4 +1396,20 @@ public class Deployments extends AbstractVMSupport {
 
         return vm;
     }
+
+    /**
+     * An operation on a single deployment within a bulk operation.
+     */
+    private abstract class VmTask implements BulkRunner.Task<Void> {
+        protected final String vmId;
+
+        public VmTask(@Nonnull String vmId) {
+            this.vmId = vmId;
+        }
+
+        @Override
+        public @Nonnull String getId() {
+            return vmId;
+        }
+    }
 }
@@ -42,9 +42,20 @@ import org.dasein.cloud.network.SubnetCreateOptions;
 import org.dasein.cloud.network.VLAN;
 import org.dasein.cloud.network.VLANState;
 import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.zimory.NoContextException;
 import org.dasein.cloud.zimory.Zimory;
 import org.dasein.cloud.zimory.ZimoryMethod;
+import org.dasein.cloud.zimory.util.InvalidationBus;
+import org.dasein.cloud.zimory.util.InventoryCache;
+import org.dasein.cloud.zimory.util.InventorySnapshot;
+import org.dasein.cloud.zimory.util.ListQuery;
+import org.dasein.cloud.zimory.util.NegativeCache;
+import org.dasein.cloud.zimory.util.OffHeapMap;
+import org.dasein.cloud.zimory.util.PagedListing;
+import org.dasein.cloud.zimory.util.ResourceCache;
+import org.dasein.cloud.zimory.util.XmlStream;
+import org.dasein.util.CalendarWrapper;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -54,7 +65,10 @@ import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Implements VLAN support in Zimory-based clouds.
@@ -66,6 +80,13 @@ import java.util.Locale;
 public class Networks extends AbstractVLANSupport {
     static private final Logger logger = Zimory.getLogger(Networks.class);
 
+    static private final Map<ListQuery.Field,String> FIELDS = new EnumMap<ListQuery.Field, String>(ListQuery.Field.class);
+
+    static {
+        FIELDS.put(ListQuery.Field.NAME, "networkName");
+    }
+
+
     private Zimory provider;
 
     public Networks(@Nonnull Zimory provider) {
@@ -169,9 +190,11 @@ public class Networks extends AbstractVLANSupport {
                 logger.error("Unable to POST to networks endpoint");
                 throw new CloudException("Unable to POST to networks endpoint");
             }
+            InvalidationBus.getInstance(provider).publish("networks", id, InvalidationBus.Change.CREATED);
             VLAN vlan = getVlan(id);
 
             if( vlan != null ) {
+                getInventoryCache().put(id, vlan);
                 return vlan;
             }
             logger.error("The POST to create a new network in Zimory succeeded, but nothing was returned");
@@ -245,12 +268,85 @@ public class Networks extends AbstractVLANSupport {
 
     @Override
     public VLAN getVlan(@Nonnull String vlanId) throws CloudException, InternalException {
-        for( VLAN vlan : listVlans() ) {
-            if( vlanId.equals(vlan.getProviderVlanId()) ) {
+        APITrace.begin(provider, "getVlan");
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new NoContextException();
+            }
+            ResourceCache<VLAN> cache = getVlanCache();
+            VLAN vlan = cache.get(vlanId, getVlanCacheTTL());
+
+            if( vlan != null ) {
                 return vlan;
             }
+            NegativeCache missing = getNegativeCache();
+
+            if( missing.isMissing(vlanId) ) {
+                return null;
+            }
+            ZimoryMethod method = new ZimoryMethod(provider);
+            Document response = method.getObject("networks/" + vlanId);
+
+            if( response == null ) {
+                missing.markMissing(vlanId);
+                return null;
+            }
+            NodeList list = response.getElementsByTagName("network");
+
+            for( int i=0; i<list.getLength(); i++ ) {
+                VLAN v = toVLAN(list.item(i));
+
+                if( v != null && vlanId.equals(v.getProviderVlanId()) ) {
+                    cache.put(vlanId, v);
+                    return v;
+                }
+            }
+            return null;
+        }
+        finally {
+            APITrace.end();
         }
-        return null;
+    }
+
+    private @Nonnull InventoryCache<VLAN> getInventoryCache() throws CloudException {
+        return InventoryCache.getInstance(provider, "networks", CacheLevel.REGION_ACCOUNT);
+    }
+
+    private @Nonnull NegativeCache getNegativeCache() throws CloudException {
+        return NegativeCache.getInstance(provider, "networks", CacheLevel.REGION_ACCOUNT);
+    }
+
+    /**
+     * Provides the network listing snapshot when snapshot caching has been enabled through the
+     * <code>vlanListCacheTTL</code> custom property. Setting <code>vlanListCacheHardTTL</code> to a longer period
+     * allows snapshots up to that age to be served while a background refresh replaces them.
+     * @return a snapshot of all networks or <code>null</code> if caching is disabled
+     * @throws CloudException an error occurred loading the networks from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud while loading the networks
+     */
+    private @Nullable InventorySnapshot<VLAN> getSnapshot() throws CloudException, InternalException {
+        long ttl = provider.getCustomLong("vlanListCacheTTL", 0L);
+        long hardTtl = provider.getCustomLong("vlanListCacheHardTTL", ttl);
+
+        if( ttl < 1L && hardTtl < 1L ) {
+            return null;
+        }
+        return getInventoryCache().get(ttl, hardTtl, new InventoryCache.Loader<VLAN>() {
+            @Override
+            public @Nonnull Map<String, VLAN> load() throws CloudException, InternalException {
+                return loadVlans();
+            }
+        });
+    }
+
+    private @Nonnull ResourceCache<VLAN> getVlanCache() throws CloudException {
+        return ResourceCache.getInstance(provider, "networks", CacheLevel.REGION_ACCOUNT);
+    }
+
+    private long getVlanCacheTTL() {
+        return provider.getCustomLong("vlanCacheTTL", CalendarWrapper.MINUTE);
     }
 
     @Override
@@ -311,6 +407,15 @@ public class Networks extends AbstractVLANSupport {
         return Collections.emptyList();
     }
 
+    /**
+     * Lists the resources attached to the specified network. This listing keeps no cache of its own: it is assembled
+     * on every call from the firewall, IP address, and virtual machine listings, each of which is invalidated through
+     * the {@link InvalidationBus} by the mutations that affect it.
+     * @param inVlanId the network whose resources are being listed
+     * @return the resources attached to the network
+     * @throws CloudException an error occurred listing resources in Zimory
+     * @throws InternalException an error occurred within Dasein Cloud listing the resources
+     */
     @Override
     public @Nonnull Iterable<Networkable> listResources(@Nonnull String inVlanId) throws CloudException, InternalException {
         ArrayList<Networkable> resources = new ArrayList<Networkable>();
@@ -376,6 +481,16 @@ public class Networks extends AbstractVLANSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
+            InventorySnapshot<VLAN> snapshot = getSnapshot();
+
+            if( snapshot != null ) {
+                ArrayList<ResourceStatus> vlans = new ArrayList<ResourceStatus>();
+
+                for( VLAN v : snapshot ) {
+                    vlans.add(new ResourceStatus(v.getProviderVlanId(), v.getCurrentState()));
+                }
+                return vlans;
+            }
             ZimoryMethod method = new ZimoryMethod(provider);
 
             Document response = method.getObject("networks");
@@ -410,31 +525,90 @@ public class Networks extends AbstractVLANSupport {
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            ZimoryMethod method = new ZimoryMethod(provider);
+            InventorySnapshot<VLAN> snapshot = getSnapshot();
 
-            Document response = method.getObject("networks");
-
-            if( response == null ) {
-                logger.error("Unable to identify endpoint for networks in Zimory");
-                throw new CloudException("Unable to identify endpoint for VLANs (networks)");
+            if( snapshot == null ) {
+                snapshot = new InventorySnapshot<VLAN>(loadVlans(), System.currentTimeMillis());
             }
-            ArrayList<VLAN> vlans = new ArrayList<VLAN>();
-            NodeList list = response.getElementsByTagName("network");
+            return snapshot;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            for( int i=0; i<list.getLength(); i++ ) {
-                VLAN v = toVLAN(list.item(i));
 
-                if( v != null ) {
-                    vlans.add(v);
+    /**
+     * Streams the networks straight from the Zimory listing, parsing and mapping each one only when iteration reaches
+     * it, so a caller that stops early does not pay for the rest of the listing. Unlike the cached listings, every
+     * call fetches the listing from Zimory (or the response cache).
+     * The stream holds a connection to Zimory until it is iterated to the end or closed, and may be iterated once.
+     * @return the networks, mapped on demand; close it if iteration stops early
+     * @throws CloudException an error occurred requesting the listing from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @see XmlStream
+     */
+    public @Nonnull XmlStream<VLAN> streamVlans() throws CloudException, InternalException {
+        APITrace.begin(provider, "streamVlans");
+        try {
+            return XmlStream.stream(provider, "networks", "network", new OffHeapMap.Materializer<VLAN>() {
+                @Override
+                public @Nullable VLAN materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toVLAN(node);
                 }
-            }
-            return vlans;
+            });
         }
         finally {
             APITrace.end();
         }
     }
 
+    /**
+     * Lists the networks matching a query. Only the name can be filtered on; Zimory is asked to filter and page the
+     * listing and the name filter is also applied to the results (see {@link PagedListing}).
+     * @param query the criteria for the listing
+     * @return the matching networks, fetched a page at a time as iteration proceeds
+     * @throws CloudException an error occurred fetching the first page from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Iterable<VLAN> listVlans(@Nonnull ListQuery query) throws CloudException, InternalException {
+        APITrace.begin(provider, "listVlans");
+        try {
+            return PagedListing.list(provider, "networks", "network", FIELDS, query, new OffHeapMap.Materializer<VLAN>() {
+                @Override
+                public @Nullable VLAN materialize(@Nonnull Node node) throws CloudException, InternalException {
+                    return toVLAN(node);
+                }
+            });
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull Map<String,VLAN> loadVlans() throws CloudException, InternalException {
+        ZimoryMethod method = new ZimoryMethod(provider);
+
+        Document response = method.getObject("networks");
+
+        if( response == null ) {
+            logger.error("Unable to identify endpoint for networks in Zimory");
+            throw new CloudException("Unable to identify endpoint for VLANs (networks)");
+        }
+        LinkedHashMap<String,VLAN> vlans = new LinkedHashMap<String, VLAN>();
+        NodeList list = response.getElementsByTagName("network");
+
+        for( int i=0; i<list.getLength(); i++ ) {
+            VLAN v = toVLAN(list.item(i));
+
+            if( v != null ) {
+                vlans.put(v.getProviderVlanId(), v);
+            }
+        }
+        getVlanCache().putAll(vlans);
+        return vlans;
+    }
+
     @Override
     public void removeInternetGateway(@Nonnull String forVlanId) throws CloudException, InternalException {
         throw new OperationNotSupportedException("Internet gateways are not supported");
@@ -467,6 +641,7 @@ public class Networks extends AbstractVLANSupport {
             ZimoryMethod method = new ZimoryMethod(provider);
 
             method.delete("networks/" + vlanId);
+            InvalidationBus.getInstance(provider).publish("networks", vlanId, InvalidationBus.Change.REMOVED);
         }
         finally {
             APITrace.end();
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the items of a bulk operation with a bounded number of threads and reports an {@link Outcome} per item, in
+ * the order the items were given. A failing item never stops the others.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class BulkRunner {
+    /**
+     * One item of a bulk operation.
+     */
+    static public interface Task<T> {
+        /**
+         * @return the ID of the resource the item operates on, if known before it runs
+         */
+        public @Nullable String getId();
+
+        public @Nullable T run() throws CloudException, InternalException;
+    }
+
+    /**
+     * Runs all tasks and waits for them to finish.
+     * @param name a name for the worker threads
+     * @param parallelism the most tasks to run at once
+     * @param tasks the tasks to run
+     * @param <T> the type of value each task produces
+     * @return one outcome per task in the order of the tasks
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    static public @Nonnull <T> List<Outcome<T>> runAll(@Nonnull final String name, @Nonnegative int parallelism, @Nonnull List<? extends Task<T>> tasks) throws InternalException {
+        ArrayList<Outcome<T>> outcomes = new ArrayList<Outcome<T>>();
+
+        if( tasks.isEmpty() ) {
+            return outcomes;
+        }
+        int threads = Math.max(1, Math.min(parallelism, tasks.size()));
+        ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count = 0;
+
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, name + " " + (++count));
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+
+            for( final Task<T> task : tasks ) {
+                futures.add(executor.submit(new Callable<T>() {
+                    public T call() throws Exception {
+                        return task.run();
+                    }
+                }));
+            }
+            for( int i=0; i<futures.size(); i++ ) {
+                String id = tasks.get(i).getId();
+
+                try {
+                    outcomes.add(new Outcome<T>(id, futures.get(i).get()));
+                }
+                catch( ExecutionException e ) {
+                    outcomes.add(new Outcome<T>(id, e.getCause() == null ? e : e.getCause()));
+                }
+            }
+            return outcomes;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
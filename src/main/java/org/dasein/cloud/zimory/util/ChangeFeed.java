@@ -0,0 +1,384 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.network.VLAN;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A feed of the deployments, volumes, and networks that appeared, disappeared, or changed state in an account and
+ * region. All consumers in this JVM share one poller per scope, so any number of consumers calling
+ * {@link #changesSince(Zimory, String)} cost one set of listings per <code>changeFeedInterval</code> (15 seconds
+ * by default) rather than one set each. A mutation published on the {@link InvalidationBus} makes the next call
+ * poll immediately.
+ * <p>
+ *     The feed remembers the most recent <code>changeFeedSize</code> changes (10,000 by default). A consumer
+ *     passing a cursor that is older than that, or that came from another feed instance, receives a resync: every
+ *     current resource reported as added.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ChangeFeed implements InvalidationBus.Listener {
+    static public enum ChangeType { ADDED, CHANGED, REMOVED }
+
+    /**
+     * A single change to a resource.
+     */
+    static public class Change {
+        private final long       sequence;
+        private final String     resourceType;
+        private final String     id;
+        private final ChangeType changeType;
+        private final String     state;
+        private final Object     resource;
+
+        public Change(@Nonnegative long sequence, @Nonnull String resourceType, @Nonnull String id, @Nonnull ChangeType changeType, @Nullable String state, @Nullable Object resource) {
+            this.sequence = sequence;
+            this.resourceType = resourceType;
+            this.id = id;
+            this.changeType = changeType;
+            this.state = state;
+            this.resource = resource;
+        }
+
+        public @Nonnull ChangeType getChangeType() {
+            return changeType;
+        }
+
+        public @Nonnull String getId() {
+            return id;
+        }
+
+        /**
+         * @return the current {@link VirtualMachine}, {@link Volume}, or {@link VLAN}, or <code>null</code> if it was removed
+         */
+        public @Nullable Object getResource() {
+            return resource;
+        }
+
+        /**
+         * @return the Zimory resource type: <code>deployments</code>, <code>networkStorages</code>, or <code>networks</code>
+         */
+        public @Nonnull String getResourceType() {
+            return resourceType;
+        }
+
+        public @Nonnegative long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the name of the state of the resource after the change or <code>null</code> if it was removed
+         */
+        public @Nullable String getState() {
+            return state;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return changeType + " " + resourceType + "/" + id + (state == null ? "" : " (" + state + ")");
+        }
+    }
+
+    /**
+     * The changes since a cursor along with the cursor from which to continue.
+     */
+    static public class Changes {
+        private final List<Change> changes;
+        private final String       cursor;
+        private final boolean      resync;
+
+        public Changes(@Nonnull List<Change> changes, @Nonnull String cursor, boolean resync) {
+            this.changes = Collections.unmodifiableList(changes);
+            this.cursor = cursor;
+            this.resync = resync;
+        }
+
+        public @Nonnull List<Change> getChanges() {
+            return changes;
+        }
+
+        /**
+         * @return the cursor to pass to the next call
+         */
+        public @Nonnull String getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return true if the changes list every current resource and the consumer should discard anything it knows
+         * of that is not listed
+         */
+        public boolean isResync() {
+            return resync;
+        }
+    }
+
+    static private abstract class Source {
+        public final String type;
+
+        public Source(@Nonnull String type) {
+            this.type = type;
+        }
+
+        public abstract @Nonnull Map<String,Object> list(@Nonnull Zimory provider) throws CloudException, InternalException;
+
+        public abstract @Nullable String getState(@Nonnull Object resource);
+    }
+
+    static private final Source[] SOURCES = new Source[] {
+            new Source("deployments") {
+                public @Nonnull Map<String,Object> list(@Nonnull Zimory provider) throws CloudException, InternalException {
+                    LinkedHashMap<String,Object> resources = new LinkedHashMap<String, Object>();
+
+                    for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                        resources.put(vm.getProviderVirtualMachineId(), vm);
+                    }
+                    return resources;
+                }
+
+                public @Nullable String getState(@Nonnull Object resource) {
+                    VirtualMachine vm = (VirtualMachine)resource;
+
+                    return (vm.getCurrentState() == null ? null : vm.getCurrentState().name());
+                }
+            },
+            new Source("networkStorages") {
+                public @Nonnull Map<String,Object> list(@Nonnull Zimory provider) throws CloudException, InternalException {
+                    LinkedHashMap<String,Object> resources = new LinkedHashMap<String, Object>();
+
+                    for( Volume volume : provider.getComputeServices().getVolumeSupport().listVolumes() ) {
+                        resources.put(volume.getProviderVolumeId(), volume);
+                    }
+                    return resources;
+                }
+
+                public @Nullable String getState(@Nonnull Object resource) {
+                    Volume volume = (Volume)resource;
+
+                    return (volume.getCurrentState() == null ? null : volume.getCurrentState().name());
+                }
+            },
+            new Source("networks") {
+                public @Nonnull Map<String,Object> list(@Nonnull Zimory provider) throws CloudException, InternalException {
+                    LinkedHashMap<String,Object> resources = new LinkedHashMap<String, Object>();
+
+                    for( VLAN vlan : provider.getNetworkServices().getVlanSupport().listVlans() ) {
+                        resources.put(vlan.getProviderVlanId(), vlan);
+                    }
+                    return resources;
+                }
+
+                public @Nullable String getState(@Nonnull Object resource) {
+                    VLAN vlan = (VLAN)resource;
+
+                    return (vlan.getCurrentState() == null ? null : vlan.getCurrentState().name());
+                }
+            }
+    };
+
+    static private final ConcurrentHashMap<String,ChangeFeed> feeds = new ConcurrentHashMap<String, ChangeFeed>();
+
+    static private final Random random = new Random();
+
+    /**
+     * Provides the changes in the provider's current account and region since the specified cursor, polling Zimory
+     * first if no consumer has done so within the configured interval.
+     * @param provider the provider whose context determines the account and region
+     * @param cursor the cursor returned by the previous call or <code>null</code> to receive the current state
+     * @return the changes since the cursor and a new cursor
+     * @throws CloudException an error occurred polling Zimory
+     * @throws InternalException an error occurred within Dasein Cloud polling Zimory
+     */
+    static public @Nonnull Changes changesSince(@Nonnull Zimory provider, @Nullable String cursor) throws CloudException, InternalException {
+        return getInstance(provider).changes(provider, cursor);
+    }
+
+    static private @Nonnull ChangeFeed getInstance(@Nonnull Zimory provider) throws CloudException {
+        String key = provider.getCacheKey(CacheLevel.REGION_ACCOUNT);
+        ChangeFeed feed = feeds.get(key);
+
+        if( feed == null ) {
+            feed = new ChangeFeed();
+
+            ChangeFeed existing = feeds.putIfAbsent(key, feed);
+
+            if( existing != null ) {
+                feed = existing;
+            }
+            else {
+                InvalidationBus bus = InvalidationBus.getInstance(provider);
+
+                for( Source source : SOURCES ) {
+                    bus.subscribe(source.type, feed);
+                }
+            }
+        }
+        return feed;
+    }
+
+    private final String                                       epoch    = Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+    private final LinkedList<Change>                           journal  = new LinkedList<Change>();
+    private final Object                                       pollLock = new Object();
+    private final HashMap<String,LinkedHashMap<String,Object>> current  = new HashMap<String, LinkedHashMap<String, Object>>();
+    private final HashMap<String,HashMap<String,String>>       states   = new HashMap<String, HashMap<String, String>>();
+
+    private volatile long lastPoll = 0L;
+    private long          sequence = 0L;
+
+    private ChangeFeed() { }
+
+    private @Nonnull Changes changes(@Nonnull Zimory provider, @Nullable String cursor) throws CloudException, InternalException {
+        synchronized( pollLock ) {
+            long interval = provider.getCustomLong("changeFeedInterval", 15000L);
+
+            // consumers that waited on an in-flight poll find it fresh and use its results
+            if( System.currentTimeMillis() - lastPoll >= interval ) {
+                poll(provider);
+            }
+        }
+        synchronized( this ) {
+            long since = parse(cursor);
+
+            if( since < 0L || (since < sequence && (journal.isEmpty() || journal.getFirst().getSequence() > since + 1)) ) {
+                ArrayList<Change> all = new ArrayList<Change>();
+
+                for( Source source : SOURCES ) {
+                    LinkedHashMap<String,Object> resources = current.get(source.type);
+
+                    if( resources != null ) {
+                        for( Map.Entry<String,Object> entry : resources.entrySet() ) {
+                            all.add(new Change(sequence, source.type, entry.getKey(), ChangeType.ADDED, source.getState(entry.getValue()), entry.getValue()));
+                        }
+                    }
+                }
+                return new Changes(all, epoch + ":" + sequence, true);
+            }
+            ArrayList<Change> changes = new ArrayList<Change>();
+
+            for( Change change : journal ) {
+                if( change.getSequence() > since ) {
+                    changes.add(change);
+                }
+            }
+            return new Changes(changes, epoch + ":" + sequence, false);
+        }
+    }
+
+    private long parse(@Nullable String cursor) {
+        if( cursor == null ) {
+            return -1L;
+        }
+        int idx = cursor.indexOf(':');
+
+        if( idx < 0 || !cursor.substring(0, idx).equals(epoch) ) {
+            return -1L;
+        }
+        try {
+            long since = Long.parseLong(cursor.substring(idx + 1));
+
+            synchronized( this ) {
+                return (since > sequence ? -1L : since);
+            }
+        }
+        catch( NumberFormatException e ) {
+            return -1L;
+        }
+    }
+
+    private void poll(@Nonnull Zimory provider) throws CloudException, InternalException {
+        HashMap<String,Map<String,Object>> listings = new HashMap<String, Map<String, Object>>();
+
+        for( Source source : SOURCES ) {
+            listings.put(source.type, source.list(provider));
+        }
+        long max = Math.max(1L, provider.getCustomLong("changeFeedSize", 10000L));
+
+        synchronized( this ) {
+            for( Source source : SOURCES ) {
+                Map<String,Object> listing = listings.get(source.type);
+                HashMap<String,String> oldStates = states.get(source.type);
+                HashMap<String,String> newStates = new HashMap<String, String>();
+                boolean baseline = (oldStates == null);
+
+                for( Map.Entry<String,Object> entry : listing.entrySet() ) {
+                    String id = entry.getKey();
+                    String state = source.getState(entry.getValue());
+
+                    newStates.put(id, state);
+                    if( baseline ) {
+                        continue;
+                    }
+                    if( !oldStates.containsKey(id) ) {
+                        record(new Change(++sequence, source.type, id, ChangeType.ADDED, state, entry.getValue()), max);
+                    }
+                    else {
+                        String old = oldStates.get(id);
+
+                        if( old == null ? state != null : !old.equals(state) ) {
+                            record(new Change(++sequence, source.type, id, ChangeType.CHANGED, state, entry.getValue()), max);
+                        }
+                    }
+                }
+                if( !baseline ) {
+                    for( String id : oldStates.keySet() ) {
+                        if( !newStates.containsKey(id) ) {
+                            record(new Change(++sequence, source.type, id, ChangeType.REMOVED, null, null), max);
+                        }
+                    }
+                }
+                states.put(source.type, newStates);
+                current.put(source.type, new LinkedHashMap<String, Object>(listing));
+            }
+            lastPoll = System.currentTimeMillis();
+        }
+    }
+
+    private void record(@Nonnull Change change, long max) {
+        journal.addLast(change);
+        while( journal.size() > max ) {
+            journal.removeFirst();
+        }
+    }
+
+    @Override
+    public void resourceChanged(@Nonnull String type, @Nullable String id, @Nonnull InvalidationBus.Change change) {
+        lastPoll = 0L;
+    }
+}
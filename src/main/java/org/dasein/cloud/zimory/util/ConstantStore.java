@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+import org.dasein.cloud.zimory.ZimoryMethod;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Persists the raw responses for slow-changing Zimory data such as clouds, locations, providers, delegate
+ * roles, and the appliance catalog to a file so that a restarted service can answer from disk immediately.
+ * The store is enabled by setting the <code>constantStoreDirectory</code> custom property to a writable
+ * directory. Each account gets its own file, named after a digest of the account's cache key. A stored response is
+ * served until it is older than the <code>constantStoreTTL</code> custom property (in milliseconds, one hour by
+ * default), after which it is still served while a fresh copy is fetched from Zimory in the background. Responses
+ * loaded from disk are treated as expired, so data served from disk is replaced shortly after startup.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ConstantStore {
+    static private final Logger logger = Zimory.getLogger(ConstantStore.class);
+
+    static private final int MAGIC          = 0x5A434F4E;
+    static private final int FORMAT_VERSION = 1;
+
+    static private final ConcurrentHashMap<String,ConstantStore> stores = new ConcurrentHashMap<String, ConstantStore>();
+
+    /**
+     * Provides the constant store for the account of the provider's current context.
+     * @param provider the provider whose context determines the account and configuration
+     * @return the constant store or <code>null</code> if no store directory has been configured
+     * @throws CloudException no context has been established for the provider
+     * @throws InternalException the platform does not support the digest used to name the file
+     */
+    static public @Nullable ConstantStore getInstance(@Nonnull Zimory provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String directory = (p == null ? null : p.getProperty("constantStoreDirectory"));
+
+        if( directory == null || directory.trim().length() < 1 ) {
+            return null;
+        }
+        String key = provider.getCacheKey(CacheLevel.CLOUD_ACCOUNT);
+        ConstantStore store = stores.get(key);
+
+        if( store != null ) {
+            return store;
+        }
+        synchronized( stores ) {
+            store = stores.get(key);
+            if( store == null ) {
+                store = new ConstantStore(key, new File(directory.trim(), "zimory-" + digest(key) + ".dat"));
+                store.load();
+                stores.put(key, store);
+            }
+        }
+        return store;
+    }
+
+    static private @Nonnull String digest(@Nonnull String key) throws InternalException {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes("utf-8"));
+            StringBuilder str = new StringBuilder();
+
+            for( byte b : hash ) {
+                str.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+            }
+            return str.toString();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new InternalException(e);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    static private class Entry {
+        private final String body;
+        private final long   storedAt;
+
+        private Entry(@Nonnull String body, long storedAt) {
+            this.body = body;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final File                              file;
+    private final String                            key;
+    private final ConcurrentHashMap<String,Entry>   responses    = new ConcurrentHashMap<String, Entry>();
+    private final Set<String>                       revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ConstantStore(@Nonnull String key, @Nonnull File file) {
+        this.key = key;
+        this.file = file;
+    }
+
+    /**
+     * Provides the stored response for the specified resource without going to the cloud. If the stored response
+     * is older than the <code>constantStoreTTL</code>, it is still returned, but a fresh copy is fetched in the
+     * background on the provider's background executor.
+     * @param provider the provider through which an expired response is revalidated
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the stored response body or <code>null</code> if nothing is stored for the resource
+     */
+    public @Nullable String get(@Nonnull Zimory provider, @Nonnull String resource) {
+        Entry entry = responses.get(resource);
+
+        if( entry == null ) {
+            return null;
+        }
+        long ttl = provider.getCustomLong("constantStoreTTL", CalendarWrapper.HOUR);
+
+        if( (System.currentTimeMillis() - entry.storedAt) >= ttl ) {
+            revalidate(provider, resource);
+        }
+        return entry.body;
+    }
+
+    private void load() {
+        if( !file.exists() ) {
+            return;
+        }
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION ) {
+                logger.warn("Ignoring " + file + " as it was written in an unknown format");
+                return;
+            }
+            if( !key.equals(in.readUTF()) ) {
+                logger.warn("Ignoring " + file + " as it belongs to a different account");
+                return;
+            }
+            int count = in.readInt();
+
+            for( int i=0; i<count; i++ ) {
+                String resource = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+
+                in.readFully(body);
+                // a timestamp of zero marks responses from disk as expired so they are revalidated on first use
+                responses.put(resource, new Entry(new String(body, "utf-8"), 0L));
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read the constant store " + file + ": " + e.getMessage());
+            responses.clear();
+        }
+        finally {
+            if( in != null ) {
+                try { in.close(); }
+                catch( Throwable ignore ) { }
+            }
+        }
+    }
+
+    /**
+     * Stores the response for the specified resource in memory and on disk.
+     * @param resource the resource path relative to the Zimory endpoint
+     * @param body the response body returned by Zimory
+     */
+    public void put(@Nonnull String resource, @Nonnull String body) {
+        Entry previous = responses.put(resource, new Entry(body, System.currentTimeMillis()));
+
+        if( previous == null || !body.equals(previous.body) ) {
+            save();
+        }
+    }
+
+    private void revalidate(@Nonnull final Zimory provider, @Nonnull final String resource) {
+        if( !revalidating.add(resource) ) {
+            return;
+        }
+        try {
+            provider.getBackgroundExecutor().submit(new Runnable() {
+                public void run() {
+                    try {
+                        String body = new ZimoryMethod(provider).getString(resource);
+
+                        if( body != null ) {
+                            put(resource, body);
+                        }
+                    }
+                    catch( Throwable e ) {
+                        logger.warn("Unable to revalidate " + resource + ": " + e.getMessage());
+                    }
+                    finally {
+                        revalidating.remove(resource);
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            // the provider is closing; the next call through an open provider will try again
+            revalidating.remove(resource);
+        }
+    }
+
+    private synchronized void save() {
+        File directory = file.getAbsoluteFile().getParentFile();
+
+        if( directory != null && !directory.exists() && !directory.mkdirs() ) {
+            logger.warn("Unable to create the constant store directory " + directory);
+            return;
+        }
+        File tmp = null;
+        DataOutputStream out = null;
+
+        try {
+            ArrayList<Map.Entry<String,Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(responses.entrySet());
+
+            // a uniquely named file in the same directory, so concurrent writers never share it and the rename is atomic
+            tmp = File.createTempFile(file.getName() + ".", ".tmp", directory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeInt(entries.size());
+            for( Map.Entry<String,Entry> entry : entries ) {
+                byte[] body = entry.getValue().body.getBytes("utf-8");
+
+                out.writeUTF(entry.getKey());
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            out.close();
+            out = null;
+            if( !tmp.renameTo(file) ) {
+                // some platforms will not rename over an existing file
+                if( !file.delete() || !tmp.renameTo(file) ) {
+                    logger.warn("Unable to replace the constant store " + file);
+                }
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to write the constant store " + file + ": " + e.getMessage());
+        }
+        finally {
+            if( out != null ) {
+                try { out.close(); }
+                catch( Throwable ignore ) { }
+            }
+            if( tmp != null && tmp.exists() && !tmp.delete() ) {
+                logger.warn("Unable to remove the temporary constant store " + tmp);
+            }
+        }
+    }
+}
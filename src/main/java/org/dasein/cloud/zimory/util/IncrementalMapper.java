@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the elements of successive Zimory listings to model objects, re-mapping only the elements that changed
+ * since the previous listing. Each element is fingerprinted with a 64-bit FNV-1a hash of its names, attributes,
+ * and text; an element whose fingerprint matches the previous listing reuses the previously mapped object. The
+ * cost of a poll therefore scales with the churn in the inventory rather than its size. Each call to
+ * {@link #map(NodeList, Mapper, long)} returns, along with its resources, the ids its listing added, changed, and
+ * removed relative to the listing mapped before it. A mapper retains its last listing only for the retention period
+ * of its most recent call; once that lapses, the next listing is mapped from scratch and idle mappers are discarded.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class IncrementalMapper<T> {
+    /**
+     * Maps a listing element to its model object.
+     */
+    static public interface Mapper<T> {
+        public @Nullable String getId(@Nonnull Node node);
+
+        public @Nullable T map(@Nonnull Node node) throws CloudException, InternalException;
+    }
+
+    /**
+     * The ids that differ between two successive listings.
+     */
+    static public class Diff {
+        private final Collection<String> added;
+        private final Collection<String> changed;
+        private final Collection<String> removed;
+        private final long               timestamp;
+
+        public Diff(@Nonnull Collection<String> added, @Nonnull Collection<String> changed, @Nonnull Collection<String> removed, long timestamp) {
+            this.added = Collections.unmodifiableCollection(added);
+            this.changed = Collections.unmodifiableCollection(changed);
+            this.removed = Collections.unmodifiableCollection(removed);
+            this.timestamp = timestamp;
+        }
+
+        public @Nonnull Collection<String> getAdded() {
+            return added;
+        }
+
+        public @Nonnull Collection<String> getChanged() {
+            return changed;
+        }
+
+        public @Nonnull Collection<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return the time at which the listing that produced this diff was mapped
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public boolean isEmpty() {
+            return (added.isEmpty() && changed.isEmpty() && removed.isEmpty());
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return "+" + added.size() + " ~" + changed.size() + " -" + removed.size();
+        }
+    }
+
+    /**
+     * The resources of one listing together with how that listing differs from the listing mapped before it.
+     */
+    static public class Mapping<T> {
+        private final Diff          diff;
+        private final Map<String,T> resources;
+
+        public Mapping(@Nonnull Map<String,T> resources, @Nonnull Diff diff) {
+            this.resources = resources;
+            this.diff = diff;
+        }
+
+        public @Nonnull Diff getDiff() {
+            return diff;
+        }
+
+        /**
+         * @return the mapped resources indexed by their unique IDs in listing order
+         */
+        public @Nonnull Map<String,T> getResources() {
+            return resources;
+        }
+    }
+
+    static private class Entry<T> {
+        public final long fingerprint;
+        public final T    resource;
+
+        public Entry(long fingerprint, @Nonnull T resource) {
+            this.fingerprint = fingerprint;
+            this.resource = resource;
+        }
+    }
+
+    static private final long FNV_OFFSET = 0xcbf29ce484222325L;
+    static private final long FNV_PRIME  = 0x100000001b3L;
+
+    static private final ConcurrentHashMap<String,IncrementalMapper<?>> mappers = new ConcurrentHashMap<String, IncrementalMapper<?>>();
+
+    /**
+     * Provides the shared incremental mapper with the specified name for the scope of the provider's current context.
+     * @param provider the provider whose context determines the scope
+     * @param name the name of the listing (e.g. deployments)
+     * @param level the level at which the listing is shared
+     * @param <T> the type of resource in the listing
+     * @return the shared incremental mapper
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull <T> IncrementalMapper<T> getInstance(@Nonnull Zimory provider, @Nonnull String name, @Nonnull CacheLevel level) throws CloudException {
+        String key = name + "@" + provider.getCacheKey(level);
+        long now = System.currentTimeMillis();
+
+        for( Map.Entry<String,IncrementalMapper<?>> entry : mappers.entrySet() ) {
+            if( entry.getValue().isExpired(now) ) {
+                mappers.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        IncrementalMapper<?> mapper = mappers.get(key);
+
+        if( mapper == null ) {
+            mapper = new IncrementalMapper<T>();
+
+            IncrementalMapper<?> existing = mappers.putIfAbsent(key, mapper);
+
+            if( existing != null ) {
+                mapper = existing;
+            }
+        }
+        @SuppressWarnings("unchecked") IncrementalMapper<T> typed = (IncrementalMapper<T>)mapper;
+
+        return typed;
+    }
+
+    static private long hash(long h, @Nullable String value) {
+        if( value != null ) {
+            for( int i=0; i<value.length(); i++ ) {
+                h ^= value.charAt(i);
+                h *= FNV_PRIME;
+            }
+        }
+        // separate adjacent values so that "ab","c" and "a","bc" differ
+        h ^= 0xff;
+        h *= FNV_PRIME;
+        return h;
+    }
+
+    static private long fingerprint(long h, @Nonnull Node node) {
+        h = hash(h, node.getNodeName());
+        h = hash(h, node.getNodeValue());
+
+        NamedNodeMap attributes = node.getAttributes();
+
+        if( attributes != null ) {
+            for( int i=0; i<attributes.getLength(); i++ ) {
+                Node attr = attributes.item(i);
+
+                h = hash(h, attr.getNodeName());
+                h = hash(h, attr.getNodeValue());
+            }
+        }
+        NodeList children = node.getChildNodes();
+
+        for( int i=0; i<children.getLength(); i++ ) {
+            h = fingerprint(h, children.item(i));
+        }
+        return hash(h, null);
+    }
+
+    private Map<String,Entry<T>> previous   = new HashMap<String, Entry<T>>();
+    private volatile long        expiration = 0L;
+
+    private IncrementalMapper() { }
+
+    private boolean isExpired(long now) {
+        return (expiration <= now);
+    }
+
+    /**
+     * Maps a complete listing, reusing previously mapped objects for unchanged elements. Listings from all callers
+     * sharing this mapper are compared in the order they are mapped, so the returned difference is always relative
+     * to the listing mapped immediately before this one, or to an empty listing if that one was mapped longer than
+     * its retention period ago.
+     * @param nodes the elements of the listing
+     * @param mapper the mapper for elements that are new or changed
+     * @param retention how long in milliseconds this listing is retained for comparison with the next one
+     * @return the mapped resources and their difference from the previous listing
+     * @throws CloudException an error occurred mapping an element
+     * @throws InternalException an error occurred within Dasein Cloud mapping an element
+     */
+    public synchronized @Nonnull Mapping<T> map(@Nonnull NodeList nodes, @Nonnull Mapper<T> mapper, @Nonnegative long retention) throws CloudException, InternalException {
+        if( isExpired(System.currentTimeMillis()) ) {
+            previous = new HashMap<String, Entry<T>>();
+        }
+        HashMap<String,Entry<T>> current = new HashMap<String, Entry<T>>();
+        LinkedHashMap<String,T> resources = new LinkedHashMap<String, T>();
+        ArrayList<String> added = new ArrayList<String>();
+        ArrayList<String> changed = new ArrayList<String>();
+
+        for( int i=0; i<nodes.getLength(); i++ ) {
+            Node node = nodes.item(i);
+            String id = mapper.getId(node);
+
+            if( id == null ) {
+                continue;
+            }
+            long fingerprint = fingerprint(FNV_OFFSET, node);
+            Entry<T> entry = previous.get(id);
+
+            if( entry == null || entry.fingerprint != fingerprint ) {
+                T resource = mapper.map(node);
+
+                if( resource == null ) {
+                    continue;
+                }
+                if( entry == null ) {
+                    added.add(id);
+                }
+                else {
+                    changed.add(id);
+                }
+                entry = new Entry<T>(fingerprint, resource);
+            }
+            current.put(id, entry);
+            resources.put(id, entry.resource);
+        }
+        ArrayList<String> removed = new ArrayList<String>();
+
+        for( String id : previous.keySet() ) {
+            if( !current.containsKey(id) ) {
+                removed.add(id);
+            }
+        }
+        long now = System.currentTimeMillis();
+
+        previous = current;
+        expiration = (retention < Long.MAX_VALUE - now ? now + retention : Long.MAX_VALUE);
+        return new Mapping<T>(resources, new Diff(added, changed, removed, now));
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Carries notice of mutations made through this JVM to every Zimory cache holding data for the same account.
+ * Services publish an event after each create, state change, or removal, and caches subscribe by resource type
+ * when they are first created. Resource types are the Zimory resource path prefixes (e.g. <code>deployments</code>,
+ * <code>networkStorages</code>, <code>networks</code>) so the raw {@link ResponseCache} can act on the same events.
+ * Listeners are called synchronously on the publishing thread, so a mutating call returns only after every cache
+ * has dropped or patched its view of the resource.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InvalidationBus {
+    /**
+     * The kind of mutation that was made to a resource.
+     */
+    static public enum Change {
+        /**
+         * A new resource was created. The ID may be unknown at the time of publication.
+         */
+        CREATED,
+        /**
+         * The resource still exists but its state or attributes changed.
+         */
+        CHANGED,
+        /**
+         * The resource no longer exists.
+         */
+        REMOVED
+    }
+
+    /**
+     * Receives notice of mutations to resources of the types to which it subscribed.
+     */
+    static public interface Listener {
+        /**
+         * Reacts to a mutation of a resource.
+         * @param type the resource type
+         * @param id the unique ID of the resource or <code>null</code> if it is unknown or many resources changed
+         * @param change the kind of mutation
+         */
+        public void resourceChanged(@Nonnull String type, @Nullable String id, @Nonnull Change change);
+    }
+
+    static private final Logger logger = Zimory.getLogger(InvalidationBus.class);
+
+    static private final ConcurrentHashMap<String,InvalidationBus> buses = new ConcurrentHashMap<String, InvalidationBus>();
+
+    /**
+     * Provides the invalidation bus for the account of the provider's current context.
+     * @param provider the provider whose context determines the account
+     * @return the shared invalidation bus
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull InvalidationBus getInstance(@Nonnull Zimory provider) throws CloudException {
+        String key = provider.getCacheKey(CacheLevel.CLOUD_ACCOUNT);
+        InvalidationBus bus = buses.get(key);
+
+        if( bus == null ) {
+            bus = new InvalidationBus(key);
+
+            InvalidationBus existing = buses.putIfAbsent(key, bus);
+
+            if( existing != null ) {
+                bus = existing;
+            }
+        }
+        return bus;
+    }
+
+    private final String                                                    scope;
+    private final ConcurrentHashMap<String,CopyOnWriteArrayList<Listener>> listeners = new ConcurrentHashMap<String, CopyOnWriteArrayList<Listener>>();
+
+    private InvalidationBus(@Nonnull String scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Notifies all subscribers to the specified resource type of a mutation.
+     * @param type the resource type
+     * @param id the unique ID of the resource or <code>null</code> if it is unknown or many resources changed
+     * @param change the kind of mutation
+     */
+    public void publish(@Nonnull String type, @Nullable String id, @Nonnull Change change) {
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Invalidating " + type + "/" + id + " (" + change + ") in " + scope);
+        }
+        ResponseCache.invalidate(scope, type);
+
+        CopyOnWriteArrayList<Listener> list = listeners.get(type);
+
+        if( list != null ) {
+            for( Listener listener : list ) {
+                try {
+                    listener.resourceChanged(type, id, change);
+                }
+                catch( Throwable t ) {
+                    logger.error("Cache listener for " + type + " failed: " + t.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a listener for mutations of the specified resource type.
+     * @param type the resource type
+     * @param listener the listener to notify
+     */
+    public void subscribe(@Nonnull String type, @Nonnull Listener listener) {
+        CopyOnWriteArrayList<Listener> list = listeners.get(type);
+
+        if( list == null ) {
+            list = new CopyOnWriteArrayList<Listener>();
+
+            CopyOnWriteArrayList<Listener> existing = listeners.putIfAbsent(type, list);
+
+            if( existing != null ) {
+                list = existing;
+            }
+        }
+        list.addIfAbsent(listener);
+    }
+}
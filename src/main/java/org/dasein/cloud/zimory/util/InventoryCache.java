@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the most recent {@link InventorySnapshot} of a Zimory resource listing so it may be shared by all
+ * provider instances in this JVM operating against the same scope. Mutations made through this JVM patch or
+ * invalidate the snapshot so that reads never miss our own writes. A load that was in flight while a mutation
+ * happened is handed to its caller but never installed as the current snapshot.
+ * <p>
+ *     Reads may accept stale data: a snapshot older than the soft TTL but younger than the hard TTL is still
+ *     returned immediately while a single background refresh replaces it.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InventoryCache<T> implements InvalidationBus.Listener {
+    /**
+     * Loads the complete inventory from the cloud.
+     */
+    static public interface Loader<T> {
+        public @Nonnull Map<String,T> load() throws CloudException, InternalException;
+    }
+
+    static private final Logger logger = Zimory.getLogger(InventoryCache.class);
+
+    static private final ConcurrentHashMap<String,InventoryCache<?>> caches = new ConcurrentHashMap<String, InventoryCache<?>>();
+
+    /**
+     * Provides the shared inventory cache with the specified name for the scope of the provider's current context.
+     * @param provider the provider whose context determines the scope
+     * @param name the name of the inventory (e.g. deployments)
+     * @param level the level at which the inventory is shared
+     * @param <T> the type of resource held in the inventory
+     * @return the shared inventory cache
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull <T> InventoryCache<T> getInstance(@Nonnull Zimory provider, @Nonnull String name, @Nonnull CacheLevel level) throws CloudException {
+        return getInstance(provider, name, name, level);
+    }
+
+    /**
+     * Provides a shared inventory cache holding a different view of a resource type than the cache named after
+     * the type, such as just the status of each resource. It is invalidated by changes to the resource type.
+     * @param provider the provider whose context determines the scope
+     * @param name the name of the inventory (e.g. deploymentStatus)
+     * @param type the resource type whose changes invalidate the inventory (e.g. deployments)
+     * @param level the level at which the inventory is shared
+     * @param <T> the type of resource held in the inventory
+     * @return the shared inventory cache
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull <T> InventoryCache<T> getInstance(@Nonnull Zimory provider, @Nonnull String name, @Nonnull String type, @Nonnull CacheLevel level) throws CloudException {
+        String key = name + "@" + provider.getCacheKey(level);
+        InventoryCache<?> cache = caches.get(key);
+
+        if( cache == null ) {
+            cache = new InventoryCache<T>();
+
+            InventoryCache<?> existing = caches.putIfAbsent(key, cache);
+
+            if( existing != null ) {
+                cache = existing;
+            }
+            else {
+                InvalidationBus.getInstance(provider).subscribe(type, cache);
+            }
+        }
+        @SuppressWarnings("unchecked") InventoryCache<T> typed = (InventoryCache<T>)cache;
+
+        return typed;
+    }
+
+    private volatile InventorySnapshot<T> current;
+    private long                          generation;
+    private final Object                  loadLock   = new Object();
+    private final AtomicBoolean           refreshing = new AtomicBoolean(false);
+
+    private InventoryCache() { }
+
+    /**
+     * Provides a snapshot no older than the specified period, loading a new one when necessary. Concurrent
+     * callers wait for a single load rather than each loading the inventory.
+     * @param ttl the maximum age in milliseconds of an acceptable snapshot
+     * @param loader the loader for fetching the inventory from the cloud
+     * @return a snapshot no older than the specified period
+     * @throws CloudException an error occurred loading the inventory from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the inventory
+     */
+    public @Nonnull InventorySnapshot<T> get(@Nonnegative long ttl, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        return get(ttl, ttl, loader);
+    }
+
+    /**
+     * Provides a snapshot in stale-while-revalidate fashion. A snapshot younger than the soft TTL is returned as is.
+     * A snapshot older than the soft TTL but younger than the hard TTL is also returned as is, but a background
+     * refresh is started on {@link PollSchedule#getIoExecutor()} if one is not already running. Otherwise a new
+     * snapshot is loaded before returning.
+     * @param softTtl the age in milliseconds after which a snapshot should be refreshed
+     * @param hardTtl the maximum age in milliseconds of a snapshot that may be returned
+     * @param loader the loader for fetching the inventory from the cloud
+     * @return a snapshot no older than the hard TTL
+     * @throws CloudException an error occurred loading the inventory from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the inventory
+     */
+    public @Nonnull InventorySnapshot<T> get(@Nonnegative long softTtl, @Nonnegative long hardTtl, @Nonnull final Loader<T> loader) throws CloudException, InternalException {
+        InventorySnapshot<T> snapshot = peek(Math.max(softTtl, hardTtl));
+
+        if( snapshot != null ) {
+            if( snapshot.getAge() >= softTtl && refreshing.compareAndSet(false, true) ) {
+                PollSchedule.getIoExecutor().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            synchronized( loadLock ) {
+                                load(loader);
+                            }
+                        }
+                        catch( Throwable e ) {
+                            logger.warn("Background refresh of inventory failed: " + e.getMessage());
+                        }
+                        finally {
+                            refreshing.set(false);
+                        }
+                    }
+                });
+            }
+            return snapshot;
+        }
+        synchronized( loadLock ) {
+            snapshot = peek(Math.max(softTtl, hardTtl));
+            if( snapshot != null ) {
+                return snapshot;
+            }
+            return load(loader);
+        }
+    }
+
+    /**
+     * Removes the current snapshot so the next read goes to the cloud.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        current = null;
+    }
+
+    private @Nonnull InventorySnapshot<T> load(@Nonnull Loader<T> loader) throws CloudException, InternalException {
+        long gen;
+
+        synchronized( this ) {
+            gen = generation;
+        }
+        InventorySnapshot<T> snapshot = new InventorySnapshot<T>(loader.load(), System.currentTimeMillis());
+
+        synchronized( this ) {
+            if( gen == generation ) {
+                current = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Provides the current snapshot if it is no older than the specified period without ever going to the cloud.
+     * @param ttl the maximum age in milliseconds of an acceptable snapshot
+     * @return the current snapshot or <code>null</code> if there is no sufficiently fresh snapshot
+     */
+    public @Nullable InventorySnapshot<T> peek(@Nonnegative long ttl) {
+        InventorySnapshot<T> snapshot = current;
+
+        if( snapshot == null || snapshot.getAge() >= ttl ) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Patches the current snapshot, if any, with a resource this JVM has just created or changed.
+     * @param id the unique ID of the resource
+     * @param resource the current state of the resource
+     */
+    public synchronized void put(@Nonnull String id, @Nonnull T resource) {
+        generation++;
+        if( current != null ) {
+            current = current.with(id, resource);
+        }
+    }
+
+    @Override
+    public void resourceChanged(@Nonnull String type, @Nullable String id, @Nonnull InvalidationBus.Change change) {
+        if( id != null && change.equals(InvalidationBus.Change.REMOVED) ) {
+            remove(id);
+        }
+        else {
+            invalidate();
+        }
+    }
+
+    /**
+     * Patches the current snapshot, if any, to remove a resource this JVM has just deleted.
+     * @param id the unique ID of the deleted resource
+     */
+    public synchronized void remove(@Nonnull String id) {
+        generation++;
+        if( current != null ) {
+            current = current.without(id);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable, id-indexed copy of a Zimory inventory listing as of a specific point in time. Iteration
+ * follows the order in which the cloud returned the resources. Listings served from cached inventory return
+ * instances of this class so callers may check {@link #getAge()} to learn how old the data is.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InventorySnapshot<T> implements Iterable<T> {
+    /**
+     * Identifies the region in which a resource lives.
+     */
+    static public interface RegionMapper<T> {
+        public @Nullable String getRegionId(@Nonnull T resource);
+    }
+
+    private final Map<String,T> resources;
+    private final long          timestamp;
+
+    /**
+     * Constructs a snapshot of the specified resources. An {@link OffHeapMap} is kept as is so its resources stay
+     * off heap; any other map is copied.
+     * @param resources the resources indexed by their unique IDs
+     * @param timestamp the time at which the resources were fetched from the cloud
+     */
+    public InventorySnapshot(@Nonnull Map<String,T> resources, @Nonnegative long timestamp) {
+        if( resources instanceof OffHeapMap ) {
+            this.resources = resources;
+        }
+        else {
+            this.resources = Collections.unmodifiableMap(new LinkedHashMap<String, T>(resources));
+        }
+        this.timestamp = timestamp;
+    }
+
+    public boolean contains(@Nonnull String id) {
+        return resources.containsKey(id);
+    }
+
+    public @Nullable T get(@Nonnull String id) {
+        return resources.get(id);
+    }
+
+    /**
+     * @return the number of milliseconds since this snapshot was taken from the cloud
+     */
+    public @Nonnegative long getAge() {
+        return Math.max(0L, System.currentTimeMillis() - timestamp);
+    }
+
+    public @Nonnull Collection<String> getIds() {
+        return resources.keySet();
+    }
+
+    public @Nonnegative long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public @Nonnull Iterator<T> iterator() {
+        return resources.values().iterator();
+    }
+
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * Partitions the resources in this snapshot by region in a single pass so that an inventory of every region
+     * costs one listing rather than one per region. Resources without a region are left out.
+     * @param regions a function identifying the region of a resource
+     * @return the resources of each region indexed by region ID
+     */
+    public @Nonnull Map<String,Collection<T>> byRegion(@Nonnull RegionMapper<T> regions) {
+        LinkedHashMap<String,Collection<T>> partitions = new LinkedHashMap<String, Collection<T>>();
+
+        for( T resource : resources.values() ) {
+            String regionId = regions.getRegionId(resource);
+
+            if( regionId != null ) {
+                Collection<T> partition = partitions.get(regionId);
+
+                if( partition == null ) {
+                    partition = new ArrayList<T>();
+                    partitions.put(regionId, partition);
+                }
+                partition.add(resource);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Creates a copy of this snapshot holding only the resources in the specified region, keeping the timestamp of
+     * this snapshot so the age of the data remains visible to callers.
+     * @param regionId the region whose resources should be kept
+     * @param regions a function identifying the region of a resource
+     * @return the filtered snapshot
+     */
+    public @Nonnull InventorySnapshot<T> inRegion(@Nonnull String regionId, @Nonnull RegionMapper<T> regions) {
+        if( resources instanceof OffHeapMap ) {
+            return new InventorySnapshot<T>(((OffHeapMap<T>)resources).inPartition(regionId, regions), timestamp);
+        }
+        LinkedHashMap<String,T> copy = new LinkedHashMap<String, T>();
+
+        for( Map.Entry<String,T> entry : resources.entrySet() ) {
+            if( regionId.equals(regions.getRegionId(entry.getValue())) ) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new InventorySnapshot<T>(copy, timestamp);
+    }
+
+    /**
+     * Creates a copy of this snapshot with the specified resource added or replaced. The copy keeps the
+     * timestamp of this snapshot.
+     * @param id the unique ID of the resource
+     * @param resource the resource to store
+     * @return the patched snapshot
+     */
+    public @Nonnull InventorySnapshot<T> with(@Nonnull String id, @Nonnull T resource) {
+        if( resources instanceof OffHeapMap ) {
+            return new InventorySnapshot<T>(((OffHeapMap<T>)resources).with(id, resource), timestamp);
+        }
+        LinkedHashMap<String,T> copy = new LinkedHashMap<String, T>(resources);
+
+        copy.put(id, resource);
+        return new InventorySnapshot<T>(copy, timestamp);
+    }
+
+    /**
+     * Creates a copy of this snapshot without the specified resource. The copy keeps the timestamp of this snapshot.
+     * @param id the unique ID of the resource to remove
+     * @return the patched snapshot
+     */
+    public @Nonnull InventorySnapshot<T> without(@Nonnull String id) {
+        if( !resources.containsKey(id) ) {
+            return this;
+        }
+        if( resources instanceof OffHeapMap ) {
+            return new InventorySnapshot<T>(((OffHeapMap<T>)resources).without(id), timestamp);
+        }
+        LinkedHashMap<String,T> copy = new LinkedHashMap<String, T>(resources);
+
+        copy.remove(id);
+        return new InventorySnapshot<T>(copy, timestamp);
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Criteria for listing deployments, appliances, network storage, or networks. Each criterion is sent to Zimory as
+ * a query parameter named after the field (<code>locationId</code>, <code>providerId</code>, <code>state</code>, or
+ * <code>name</code>) and is also applied to the results, so the results are correct whether or not Zimory honors
+ * the parameter. A page size splits the listing into requests of that many resources using <code>offset</code> and
+ * <code>limit</code> parameters.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ListQuery {
+    /**
+     * The fields a listing may be filtered on.
+     */
+    static public enum Field { LOCATION, PROVIDER, STATE, NAME }
+
+    /**
+     * @return an empty query matching everything
+     */
+    static public @Nonnull ListQuery getInstance() {
+        return new ListQuery();
+    }
+
+    private String locationId;
+    private String name;
+    private int    pageSize;
+    private String providerId;
+    private String state;
+
+    private ListQuery() { }
+
+    /**
+     * @return the Zimory location to match or <code>null</code> for any location
+     */
+    public @Nullable String getLocationId() {
+        return locationId;
+    }
+
+    /**
+     * @return text the name must contain, ignoring case, or <code>null</code> for any name
+     */
+    public @Nullable String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of resources to request at once or 0 to use the <code>listPageSize</code> default
+     */
+    public @Nonnegative int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the Zimory provider to match or <code>null</code> for any provider
+     */
+    public @Nullable String getProviderId() {
+        return providerId;
+    }
+
+    /**
+     * @return the Zimory state to match, ignoring case, or <code>null</code> for any state
+     */
+    public @Nullable String getState() {
+        return state;
+    }
+
+    /**
+     * @param field the field being checked
+     * @return the criterion for the field or <code>null</code> if the field is not constrained
+     */
+    public @Nullable String getValue(@Nonnull Field field) {
+        switch( field ) {
+            case LOCATION: return locationId;
+            case PROVIDER: return providerId;
+            case STATE: return state;
+            case NAME: return name;
+        }
+        return null;
+    }
+
+    /**
+     * Constrains both the location and provider to those of a Dasein region (<code>locationId:providerId</code>).
+     * @param regionId the region to match
+     * @return this query
+     */
+    public @Nonnull ListQuery inRegion(@Nonnull String regionId) {
+        String[] parts = regionId.split(":");
+
+        locationId = parts[0];
+        providerId = (parts.length > 1 ? parts[1] : null);
+        return this;
+    }
+
+    /**
+     * @return true if any field is constrained
+     */
+    public boolean isFiltered() {
+        return (locationId != null || providerId != null || state != null || name != null);
+    }
+
+    /**
+     * Checks a single field value against this query.
+     * @param field the field being checked
+     * @param value the value of the field in the resource
+     * @return true if the value satisfies the criterion for the field
+     */
+    public boolean matches(@Nonnull Field field, @Nullable String value) {
+        String criterion = getValue(field);
+
+        if( criterion == null ) {
+            return true;
+        }
+        if( value == null ) {
+            return false;
+        }
+        if( field.equals(Field.NAME) ) {
+            return value.toLowerCase().contains(criterion.toLowerCase());
+        }
+        return value.equalsIgnoreCase(criterion);
+    }
+
+    /**
+     * Builds the query string for one request.
+     * @param fields the fields the endpoint can be filtered on, or an empty array to send no filters
+     * @param offset the index of the first resource to request or -1 to request no page
+     * @param limit the number of resources to request
+     * @return the query string including the leading <code>?</code> or an empty string if there are no parameters
+     */
+    public @Nonnull String toQueryString(@Nonnull Field[] fields, int offset, @Nonnegative int limit) {
+        StringBuilder str = new StringBuilder();
+
+        for( Field field : fields ) {
+            String value = getValue(field);
+
+            if( value != null ) {
+                str.append(str.length() == 0 ? "?" : "&").append(toParameter(field)).append("=").append(encode(value));
+            }
+        }
+        if( offset > -1 ) {
+            str.append(str.length() == 0 ? "?" : "&").append("offset=").append(offset).append("&limit=").append(limit);
+        }
+        return str.toString();
+    }
+
+    private @Nonnull String encode(@Nonnull String value) {
+        try {
+            return URLEncoder.encode(value, "utf-8");
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException("UTF-8 is not supported: " + e.getMessage());
+        }
+    }
+
+    private @Nonnull String toParameter(@Nonnull Field field) {
+        switch( field ) {
+            case LOCATION: return "locationId";
+            case PROVIDER: return "providerId";
+            case STATE: return "state";
+            default: return "name";
+        }
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return toQueryString(Field.values(), -1, 0);
+    }
+
+    /**
+     * @param locationId the Zimory location to match
+     * @return this query
+     */
+    public @Nonnull ListQuery withLocationId(@Nullable String locationId) {
+        this.locationId = locationId;
+        return this;
+    }
+
+    /**
+     * @param name text the name must contain, ignoring case
+     * @return this query
+     */
+    public @Nonnull ListQuery withName(@Nullable String name) {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * @param pageSize the number of resources to request at once
+     * @return this query
+     */
+    public @Nonnull ListQuery withPageSize(@Nonnegative int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param providerId the Zimory provider to match
+     * @return this query
+     */
+    public @Nonnull ListQuery withProviderId(@Nullable String providerId) {
+        this.providerId = providerId;
+        return this;
+    }
+
+    /**
+     * @param state the Zimory state to match, ignoring case
+     * @return this query
+     */
+    public @Nonnull ListQuery withState(@Nullable String state) {
+        this.state = state;
+        return this;
+    }
+}
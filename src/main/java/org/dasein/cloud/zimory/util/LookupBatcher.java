@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Gathers lookups of individual resources by ID that arrive within <code>lookupBatchWindow</code> milliseconds of
+ * each other and answers them together. A batch of fewer than <code>lookupBatchListThreshold</code> distinct IDs
+ * (10 by default) is fetched one ID at a time in parallel on the shared {@link PollSchedule#getIoExecutor()}; a
+ * larger batch is answered from a single fetch of the full listing. Callers asking for the same ID in one batch share
+ * one answer.
+ * <p>
+ *     Batching is off unless <code>lookupBatchWindow</code> is set, in which case each lookup goes straight to
+ *     Zimory as before. A caller whose batch has not been answered within <code>lookupBatchTimeout</code>
+ *     milliseconds (10 seconds by default) of the window closing stops waiting and fetches its resource itself.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class LookupBatcher<T> {
+    /**
+     * Fetches resources from Zimory on behalf of a batch.
+     */
+    static public interface Source<T> {
+        /**
+         * @param id the ID of the resource
+         * @return the resource or <code>null</code> if it does not exist
+         */
+        public @Nullable T fetch(@Nonnull String id) throws CloudException, InternalException;
+
+        /**
+         * @return every resource indexed by ID
+         */
+        public @Nonnull Map<String,T> fetchAll() throws CloudException, InternalException;
+    }
+
+    static private final ConcurrentHashMap<String,LookupBatcher<?>> batchers = new ConcurrentHashMap<String, LookupBatcher<?>>();
+
+    /**
+     * Provides the shared batcher with the specified name for the scope of the provider's current context.
+     * @param provider the provider whose context determines the scope
+     * @param name the name of the resource type (e.g. deployments)
+     * @param level the level at which lookups are shared
+     * @param <T> the type of resource being looked up
+     * @return the shared batcher
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull <T> LookupBatcher<T> getInstance(@Nonnull Zimory provider, @Nonnull String name, @Nonnull CacheLevel level) throws CloudException {
+        String key = name + "@" + provider.getCacheKey(level);
+        LookupBatcher<?> batcher = batchers.get(key);
+
+        if( batcher == null ) {
+            batcher = new LookupBatcher<T>();
+
+            LookupBatcher<?> existing = batchers.putIfAbsent(key, batcher);
+
+            if( existing != null ) {
+                batcher = existing;
+            }
+        }
+        @SuppressWarnings("unchecked") LookupBatcher<T> typed = (LookupBatcher<T>)batcher;
+
+        return typed;
+    }
+
+    private HashMap<String,SettableFuture<T>> pending   = new HashMap<String, SettableFuture<T>>();
+    private boolean                           scheduled = false;
+
+    private LookupBatcher() { }
+
+    private void flush(@Nonnull Zimory provider, @Nonnull final Source<T> source) {
+        final HashMap<String,SettableFuture<T>> batch;
+
+        synchronized( this ) {
+            batch = pending;
+            pending = new HashMap<String, SettableFuture<T>>();
+            scheduled = false;
+        }
+        ExecutorService executor = PollSchedule.getIoExecutor();
+
+        try {
+            if( batch.size() >= provider.getCustomLong("lookupBatchListThreshold", 10L) ) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            Map<String,T> all = source.fetchAll();
+
+                            for( Map.Entry<String,SettableFuture<T>> entry : batch.entrySet() ) {
+                                entry.getValue().complete(all.get(entry.getKey()));
+                            }
+                        }
+                        catch( Throwable t ) {
+                            for( SettableFuture<T> future : batch.values() ) {
+                                future.fail(t);
+                            }
+                        }
+                    }
+                });
+            }
+            else {
+                for( final Map.Entry<String,SettableFuture<T>> entry : batch.entrySet() ) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                entry.getValue().complete(source.fetch(entry.getKey()));
+                            }
+                            catch( Throwable t ) {
+                                entry.getValue().fail(t);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+        catch( RejectedExecutionException e ) {
+            for( SettableFuture<T> future : batch.values() ) {
+                future.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Looks up a resource, joining the batch being gathered if batching is enabled.
+     * @param provider the provider whose configuration determines the window and threshold
+     * @param id the ID of the resource
+     * @param source the fetches to use if this lookup starts a new batch
+     * @return the resource or <code>null</code> if it does not exist
+     * @throws CloudException an error occurred fetching the resource from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud or the calling thread was interrupted
+     */
+    public @Nullable T get(@Nonnull final Zimory provider, @Nonnull String id, @Nonnull final Source<T> source) throws CloudException, InternalException {
+        long window = provider.getCustomLong("lookupBatchWindow", 0L);
+
+        if( window < 1L ) {
+            return source.fetch(id);
+        }
+        SettableFuture<T> future;
+        boolean schedule = false;
+
+        synchronized( this ) {
+            future = pending.get(id);
+            if( future == null ) {
+                future = new SettableFuture<T>();
+                pending.put(id, future);
+            }
+            if( !scheduled ) {
+                scheduled = true;
+                schedule = true;
+            }
+        }
+        if( schedule ) {
+            PollSchedule.getScheduler().schedule(new Runnable() {
+                public void run() {
+                    flush(provider, source);
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+        try {
+            return future.get(window + Math.max(0L, provider.getCustomLong("lookupBatchTimeout", 10000L)), TimeUnit.MILLISECONDS);
+        }
+        catch( TimeoutException e ) {
+            // the batch is stuck behind other work, so stop waiting for it
+            return source.fetch(id);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, for a short time, the IDs of resources Zimory has just told us do not exist so that repeated
+ * lookups of deleted resources do not each cost a round trip. The cache holds a bounded number of IDs,
+ * discarding the least recently used first, and is cleared whenever this JVM creates a resource of its type.
+ * The <code>negativeCacheTTL</code> custom property sets how long a miss is remembered (in milliseconds,
+ * 10 seconds by default, 0 disables the cache) and <code>negativeCacheSize</code> sets how many IDs are
+ * remembered per resource type (1,000 by default). Both are read from the provider that first asks for the cache
+ * of a given type and scope and stay fixed for the life of that cache.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class NegativeCache implements InvalidationBus.Listener {
+    static private final ConcurrentHashMap<String,NegativeCache> caches = new ConcurrentHashMap<String, NegativeCache>();
+
+    /**
+     * Provides the shared negative cache with the specified name for the scope of the provider's current context.
+     * @param provider the provider whose context determines the scope and configuration
+     * @param name the name of the resource type (e.g. deployments)
+     * @param level the level at which the resources are shared
+     * @return the shared negative cache
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull NegativeCache getInstance(@Nonnull Zimory provider, @Nonnull String name, @Nonnull CacheLevel level) throws CloudException {
+        String key = name + "@" + provider.getCacheKey(level);
+        NegativeCache cache = caches.get(key);
+
+        if( cache == null ) {
+            long size = provider.getCustomLong("negativeCacheSize", 1000L);
+
+            cache = new NegativeCache((int)Math.max(1L, Math.min(size, Integer.MAX_VALUE)), provider.getCustomLong("negativeCacheTTL", 10000L));
+
+            NegativeCache existing = caches.putIfAbsent(key, cache);
+
+            if( existing != null ) {
+                cache = existing;
+            }
+            else {
+                InvalidationBus.getInstance(provider).subscribe(name, cache);
+            }
+        }
+        return cache;
+    }
+
+    private final LinkedHashMap<String,Long> misses;
+    private final long                       ttl;
+
+    private NegativeCache(@Nonnegative final int capacity, long ttl) {
+        this.ttl = ttl;
+        misses = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+                return (size() > capacity);
+            }
+        };
+    }
+
+    /**
+     * Forgets all remembered misses, typically because a resource of this type was just created.
+     */
+    public synchronized void clear() {
+        misses.clear();
+    }
+
+    /**
+     * Indicates whether Zimory recently reported that the specified resource does not exist.
+     * @param id the unique ID of the resource
+     * @return true if a lookup of the resource may be skipped and treated as not found
+     */
+    public synchronized boolean isMissing(@Nonnull String id) {
+        Long timestamp = misses.get(id);
+
+        if( timestamp == null ) {
+            return false;
+        }
+        if( System.currentTimeMillis() - timestamp >= ttl ) {
+            misses.remove(id);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that Zimory reported the specified resource does not exist.
+     * @param id the unique ID of the missing resource
+     */
+    public synchronized void markMissing(@Nonnull String id) {
+        if( ttl > 0L ) {
+            misses.put(id, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void resourceChanged(@Nonnull String type, @Nullable String id, @Nonnull InvalidationBus.Change change) {
+        if( change.equals(InvalidationBus.Change.CREATED) ) {
+            if( id == null ) {
+                clear();
+            }
+            else {
+                remove(id);
+            }
+        }
+    }
+
+    /**
+     * Forgets any remembered miss for the specified resource because it has been seen to exist.
+     * @param id the unique ID of the resource
+     */
+    public synchronized void remove(@Nonnull String id) {
+        misses.remove(id);
+    }
+}
@@ -0,0 +1,459 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.zimory.Zimory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only map of Zimory resources whose XML representations live outside the Java heap in a direct
+ * {@link ByteBuffer}. Model objects are mapped from their XML only when accessed, and a small on-heap tier
+ * keeps the most recently accessed ones so hot resources are not re-parsed on every read. Used by
+ * {@link InventorySnapshot} for large inventories so tens of thousands of cached object graphs do not sit in
+ * the old generation.
+ * <p>
+ *     Each entry also carries a partition key (typically its region) recorded when the map was built, which
+ *     allows filtering without materializing anything. Patched copies created by {@link #with(String, Object)}
+ *     and {@link #without(String)} share the off-heap buffer and keep patched resources on heap.
+ * </p>
+ * <p>
+ *     Callers should add only entries the materializer will accept. An entry that nevertheless fails to
+ *     materialize, for example because of an error reaching the cloud for related data, is dropped from this
+ *     map and its copies the first time it is read, so that {@link #size()}, {@link #keySet()}, and iteration
+ *     agree from then on.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class OffHeapMap<T> extends AbstractMap<String,T> {
+    /**
+     * Maps the XML representation of a resource to its model object.
+     */
+    static public interface Materializer<T> {
+        public @Nullable T materialize(@Nonnull Node node) throws CloudException, InternalException;
+    }
+
+    /**
+     * Accumulates the XML representations of resources and copies them into a single off-heap buffer.
+     */
+    static public class Builder<T> {
+        private final ByteArrayOutputStream     bytes = new ByteArrayOutputStream();
+        private final LinkedHashMap<String,Slot> slots = new LinkedHashMap<String, Slot>();
+        private final Transformer               transformer;
+
+        public Builder() throws InternalException {
+            try {
+                transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+            }
+            catch( TransformerException e ) {
+                throw new InternalException(e);
+            }
+        }
+
+        /**
+         * Adds the XML representation of a resource.
+         * @param id the unique ID of the resource
+         * @param partition the partition (e.g. region) of the resource
+         * @param node the XML element representing the resource
+         * @throws InternalException the element could not be serialized
+         */
+        public void add(@Nonnull String id, @Nullable String partition, @Nonnull Node node) throws InternalException {
+            int offset = bytes.size();
+
+            try {
+                transformer.transform(new DOMSource(node), new StreamResult(bytes));
+            }
+            catch( TransformerException e ) {
+                throw new InternalException(e);
+            }
+            slots.put(id, new Slot(offset, bytes.size() - offset, partition));
+        }
+
+        public @Nonnull OffHeapMap<T> build(@Nonnull Materializer<T> materializer, @Nonnegative int hotSize) {
+            byte[] data = bytes.toByteArray();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(data.length, 1));
+
+            buffer.put(data);
+            buffer.flip();
+            Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+            return new OffHeapMap<T>(buffer.asReadOnlyBuffer(), slots, new LinkedHashMap<String, T>(), materializer, new HotTier<T>(Math.max(hotSize, 1)), failed);
+        }
+    }
+
+    static private class Slot {
+        public final int    offset;
+        public final int    length;
+        public final String partition;
+
+        public Slot(int offset, int length, @Nullable String partition) {
+            this.offset = offset;
+            this.length = length;
+            this.partition = partition;
+        }
+    }
+
+    static private class HotTier<T> extends LinkedHashMap<String,T> {
+        static private final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        public HotTier(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,T> eldest) {
+            return (size() > capacity);
+        }
+    }
+
+    static private final Logger logger = Zimory.getLogger(OffHeapMap.class);
+
+    static private final ThreadLocal<DocumentBuilder> parsers = new ThreadLocal<DocumentBuilder>();
+
+    /**
+     * @param provider the provider whose configuration determines the on-heap tier size
+     * @return the number of materialized resources kept on heap, from the <code>offHeapHotSize</code> custom property
+     */
+    static public int getHotSize(@Nonnull Zimory provider) {
+        return (int)Math.max(1L, Math.min(provider.getCustomLong("offHeapHotSize", 1000L), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Indicates whether a cached inventory of the specified size should be stored off heap according to the
+     * <code>offHeapThreshold</code> custom property (0, the default, disables the off-heap tier).
+     * @param provider the provider whose configuration determines the threshold
+     * @param count the number of resources in the inventory
+     * @return true if the inventory should be stored off heap
+     */
+    static public boolean isEnabled(@Nonnull Zimory provider, @Nonnegative int count) {
+        long threshold = provider.getCustomLong("offHeapThreshold", 0L);
+
+        return (threshold > 0L && count >= threshold);
+    }
+
+    static private @Nonnull DocumentBuilder getParser() throws InternalException {
+        DocumentBuilder parser = parsers.get();
+
+        if( parser == null ) {
+            try {
+                parser = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            }
+            catch( ParserConfigurationException e ) {
+                throw new InternalException(e);
+            }
+            parsers.set(parser);
+        }
+        return parser;
+    }
+
+    private final ByteBuffer                buffer;
+    private final Set<String>               failed;
+    private final Set<String>               ids;
+    private final HotTier<T>                hot;
+    private final Materializer<T>           materializer;
+    private final Map<String,T>             overlay;
+    private final LinkedHashMap<String,Slot> slots;
+
+    private OffHeapMap(@Nonnull ByteBuffer buffer, @Nonnull LinkedHashMap<String,Slot> slots, @Nonnull LinkedHashMap<String,T> overlay, @Nonnull Materializer<T> materializer, @Nonnull HotTier<T> hot, @Nonnull Set<String> failed) {
+        LinkedHashSet<String> keys = new LinkedHashSet<String>(slots.keySet());
+
+        keys.addAll(overlay.keySet());
+        this.buffer = buffer;
+        this.slots = slots;
+        this.overlay = overlay;
+        this.materializer = materializer;
+        this.hot = hot;
+        this.failed = failed;
+        this.ids = Collections.unmodifiableSet(keys);
+    }
+
+    @Override
+    public boolean containsKey(Object id) {
+        return (overlay.containsKey(id) || (slots.containsKey(id) && !failed.contains(id)));
+    }
+
+    @Override
+    public @Nonnull Set<Map.Entry<String,T>> entrySet() {
+        return new AbstractSet<Map.Entry<String,T>>() {
+            @Override
+            public @Nonnull Iterator<Map.Entry<String,T>> iterator() {
+                final Iterator<String> it = ids.iterator();
+
+                return new Iterator<Map.Entry<String,T>>() {
+                    private Map.Entry<String,T> next = advance();
+
+                    private @Nullable Map.Entry<String,T> advance() {
+                        while( it.hasNext() ) {
+                            String id = it.next();
+                            T resource = get(id);
+
+                            if( resource != null ) {
+                                return new SimpleImmutableEntry<String, T>(id, resource);
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return (next != null);
+                    }
+
+                    @Override
+                    public Map.Entry<String,T> next() {
+                        if( next == null ) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String,T> current = next;
+
+                        next = advance();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return OffHeapMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public @Nullable T get(Object id) {
+        T resource = overlay.get(id);
+
+        if( resource != null ) {
+            return resource;
+        }
+        Slot slot = slots.get(id);
+
+        if( slot == null || failed.contains(id) ) {
+            return null;
+        }
+        synchronized( hot ) {
+            resource = hot.get(id);
+        }
+        if( resource == null ) {
+            resource = materialize(slot);
+            if( resource == null ) {
+                failed.add((String)id);
+            }
+            else {
+                synchronized( hot ) {
+                    hot.put((String)id, resource);
+                }
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * Creates a copy of this map holding only the resources in the specified partition. Off-heap entries are
+     * filtered by the partition recorded when the map was built; patched entries are filtered with the mapper.
+     * @param partition the partition whose resources should be kept
+     * @param mapper identifies the partition of an on-heap resource
+     * @return the filtered map
+     */
+    public @Nonnull OffHeapMap<T> inPartition(@Nonnull String partition, @Nonnull InventorySnapshot.RegionMapper<T> mapper) {
+        LinkedHashMap<String,Slot> s = new LinkedHashMap<String, Slot>();
+        LinkedHashMap<String,T> o = new LinkedHashMap<String, T>();
+
+        for( Map.Entry<String,Slot> entry : slots.entrySet() ) {
+            if( partition.equals(entry.getValue().partition) ) {
+                s.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for( Map.Entry<String,T> entry : overlay.entrySet() ) {
+            if( partition.equals(mapper.getRegionId(entry.getValue())) ) {
+                o.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new OffHeapMap<T>(buffer, s, o, materializer, hot, failed);
+    }
+
+    @Override
+    public @Nonnull Set<String> keySet() {
+        if( failed.isEmpty() ) {
+            return ids;
+        }
+        return new AbstractSet<String>() {
+            @Override
+            public boolean contains(Object id) {
+                return containsKey(id);
+            }
+
+            @Override
+            public @Nonnull Iterator<String> iterator() {
+                final Iterator<String> it = ids.iterator();
+
+                return new Iterator<String>() {
+                    private String next = advance();
+
+                    private @Nullable String advance() {
+                        while( it.hasNext() ) {
+                            String id = it.next();
+
+                            if( containsKey(id) ) {
+                                return id;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return (next != null);
+                    }
+
+                    @Override
+                    public String next() {
+                        if( next == null ) {
+                            throw new NoSuchElementException();
+                        }
+                        String current = next;
+
+                        next = advance();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return OffHeapMap.this.size();
+            }
+        };
+    }
+
+    private @Nullable T materialize(@Nonnull Slot slot) {
+        byte[] data = new byte[slot.length];
+        ByteBuffer b = buffer.duplicate();
+
+        b.position(slot.offset);
+        b.get(data);
+        try {
+            Document doc = getParser().parse(new ByteArrayInputStream(data));
+
+            return materializer.materialize(doc.getDocumentElement());
+        }
+        catch( SAXException e ) {
+            logger.error("Unable to parse off-heap resource: " + e.getMessage());
+        }
+        catch( IOException e ) {
+            logger.error("Unable to read off-heap resource: " + e.getMessage());
+        }
+        catch( CloudException e ) {
+            logger.error("Unable to materialize off-heap resource: " + e.getMessage());
+        }
+        catch( InternalException e ) {
+            logger.error("Unable to materialize off-heap resource: " + e.getMessage());
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        int count = ids.size();
+
+        for( String id : failed ) {
+            if( slots.containsKey(id) ) {
+                count--;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Creates a copy of this map with the specified resource added or replaced on heap.
+     * @param id the unique ID of the resource
+     * @param resource the resource to store
+     * @return the patched map
+     */
+    public @Nonnull OffHeapMap<T> with(@Nonnull String id, @Nonnull T resource) {
+        LinkedHashMap<String,Slot> s = new LinkedHashMap<String, Slot>(slots);
+        LinkedHashMap<String,T> o = new LinkedHashMap<String, T>(overlay);
+
+        s.remove(id);
+        o.put(id, resource);
+        return new OffHeapMap<T>(buffer, s, o, materializer, hot, failed);
+    }
+
+    /**
+     * Creates a copy of this map without the specified resource.
+     * @param id the unique ID of the resource to remove
+     * @return the patched map
+     */
+    public @Nonnull OffHeapMap<T> without(@Nonnull String id) {
+        LinkedHashMap<String,Slot> s = new LinkedHashMap<String, Slot>(slots);
+        LinkedHashMap<String,T> o = new LinkedHashMap<String, T>(overlay);
+
+        s.remove(id);
+        o.remove(id);
+        return new OffHeapMap<T>(buffer, s, o, materializer, hot, failed);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The result of one item in a bulk operation: either the value produced for the item or the error that stopped it.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class Outcome<T> {
+    private Throwable error;
+    private String    id;
+    private T         value;
+
+    /**
+     * Constructs a successful outcome.
+     * @param id the ID of the resource the item operated on, if known
+     * @param value the value produced for the item
+     */
+    public Outcome(@Nullable String id, @Nullable T value) {
+        this.id = id;
+        this.value = value;
+    }
+
+    /**
+     * Constructs a failed outcome.
+     * @param id the ID of the resource the item operated on, if known
+     * @param error the error that stopped the item
+     */
+    public Outcome(@Nullable String id, @Nonnull Throwable error) {
+        this.id = id;
+        this.error = error;
+    }
+
+    /**
+     * @return the error that stopped the item or <code>null</code> if it succeeded
+     */
+    public @Nullable Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return the ID of the resource the item operated on or <code>null</code> if none was created
+     */
+    public @Nullable String getId() {
+        return id;
+    }
+
+    /**
+     * @return the value produced for the item or <code>null</code> if it failed or produced nothing
+     */
+    public @Nullable T getValue() {
+        return value;
+    }
+
+    /**
+     * @return true if the item completed without error
+     */
+    public boolean isSuccess() {
+        return (error == null);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return (id == null ? "" : id) + (error == null ? " OK" : " FAILED: " + error.getMessage());
+    }
+}
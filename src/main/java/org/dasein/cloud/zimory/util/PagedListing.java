@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+import org.dasein.cloud.zimory.ZimoryMethod;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A listing of a Zimory endpoint filtered and paged according to a {@link ListQuery}. The first page is fetched
+ * when the listing is created so errors surface immediately; each further page is fetched only when iteration
+ * reaches it.
+ * <p>
+ *     Whether an endpoint honors the filter and paging parameters is discovered from its responses and remembered
+ *     per endpoint for the cloud (see {@link #getCapabilities(Zimory, String)}). A response that contains a
+ *     resource not matching the filters marks filtering as unsupported, and a page larger than requested or a page
+ *     repeating the previous one marks paging as unsupported. From then on the parameters are no longer sent and
+ *     the listing falls back to a single full fetch filtered on the client. The results are filtered on the
+ *     client in every case, so they are the same either way.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class PagedListing<T> implements Iterable<T> {
+    /**
+     * What an endpoint has been observed to support. A <code>null</code> value means it has not been determined yet.
+     */
+    static public class Capabilities {
+        private volatile Boolean filtering;
+        private volatile Boolean paging;
+
+        public @Nullable Boolean isFilteringSupported() {
+            return filtering;
+        }
+
+        public @Nullable Boolean isPagingSupported() {
+            return paging;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return "filtering=" + filtering + ",paging=" + paging;
+        }
+    }
+
+    static private final ConcurrentHashMap<String,Capabilities> capabilities = new ConcurrentHashMap<String, Capabilities>();
+
+    /**
+     * Provides what has been observed about the filtering and paging support of an endpoint in the provider's cloud.
+     * @param provider the provider whose cloud is being checked
+     * @param resource the endpoint (e.g. deployments)
+     * @return the shared capabilities of the endpoint
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull Capabilities getCapabilities(@Nonnull Zimory provider, @Nonnull String resource) throws CloudException {
+        String key = resource + "@" + provider.getCacheKey(CacheLevel.CLOUD);
+        Capabilities c = capabilities.get(key);
+
+        if( c == null ) {
+            c = new Capabilities();
+
+            Capabilities existing = capabilities.putIfAbsent(key, c);
+
+            if( existing != null ) {
+                c = existing;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Lists an endpoint, fetching the first page now.
+     * @param provider the provider for the account being listed
+     * @param resource the endpoint (e.g. deployments)
+     * @param element the name of the element representing one resource in the response
+     * @param fields the name of the child element holding each field the endpoint can be filtered on
+     * @param query the criteria for the listing
+     * @param materializer the mapping of an element to its model object
+     * @param <T> the type of resource being listed
+     * @return the listing
+     * @throws CloudException an error occurred fetching the first page from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    static public @Nonnull <T> PagedListing<T> list(@Nonnull Zimory provider, @Nonnull String resource, @Nonnull String element, @Nonnull Map<ListQuery.Field,String> fields, @Nonnull ListQuery query, @Nonnull OffHeapMap.Materializer<T> materializer) throws CloudException, InternalException {
+        int pageSize = query.getPageSize();
+
+        if( pageSize < 1 ) {
+            pageSize = (int)Math.max(0L, provider.getCustomLong("listPageSize", 500L));
+        }
+        PagedListing<T> listing = new PagedListing<T>(provider, resource, element, fields, query, materializer, pageSize);
+
+        listing.first = listing.new Pager();
+        listing.first.fetch();
+        return listing;
+    }
+
+    private final Capabilities                  capability;
+    private final String                        element;
+    private final Map<ListQuery.Field,String>   fields;
+    private Pager                               first;
+    private final OffHeapMap.Materializer<T>    materializer;
+    private final int                           pageSize;
+    private final Zimory                        provider;
+    private final ListQuery                     query;
+    private final String                        resource;
+
+    private PagedListing(@Nonnull Zimory provider, @Nonnull String resource, @Nonnull String element, @Nonnull Map<ListQuery.Field,String> fields, @Nonnull ListQuery query, @Nonnull OffHeapMap.Materializer<T> materializer, @Nonnegative int pageSize) throws CloudException {
+        this.provider = provider;
+        this.resource = resource;
+        this.element = element;
+        this.fields = fields;
+        this.query = query;
+        this.materializer = materializer;
+        this.pageSize = pageSize;
+        this.capability = getCapabilities(provider, resource);
+    }
+
+    /**
+     * @return the capabilities of the endpoint as observed so far
+     */
+    public @Nonnull Capabilities getCapabilities() {
+        return capability;
+    }
+
+    @Override
+    public @Nonnull Iterator<T> iterator() {
+        Pager pager;
+
+        synchronized( this ) {
+            pager = first;
+            first = null;
+        }
+        return (pager == null ? new Pager() : pager);
+    }
+
+    private @Nullable String getValue(@Nonnull Node node, @Nonnull String name) {
+        NodeList children = node.getChildNodes();
+
+        for( int i=0; i<children.getLength(); i++ ) {
+            Node child = children.item(i);
+
+            if( child.getNodeName().equalsIgnoreCase(name) ) {
+                return (child.hasChildNodes() ? child.getFirstChild().getNodeValue().trim() : "");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterates over the listing, fetching one page at a time.
+     */
+    private class Pager implements Iterator<T> {
+        private final LinkedList<T> buffer = new LinkedList<T>();
+        private boolean             done   = false;
+        private String              lastFirst;
+        private int                 offset = 0;
+
+        public void fetch() throws CloudException, InternalException {
+            boolean filtered = query.isFiltered() && !Boolean.FALSE.equals(capability.filtering);
+            boolean paged = pageSize > 0 && !Boolean.FALSE.equals(capability.paging);
+            ListQuery.Field[] sent = (filtered ? fields.keySet().toArray(new ListQuery.Field[fields.size()]) : new ListQuery.Field[0]);
+            Document response = new ZimoryMethod(provider).getObject(resource + query.toQueryString(sent, paged ? offset : -1, pageSize));
+
+            if( response == null ) {
+                throw new CloudException("Unable to identify endpoint for " + resource);
+            }
+            NodeList list = response.getElementsByTagName(element);
+            int count = list.getLength();
+
+            done = true;
+            if( paged ) {
+                String firstItem = (count > 0 ? list.item(0).getTextContent() : null);
+
+                if( count > pageSize || (offset > 0 && firstItem != null && firstItem.equals(lastFirst)) ) {
+                    capability.paging = false;
+                    if( offset > 0 ) {
+                        // the endpoint ignored the offset and returned what was already seen
+                        return;
+                    }
+                }
+                else {
+                    if( offset > 0 && count > 0 ) {
+                        capability.paging = true;
+                    }
+                    offset += count;
+                    lastFirst = firstItem;
+                    done = (count < pageSize);
+                }
+            }
+            ArrayList<T> page = new ArrayList<T>();
+
+            for( int i=0; i<count; i++ ) {
+                Node node = list.item(i);
+                boolean matches = true;
+
+                for( Map.Entry<ListQuery.Field,String> field : fields.entrySet() ) {
+                    if( !query.matches(field.getKey(), getValue(node, field.getValue())) ) {
+                        matches = false;
+                        break;
+                    }
+                }
+                if( !matches ) {
+                    if( filtered ) {
+                        capability.filtering = false;
+                    }
+                    continue;
+                }
+                T item = materializer.materialize(node);
+
+                if( item != null ) {
+                    page.add(item);
+                }
+            }
+            if( filtered && count > 0 && capability.filtering == null ) {
+                capability.filtering = true;
+            }
+            buffer.addAll(page);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while( buffer.isEmpty() && !done ) {
+                try {
+                    fetch();
+                }
+                catch( CloudException e ) {
+                    throw new IllegalStateException("Failed to load the next page of " + resource + ": " + e.getMessage(), e);
+                }
+                catch( InternalException e ) {
+                    throw new IllegalStateException("Failed to load the next page of " + resource + ": " + e.getMessage(), e);
+                }
+            }
+            return !buffer.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            return buffer.removeFirst();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long to wait between checks on a single resource that is being provisioned. The default schedule
+ * starts at <code>watchMinInterval</code> milliseconds and backs off by half again after each unsuccessful check
+ * up to <code>watchMaxInterval</code> milliseconds.
+ * <p>
+ *     A learned schedule also records how long provisioning took for a key such as the appliance, product, and
+ *     region of a launch. Once a few completions have been seen for the key, it sleeps until shortly before the
+ *     fastest tenth of past completions, then checks every <code>watchMinInterval</code> milliseconds until the
+ *     slowest tenth would have completed, and only then backs off towards <code>watchMaxInterval</code>.
+ * </p>
+ * <p>
+ *     A schedule either blocks the calling thread with {@link #await(Probe, long)} or runs its probes
+ *     asynchronously with {@link #submit(Probe, long, SettableFuture)} so nothing is held while waiting between
+ *     checks. Asynchronous work is timed by a single shared scheduler thread but always runs on a separate, bounded
+ *     pool of I/O threads, so slow calls to Zimory never delay the timing of other work.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class PollSchedule {
+    /**
+     * Checks once whether the resource being waited for is ready.
+     */
+    static public interface Probe<T> {
+        public @Nullable T probe() throws CloudException, InternalException;
+    }
+
+    /**
+     * The most recent provisioning times for one key.
+     */
+    static private class History {
+        static private final int SIZE = 50;
+
+        private final long[] samples = new long[SIZE];
+        private int          count;
+        private int          next;
+
+        public synchronized void add(@Nonnegative long duration) {
+            samples[next] = duration;
+            next = (next + 1) % SIZE;
+            count = Math.min(count + 1, SIZE);
+        }
+
+        /**
+         * @return the 10th and 90th percentiles of the recorded times or <code>null</code> if there are too few
+         */
+        public synchronized @Nullable long[] getRange() {
+            if( count < MIN_SAMPLES ) {
+                return null;
+            }
+            long[] sorted = new long[count];
+
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            return new long[] { sorted[(count - 1)/10], sorted[((count - 1) * 9)/10] };
+        }
+    }
+
+    static private final int IO_THREADS  = 16;
+    static private final int MIN_SAMPLES = 3;
+
+    static private final ConcurrentHashMap<String,History> histories = new ConcurrentHashMap<String, History>();
+
+    static private ExecutorService          ioExecutor;
+    static private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates the default backoff schedule from the provider's configuration.
+     * @param provider the provider whose configuration determines the intervals
+     * @return a new schedule
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull PollSchedule backoff(@Nonnull Zimory provider) throws CloudException {
+        return learned(provider, null);
+    }
+
+    /**
+     * Provides the shared, bounded pool of daemon threads on which probes and other blocking calls to Zimory that
+     * are started asynchronously run.
+     * @return the shared I/O executor
+     */
+    static public synchronized @Nonnull ExecutorService getIoExecutor() {
+        if( ioExecutor == null ) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int count = 0;
+
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r, "Zimory Poll I/O " + (++count));
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            executor.allowCoreThreadTimeOut(true);
+            ioExecutor = executor;
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Provides the shared scheduler thread. It is used only for timing: tasks scheduled on it must not block and
+     * should hand any call to Zimory to {@link #getIoExecutor()}, as {@link #runLater(Runnable, long)} does.
+     * @return the shared scheduler
+     */
+    static public synchronized @Nonnull ScheduledExecutorService getScheduler() {
+        if( scheduler == null ) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r, "Zimory Poll Scheduler");
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    /**
+     * Runs a task on the shared I/O executor once the specified delay has passed.
+     * @param task the task to run, which may block
+     * @param delay how long in milliseconds to wait before running the task
+     */
+    static public void runLater(@Nonnull final Runnable task, @Nonnegative long delay) {
+        getScheduler().schedule(new Runnable() {
+            public void run() {
+                getIoExecutor().execute(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a schedule that learns from and adapts to the provisioning times of resources with the specified key.
+     * The schedule's clock starts now, so it should be created as soon as the provisioning request is accepted.
+     * @param provider the provider whose configuration determines the floor and ceiling intervals
+     * @param key the key identifying similar provisioning requests in the provider's cloud or <code>null</code> for plain backoff
+     * @return a new schedule
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull PollSchedule learned(@Nonnull Zimory provider, @Nullable String key) throws CloudException {
+        long min = Math.max(1000L, provider.getCustomLong("watchMinInterval", 5000L));
+        long max = Math.max(min, provider.getCustomLong("watchMaxInterval", 30000L));
+        History history = null;
+
+        if( key != null ) {
+            key = key + "@" + provider.getCacheKey(CacheLevel.CLOUD);
+            history = histories.get(key);
+            if( history == null ) {
+                history = new History();
+
+                History existing = histories.putIfAbsent(key, history);
+
+                if( existing != null ) {
+                    history = existing;
+                }
+            }
+        }
+        return new PollSchedule(min, max, history);
+    }
+
+    private final History history;
+    private final long    max;
+    private final long    min;
+    private final long[]  range;
+    private final long    started;
+    private long          next;
+
+    private PollSchedule(@Nonnegative long min, @Nonnegative long max, @Nullable History history) {
+        this.min = min;
+        this.max = max;
+        this.next = min;
+        this.history = history;
+        this.range = (history == null ? null : history.getRange());
+        this.started = System.currentTimeMillis();
+    }
+
+    /**
+     * Probes until the probe returns a resource or the timeout passes, sleeping between probes according to this
+     * schedule.
+     * @param probe the check for readiness
+     * @param timeout how long in milliseconds to keep probing
+     * @param <T> the type of resource being waited for
+     * @return the resource or <code>null</code> if it was not ready before the timeout
+     * @throws CloudException an error occurred checking the resource in Zimory
+     * @throws InternalException an error occurred within Dasein Cloud or the calling thread was interrupted
+     */
+    public @Nullable <T> T await(@Nonnull Probe<T> probe, @Nonnegative long timeout) throws CloudException, InternalException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while( true ) {
+            T resource = probe.probe();
+
+            if( resource != null ) {
+                if( history != null ) {
+                    history.add(System.currentTimeMillis() - started);
+                }
+                return resource;
+            }
+            long now = System.currentTimeMillis();
+
+            if( now >= deadline ) {
+                return null;
+            }
+            try {
+                Thread.sleep(Math.min(nextDelay(), deadline - now));
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+        }
+    }
+
+    /**
+     * @return how long in milliseconds to wait before the next check
+     */
+    public @Nonnegative long nextDelay() {
+        if( range != null ) {
+            long elapsed = System.currentTimeMillis() - started;
+            long early = range[0] - min;
+
+            if( elapsed < early ) {
+                return Math.max(min, early - elapsed);
+            }
+            if( elapsed < range[1] ) {
+                return min;
+            }
+        }
+        long delay = next;
+
+        next = Math.min(max, next + next/2);
+        return delay;
+    }
+
+    /**
+     * Probes on the shared I/O executor until the probe returns a resource, the timeout passes, or the future is
+     * cancelled. No thread is held between probes.
+     * @param probe the check for readiness
+     * @param timeout how long in milliseconds to keep probing
+     * @param into the future to complete with the resource or to fail with the error or timeout
+     * @param <T> the type of resource being waited for
+     */
+    public <T> void submit(@Nonnull final Probe<T> probe, @Nonnegative long timeout, @Nonnull final SettableFuture<T> into) {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        getIoExecutor().execute(new Runnable() {
+            public void run() {
+                if( into.isDone() ) {
+                    return;
+                }
+                try {
+                    T resource = probe.probe();
+
+                    if( resource != null ) {
+                        if( history != null ) {
+                            history.add(System.currentTimeMillis() - started);
+                        }
+                        into.complete(resource);
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+
+                    if( now >= deadline ) {
+                        into.fail(new CloudException("Timed out after " + (now - started) + "ms waiting for the resource"));
+                        return;
+                    }
+                    runLater(this, Math.min(nextDelay(), deadline - now));
+                }
+                catch( Throwable t ) {
+                    into.fail(t);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An id-indexed cache of individual Zimory resources shared by all provider instances in this JVM operating
+ * against the same scope. Each entry carries the time it was fetched so callers decide per read how old an
+ * entry they are willing to accept.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ResourceCache<T> implements InvalidationBus.Listener {
+    static private class Entry<T> {
+        public final T    resource;
+        public final long timestamp;
+
+        public Entry(@Nonnull T resource, @Nonnegative long timestamp) {
+            this.resource = resource;
+            this.timestamp = timestamp;
+        }
+    }
+
+    static private final ConcurrentHashMap<String,ResourceCache<?>> caches = new ConcurrentHashMap<String, ResourceCache<?>>();
+
+    /**
+     * Provides the shared resource cache with the specified name for the scope of the provider's current context.
+     * @param provider the provider whose context determines the scope
+     * @param name the name of the resource type (e.g. networks)
+     * @param level the level at which the resources are shared
+     * @param <T> the type of resource held in the cache
+     * @return the shared resource cache
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull <T> ResourceCache<T> getInstance(@Nonnull Zimory provider, @Nonnull String name, @Nonnull CacheLevel level) throws CloudException {
+        String key = name + "@" + provider.getCacheKey(level);
+        ResourceCache<?> cache = caches.get(key);
+
+        if( cache == null ) {
+            cache = new ResourceCache<T>();
+
+            ResourceCache<?> existing = caches.putIfAbsent(key, cache);
+
+            if( existing != null ) {
+                cache = existing;
+            }
+            else {
+                InvalidationBus.getInstance(provider).subscribe(name, cache);
+            }
+        }
+        @SuppressWarnings("unchecked") ResourceCache<T> typed = (ResourceCache<T>)cache;
+
+        return typed;
+    }
+
+    private final ConcurrentHashMap<String,Entry<T>> entries = new ConcurrentHashMap<String, Entry<T>>();
+
+    private ResourceCache() { }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Provides the cached resource if it was fetched within the specified period.
+     * @param id the unique ID of the resource
+     * @param ttl the maximum age in milliseconds of an acceptable entry
+     * @return the cached resource or <code>null</code> if there is no sufficiently fresh entry
+     */
+    public @Nullable T get(@Nonnull String id, @Nonnegative long ttl) {
+        Entry<T> entry = entries.get(id);
+
+        if( entry == null ) {
+            return null;
+        }
+        if( System.currentTimeMillis() - entry.timestamp >= ttl ) {
+            entries.remove(id, entry);
+            return null;
+        }
+        return entry.resource;
+    }
+
+    public void put(@Nonnull String id, @Nonnull T resource) {
+        entries.put(id, new Entry<T>(resource, System.currentTimeMillis()));
+    }
+
+    /**
+     * Replaces the contents of the cache with a complete listing of the resources fetched from the cloud.
+     * @param resources the complete set of resources, indexed by their unique IDs
+     */
+    public void putAll(@Nonnull Map<String,T> resources) {
+        long now = System.currentTimeMillis();
+
+        for( Map.Entry<String,T> resource : resources.entrySet() ) {
+            entries.put(resource.getKey(), new Entry<T>(resource.getValue(), now));
+        }
+        entries.keySet().retainAll(resources.keySet());
+    }
+
+    public void remove(@Nonnull String id) {
+        entries.remove(id);
+    }
+
+    @Override
+    public void resourceChanged(@Nonnull String type, @Nullable String id, @Nonnull InvalidationBus.Change change) {
+        if( id == null ) {
+            clear();
+        }
+        else {
+            remove(id);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A JVM-wide, weight-bounded cache of raw Zimory API responses. Entries are weighed by their approximate size
+ * in bytes and the total weight never exceeds the <code>responseCacheSize</code> custom property (4 MB by default).
+ * Admission follows the W-TinyLFU policy: new responses enter a small LRU window, and a response leaving the
+ * window only displaces an entry of the main segmented LRU if a count-min sketch says it has been requested
+ * more often. A scan of one-off lookups therefore cannot flush hot resources from the cache.
+ * <p>
+ *     Each resource prefix (the first element of the resource path, e.g. <code>deployments</code> or
+ *     <code>appliances</code>) has its own TTL taken from the <code>responseCacheTTL.&lt;prefix&gt;</code> custom
+ *     property, falling back to <code>responseCacheTTL</code>. Both default to 0, leaving caching disabled.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ResponseCache {
+    static private final int WINDOW    = 0;
+    static private final int PROBATION = 1;
+    static private final int PROTECTED = 2;
+
+    static private class Entry {
+        public final String key;
+        public final String body;
+        public final long   expiration;
+        public final long   weight;
+        public int          segment;
+
+        public Entry(@Nonnull String key, @Nonnull String body, @Nonnegative long expiration) {
+            this.key = key;
+            this.body = body;
+            this.expiration = expiration;
+            this.weight = 2L * (key.length() + body.length()) + 64L;
+        }
+    }
+
+    /**
+     * A count-min sketch of four-bit counters estimating how often each key has been requested. Counters are
+     * halved once the number of increments reaches ten times the table size so that old popularity fades.
+     */
+    static private class FrequencySketch {
+        static private final int[] SEEDS = { 0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0xc2b2ae35 };
+
+        private final byte[] table;
+        private final int    mask;
+        private final int    sampleSize;
+        private int          additions;
+
+        public FrequencySketch(@Nonnegative int expectedEntries) {
+            int size = 64;
+
+            while( size < expectedEntries * 4 && size < (1 << 24) ) {
+                size <<= 1;
+            }
+            table = new byte[size];
+            mask = size - 1;
+            sampleSize = size * 10;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+
+            h ^= (h >>> 16);
+            return (h & mask);
+        }
+
+        public int frequency(@Nonnull String key) {
+            int hash = key.hashCode();
+            int min = 15;
+
+            for( int row=0; row<SEEDS.length; row++ ) {
+                min = Math.min(min, table[indexOf(hash, row)]);
+            }
+            return min;
+        }
+
+        public void increment(@Nonnull String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+
+            for( int row=0; row<SEEDS.length; row++ ) {
+                int i = indexOf(hash, row);
+
+                if( table[i] < 15 ) {
+                    table[i]++;
+                    added = true;
+                }
+            }
+            if( added && ++additions >= sampleSize ) {
+                for( int i=0; i<table.length; i++ ) {
+                    table[i] = (byte)(table[i] >> 1);
+                }
+                additions /= 2;
+            }
+        }
+    }
+
+    static private ResponseCache instance;
+
+    /**
+     * Provides the JVM-wide response cache, adjusting its capacity to the provider's <code>responseCacheSize</code>
+     * custom property.
+     * @param provider the provider whose configuration determines the capacity
+     * @return the shared response cache
+     */
+    static public synchronized @Nonnull ResponseCache getInstance(@Nonnull Zimory provider) {
+        long capacity = Math.max(0L, provider.getCustomLong("responseCacheSize", 4194304L));
+
+        if( instance == null ) {
+            instance = new ResponseCache(capacity);
+        }
+        else {
+            instance.setCapacity(capacity);
+        }
+        return instance;
+    }
+
+    /**
+     * Identifies the resource class of the specified resource path for the purposes of TTL policies and invalidation.
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the first element of the resource path
+     */
+    static public @Nonnull String getPrefix(@Nonnull String resource) {
+        int start = (resource.startsWith("/") ? 1 : 0);
+        int end = resource.length();
+
+        for( int i=start; i<resource.length(); i++ ) {
+            char c = resource.charAt(i);
+
+            if( c == '/' || c == '?' ) {
+                end = i;
+                break;
+            }
+        }
+        return resource.substring(start, end);
+    }
+
+    /**
+     * Removes all cached responses for a resource class in an account, typically because a resource of that class
+     * was just created, changed, or removed. Called by the {@link InvalidationBus} for every published mutation.
+     * @param scope the account scope of the mutation
+     * @param type the resource type, which is the prefix of its resource paths
+     */
+    static public void invalidate(@Nonnull String scope, @Nonnull String type) {
+        ResponseCache cache;
+
+        synchronized( ResponseCache.class ) {
+            cache = instance;
+        }
+        if( cache != null ) {
+            cache.invalidate(scope + " " + type);
+        }
+    }
+
+    /**
+     * Identifies how long responses for the specified resource may be cached under the provider's configuration.
+     * @param provider the provider whose configuration determines the policy
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the TTL in milliseconds, 0 if the resource should not be cached
+     */
+    static public long getTTL(@Nonnull Zimory provider, @Nonnull String resource) {
+        return provider.getCustomLong("responseCacheTTL." + getPrefix(resource), provider.getCustomLong("responseCacheTTL", 0L));
+    }
+
+    /**
+     * Constructs the name of the group of cached responses that are invalidated together with the specified resource,
+     * which is its resource class within the provider's account.
+     * @param provider the provider whose context determines the scope
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the invalidation group
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull String toGroup(@Nonnull Zimory provider, @Nonnull String resource) throws CloudException {
+        return provider.getCacheKey(CacheLevel.CLOUD_ACCOUNT) + " " + getPrefix(resource);
+    }
+
+    /**
+     * Constructs the key under which a response for the specified resource is cached for the provider's account.
+     * @param provider the provider whose context determines the scope
+     * @param resource the resource path relative to the Zimory endpoint
+     * @return the cache key
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull String toKey(@Nonnull Zimory provider, @Nonnull String resource) throws CloudException {
+        return provider.getCacheKey(CacheLevel.CLOUD_ACCOUNT) + " " + (resource.startsWith("/") ? resource.substring(1) : resource);
+    }
+
+    private final HashMap<String,Long>        generations = new HashMap<String, Long>();
+    private final HashMap<String,Entry>       index     = new HashMap<String, Entry>();
+    private final LinkedHashMap<String,Entry> window    = new LinkedHashMap<String, Entry>();
+    private final LinkedHashMap<String,Entry> probation = new LinkedHashMap<String, Entry>();
+    private final LinkedHashMap<String,Entry> protect   = new LinkedHashMap<String, Entry>();
+    private final FrequencySketch             sketch;
+
+    private long capacity;
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private ResponseCache(@Nonnegative long capacity) {
+        this.capacity = capacity;
+        // assume responses of roughly 1 KB when sizing the sketch
+        sketch = new FrequencySketch((int)Math.min(Math.max(capacity / 1024L, 64L), 1L << 22));
+    }
+
+    private @Nonnull LinkedHashMap<String,Entry> segment(@Nonnull Entry entry) {
+        switch( entry.segment ) {
+            case WINDOW: return window;
+            case PROBATION: return probation;
+            default: return protect;
+        }
+    }
+
+    private void add(@Nonnull Entry entry, int segment) {
+        entry.segment = segment;
+        segment(entry).put(entry.key, entry);
+        switch( segment ) {
+            case WINDOW: windowWeight += entry.weight; break;
+            case PROBATION: probationWeight += entry.weight; break;
+            default: protectedWeight += entry.weight; break;
+        }
+    }
+
+    private void detach(@Nonnull Entry entry) {
+        segment(entry).remove(entry.key);
+        switch( entry.segment ) {
+            case WINDOW: windowWeight -= entry.weight; break;
+            case PROBATION: probationWeight -= entry.weight; break;
+            default: protectedWeight -= entry.weight; break;
+        }
+    }
+
+    private void evict() {
+        long windowMax = Math.max(capacity / 100L, 1L);
+        long mainMax = capacity - windowMax;
+        long protectedMax = (mainMax * 4L) / 5L;
+
+        while( windowWeight > windowMax && !window.isEmpty() ) {
+            Entry candidate = window.values().iterator().next();
+
+            detach(candidate);
+            if( probationWeight + protectedWeight + candidate.weight > mainMax ) {
+                Entry victim = (probation.isEmpty() ? (protect.isEmpty() ? null : protect.values().iterator().next()) : probation.values().iterator().next());
+
+                if( victim != null && sketch.frequency(candidate.key) <= sketch.frequency(victim.key) ) {
+                    index.remove(candidate.key);
+                    continue;
+                }
+            }
+            add(candidate, PROBATION);
+        }
+        while( protectedWeight > protectedMax && !protect.isEmpty() ) {
+            Entry demoted = protect.values().iterator().next();
+
+            detach(demoted);
+            add(demoted, PROBATION);
+        }
+        while( probationWeight + protectedWeight > mainMax ) {
+            LinkedHashMap<String,Entry> from = (probation.isEmpty() ? protect : probation);
+
+            if( from.isEmpty() ) {
+                break;
+            }
+            Entry victim = from.values().iterator().next();
+
+            detach(victim);
+            index.remove(victim.key);
+        }
+    }
+
+    /**
+     * Provides the cached response for the specified key, recording the request for admission purposes.
+     * @param key the cache key from {@link #toKey(Zimory, String)}
+     * @return the cached response body or <code>null</code> if none is cached or the cached one has expired
+     */
+    public synchronized @Nullable String get(@Nonnull String key) {
+        sketch.increment(key);
+
+        Entry entry = index.get(key);
+
+        if( entry == null ) {
+            return null;
+        }
+        if( System.currentTimeMillis() >= entry.expiration ) {
+            detach(entry);
+            index.remove(key);
+            return null;
+        }
+        detach(entry);
+        add(entry, entry.segment == WINDOW ? WINDOW : PROTECTED);
+        if( entry.segment == PROTECTED ) {
+            evict();
+        }
+        return entry.body;
+    }
+
+    /**
+     * Identifies the current generation of an invalidation group. Callers read the generation before fetching a
+     * response and pass it to {@link #put(String, String, long, String, long)} so that a response fetched before
+     * an invalidation is not cached after it.
+     * @param group the invalidation group from {@link #toGroup(Zimory, String)}
+     * @return the number of times the group has been invalidated
+     */
+    public synchronized long getGeneration(@Nonnull String group) {
+        Long generation = generations.get(group);
+
+        return (generation == null ? 0L : generation);
+    }
+
+    /**
+     * @return the total approximate weight in bytes of all cached responses
+     */
+    public synchronized long getWeight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    private synchronized void invalidate(@Nonnull String prefix) {
+        generations.put(prefix, getGeneration(prefix) + 1L);
+        if( index.isEmpty() ) {
+            return;
+        }
+        Iterator<Entry> it = index.values().iterator();
+
+        while( it.hasNext() ) {
+            Entry entry = it.next();
+
+            if( entry.key.startsWith(prefix) ) {
+                int next = prefix.length();
+
+                if( entry.key.length() == next || entry.key.charAt(next) == '/' || entry.key.charAt(next) == '?' ) {
+                    detach(entry);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Caches a response unless its invalidation group has been invalidated since the response was requested.
+     * @param key the cache key from {@link #toKey(Zimory, String)}
+     * @param group the invalidation group from {@link #toGroup(Zimory, String)}
+     * @param generation the generation of the group read before the response was requested
+     * @param body the response body
+     * @param ttl how long in milliseconds the response may be served from the cache
+     */
+    public synchronized void put(@Nonnull String key, @Nonnull String group, long generation, @Nonnull String body, @Nonnegative long ttl) {
+        Entry entry = new Entry(key, body, System.currentTimeMillis() + ttl);
+        Entry old = index.remove(key);
+
+        if( old != null ) {
+            detach(old);
+        }
+        if( generation != getGeneration(group) ) {
+            // a mutation was published while the response was being fetched, so it may already be out of date
+            return;
+        }
+        if( ttl < 1L || entry.weight > capacity / 2L ) {
+            return;
+        }
+        index.put(key, entry);
+        add(entry, WINDOW);
+        evict();
+    }
+
+    private synchronized void setCapacity(@Nonnegative long capacity) {
+        if( this.capacity != capacity ) {
+            this.capacity = capacity;
+            evict();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link java.util.concurrent.Future} completed explicitly by whoever is doing the work rather than by running a
+ * task. Cancelling it tells the worker to stop; the worker should check {@link #isDone()} before each step.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class SettableFuture<T> extends FutureTask<T> {
+    public SettableFuture() {
+        super(new Callable<T>() {
+            public T call() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Completes the future with a value unless it is already done.
+     * @param value the value
+     */
+    public void complete(@Nullable T value) {
+        set(value);
+    }
+
+    /**
+     * Completes the future with an error unless it is already done.
+     * @param error the cause of the failure
+     */
+    public void fail(@Nonnull Throwable error) {
+        setException(error);
+    }
+
+    @Override
+    public void run() {
+        // completed only through complete() and fail()
+    }
+}
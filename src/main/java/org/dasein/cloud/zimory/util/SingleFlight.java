@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Ensures that concurrent requests for the same slow-changing value in the same account share one fetch from
+ * Zimory. A caller that arrives while a fetch is in flight, whether started by another caller or by the background
+ * warm-up of a newly connected provider, waits for that fetch instead of starting its own. A completed value may
+ * also be reused for a caller-specified period.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class SingleFlight {
+    static private class Flight<T> extends FutureTask<T> {
+        public volatile long    completed = -1L;
+        public volatile boolean failed    = false;
+
+        public Flight(@Nonnull Callable<T> fetch) {
+            super(fetch);
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get();
+            }
+            catch( Throwable t ) {
+                failed = true;
+            }
+            completed = System.currentTimeMillis();
+        }
+
+        public boolean isReusable(@Nonnegative long ttl) {
+            long c = completed;
+
+            return (c < 0L || (!failed && System.currentTimeMillis() - c < ttl));
+        }
+    }
+
+    static private final ConcurrentHashMap<String,Flight<?>> flights = new ConcurrentHashMap<String, Flight<?>>();
+
+    static private @Nonnull <T> Flight<T> join(@Nonnull String key, @Nonnegative long ttl, @Nonnull Callable<T> fetch, boolean[] started) {
+        while( true ) {
+            @SuppressWarnings("unchecked") Flight<T> flight = (Flight<T>)flights.get(key);
+
+            if( flight != null && flight.isReusable(ttl) ) {
+                return flight;
+            }
+            Flight<T> mine = new Flight<T>(fetch);
+
+            if( flight == null ? flights.putIfAbsent(key, mine) == null : flights.replace(key, flight, mine) ) {
+                started[0] = true;
+                return mine;
+            }
+        }
+    }
+
+    static private @Nonnull String toKey(@Nonnull Zimory provider, @Nonnull String name) throws CloudException {
+        return name + "@" + provider.getCacheKey(CacheLevel.CLOUD_ACCOUNT);
+    }
+
+    /**
+     * Provides the value of the named fetch for the provider's account, joining an in-flight fetch or reusing one
+     * completed within the specified period and otherwise performing the fetch in the calling thread.
+     * @param provider the provider whose context determines the account
+     * @param name the name of the value being fetched
+     * @param ttl how long in milliseconds a completed fetch may be reused (0 to join only in-flight fetches)
+     * @param fetch the fetch to perform if none may be joined
+     * @param <T> the type of value being fetched
+     * @return the fetched value
+     * @throws CloudException an error occurred fetching the value from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud fetching the value
+     */
+    static public <T> T get(@Nonnull Zimory provider, @Nonnull String name, @Nonnegative long ttl, @Nonnull Callable<T> fetch) throws CloudException, InternalException {
+        String key = toKey(provider, name);
+        boolean[] started = new boolean[1];
+        Flight<T> flight = join(key, ttl, fetch, started);
+
+        if( started[0] ) {
+            flight.run();
+        }
+        try {
+            return flight.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            flights.remove(key, flight);
+
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+}
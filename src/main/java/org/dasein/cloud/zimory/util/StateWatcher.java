@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for resources to reach a desired condition on behalf of any number of callers with a single poll loop per
+ * resource type and scope. Each caller registers a {@link Condition} and receives a {@link Future} completed with
+ * the first resource matching the condition, or with <code>null</code> if none matches before the caller's
+ * deadline. Each poll loads the listing through the loader of the longest-waiting caller, so a caller's loader and
+ * configuration are used only while that caller is waiting. The loop polls every <code>watchMinInterval</code>
+ * milliseconds (5 seconds by default) while waits are being satisfied and backs off towards
+ * <code>watchMaxInterval</code> (30 seconds by default) while nothing changes. Polls are timed on
+ * {@link PollSchedule#getScheduler()} and run on {@link PollSchedule#getIoExecutor()}, and the loop stops when
+ * no one is waiting.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class StateWatcher<T> {
+    /**
+     * Identifies the resource a caller is waiting for in a listing.
+     */
+    static public interface Condition<T> {
+        public @Nullable T match(@Nonnull Map<String,T> resources);
+    }
+
+    static private class Watch<T> extends SettableFuture<T> {
+        public final Condition<T>             condition;
+        public final long                     deadline;
+        public final InventoryCache.Loader<T> loader;
+        public final long                     maxInterval;
+        public final long                     minInterval;
+
+        public Watch(@Nonnull Condition<T> condition, @Nonnegative long deadline, @Nonnull InventoryCache.Loader<T> loader, @Nonnegative long minInterval, @Nonnegative long maxInterval) {
+            this.condition = condition;
+            this.deadline = deadline;
+            this.loader = loader;
+            this.minInterval = minInterval;
+            this.maxInterval = maxInterval;
+        }
+    }
+
+    static private final Logger logger = Zimory.getLogger(StateWatcher.class);
+
+    static private final ConcurrentHashMap<String,StateWatcher<?>> watchers = new ConcurrentHashMap<String, StateWatcher<?>>();
+
+    /**
+     * Waits for a watch to complete.
+     * @param future the future returned by {@link #watch(Zimory, Condition, long, InventoryCache.Loader)}
+     * @param <T> the type of resource being watched
+     * @return the matching resource or <code>null</code> if none matched before the deadline
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    static public @Nullable <T> T await(@Nonnull Future<T> future) throws InternalException {
+        try {
+            return future.get();
+        }
+        catch( InterruptedException e ) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            throw new InternalException(e.getCause());
+        }
+    }
+
+    /**
+     * Provides the shared watcher with the specified name for the scope of the provider's current context.
+     * @param provider the provider whose context determines the scope
+     * @param name the name of the resource type (e.g. deployments)
+     * @param level the level at which the resources are shared
+     * @param <T> the type of resource being watched
+     * @return the shared watcher
+     * @throws CloudException no context has been established for the provider
+     */
+    static public @Nonnull <T> StateWatcher<T> getInstance(@Nonnull Zimory provider, @Nonnull String name, @Nonnull CacheLevel level) throws CloudException {
+        String key = name + "@" + provider.getCacheKey(level);
+        StateWatcher<?> watcher = watchers.get(key);
+
+        if( watcher == null ) {
+            watcher = new StateWatcher<T>(name);
+
+            StateWatcher<?> existing = watchers.putIfAbsent(key, watcher);
+
+            if( existing != null ) {
+                watcher = existing;
+            }
+        }
+        @SuppressWarnings("unchecked") StateWatcher<T> typed = (StateWatcher<T>)watcher;
+
+        return typed;
+    }
+
+    private final String              name;
+    private final ArrayList<Watch<T>> waiters = new ArrayList<Watch<T>>();
+    private long                      interval;
+    private boolean                   kicked;
+    private ScheduledFuture<?>        next;
+    private boolean                   polling;
+
+    private StateWatcher(@Nonnull String name) {
+        this.name = name;
+    }
+
+    private void poll() {
+        ArrayList<Watch<T>> current;
+
+        synchronized( this ) {
+            Iterator<Watch<T>> it = waiters.iterator();
+
+            while( it.hasNext() ) {
+                if( it.next().isDone() ) {
+                    it.remove();
+                }
+            }
+            if( waiters.isEmpty() ) {
+                polling = false;
+                return;
+            }
+            current = new ArrayList<Watch<T>>(waiters);
+            kicked = false;
+            next = null;
+        }
+        long minInterval = Long.MAX_VALUE;
+        long maxInterval = Long.MAX_VALUE;
+
+        for( Watch<T> watch : current ) {
+            minInterval = Math.min(minInterval, watch.minInterval);
+            maxInterval = Math.min(maxInterval, watch.maxInterval);
+        }
+        maxInterval = Math.max(minInterval, maxInterval);
+        boolean progress = false;
+
+        try {
+            Map<String,T> resources = current.get(0).loader.load();
+            long now = System.currentTimeMillis();
+
+            for( Watch<T> watch : current ) {
+                T resource = watch.condition.match(resources);
+
+                if( resource != null ) {
+                    watch.complete(resource);
+                    progress = true;
+                }
+                else if( now >= watch.deadline ) {
+                    watch.complete(null);
+                }
+            }
+        }
+        catch( Throwable t ) {
+            logger.warn("Failed to poll " + name + " for waiting callers: " + t.getMessage());
+            long now = System.currentTimeMillis();
+
+            for( Watch<T> watch : current ) {
+                if( now >= watch.deadline ) {
+                    watch.complete(null);
+                }
+            }
+        }
+        synchronized( this ) {
+            if( kicked || progress ) {
+                interval = minInterval;
+            }
+            else {
+                interval = Math.max(minInterval, Math.min(maxInterval, interval + interval/2));
+            }
+            schedule(kicked ? 0L : interval);
+        }
+    }
+
+    private void schedule(@Nonnegative long delay) {
+        next = PollSchedule.getScheduler().schedule(new Runnable() {
+            public void run() {
+                PollSchedule.getIoExecutor().execute(new Runnable() {
+                    public void run() {
+                        poll();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a wait for a resource matching the specified condition. The listing is checked immediately and
+     * then on the shared poll schedule.
+     * @param provider the provider whose configuration determines the poll intervals while this caller waits
+     * @param condition the condition identifying the resource being waited for
+     * @param timeout how long in milliseconds to wait before completing with <code>null</code>
+     * @param loader the loader fetching the current listing of resources while this caller is the longest waiting
+     * @return a future completed with the matching resource or <code>null</code> on timeout
+     */
+    public @Nonnull Future<T> watch(@Nonnull Zimory provider, @Nonnull Condition<T> condition, @Nonnegative long timeout, @Nonnull InventoryCache.Loader<T> loader) {
+        long minInterval = Math.max(1000L, provider.getCustomLong("watchMinInterval", 5000L));
+        long maxInterval = Math.max(minInterval, provider.getCustomLong("watchMaxInterval", 30000L));
+        Watch<T> watch = new Watch<T>(condition, System.currentTimeMillis() + timeout, loader, minInterval, maxInterval);
+
+        synchronized( this ) {
+            waiters.add(watch);
+            if( !polling ) {
+                polling = true;
+                interval = minInterval;
+                schedule(0L);
+            }
+            else if( next != null && next.cancel(false) ) {
+                // the loop is waiting between polls, so check the listing for the new caller now
+                schedule(0L);
+            }
+            else {
+                // a poll is under way or about to start; poll again as soon as it finishes
+                kicked = true;
+            }
+        }
+        return watch;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls just the ID, state, and location of each resource out of a Zimory listing for the status-only calls. The
+ * listing is read with a streaming parser; only the <code>id</code> attribute and the <code>state</code>,
+ * <code>locationId</code>, and <code>providerId</code> children of each resource are read, and every other subtree
+ * is skipped without building nodes or reading its text.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class StatusExtractor {
+    /**
+     * The status fields of one resource. Any field missing from the listing is <code>null</code>.
+     */
+    static public class Entry {
+        private String id;
+        private String locationId;
+        private String providerId;
+        private String state;
+
+        public @Nullable String getId() {
+            return id;
+        }
+
+        public @Nullable String getLocationId() {
+            return locationId;
+        }
+
+        public @Nullable String getProviderId() {
+            return providerId;
+        }
+
+        /**
+         * @return the Dasein region ID (<code>locationId:providerId</code>) of the resource
+         */
+        public @Nonnull String getRegionId() {
+            return locationId + ":" + providerId;
+        }
+
+        public @Nullable String getState() {
+            return state;
+        }
+    }
+
+    /**
+     * Extracts the status fields of every resource in a listing.
+     * @param body the XML listing
+     * @param element the name of the element representing one resource
+     * @return the status fields of each resource with an ID, in listing order
+     * @throws CloudException the listing is not well-formed XML
+     */
+    static public @Nonnull List<Entry> extract(@Nonnull String body, @Nonnull String element) throws CloudException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        XMLStreamReader reader = XmlStream.open(body);
+
+        try {
+            while( reader.hasNext() ) {
+                if( reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equalsIgnoreCase(element) ) {
+                    Entry entry = readEntry(reader);
+
+                    if( entry.id != null && !entry.id.equals("") ) {
+                        entries.add(entry);
+                    }
+                }
+            }
+            return entries;
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            try { reader.close(); }
+            catch( Throwable ignore ) { }
+        }
+    }
+
+    static private @Nonnull Entry readEntry(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        Entry entry = new Entry();
+        String id = reader.getAttributeValue(null, "id");
+
+        entry.id = (id == null ? null : id.trim());
+        while( true ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                return entry;
+            }
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                String name = reader.getLocalName();
+
+                if( name.equalsIgnoreCase("state") ) {
+                    entry.state = readText(reader);
+                }
+                else if( name.equalsIgnoreCase("locationId") ) {
+                    entry.locationId = readText(reader);
+                }
+                else if( name.equalsIgnoreCase("providerId") ) {
+                    entry.providerId = readText(reader);
+                }
+                else {
+                    skip(reader);
+                }
+            }
+        }
+    }
+
+    static private @Nullable String readText(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = null;
+        int depth = 1;
+
+        while( depth > 0 ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                depth++;
+            }
+            else if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+            else if( depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) ) {
+                if( text == null ) {
+                    text = new StringBuilder();
+                }
+                text.append(reader.getText());
+            }
+        }
+        if( text == null ) {
+            return null;
+        }
+        String value = text.toString().trim();
+
+        return (value.equals("") ? null : value);
+    }
+
+    static private void skip(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+
+        while( depth > 0 ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                depth++;
+            }
+            else if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.zimory.Zimory;
+import org.dasein.cloud.zimory.ZimoryException;
+import org.dasein.cloud.zimory.compute.storage.NetworkVolume;
+import org.dasein.cloud.zimory.compute.vm.Deployments;
+import org.dasein.cloud.zimory.network.vlan.Networks;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Removes a set of deployments, volumes, and networks in dependency order. Deployments and volumes are removed in
+ * parallel first, with at most <code>bulkParallelism</code> requests in flight. Then the networks are removed in
+ * parallel: the networks requested explicitly and those the removed resources were attached to. Zimory may refuse
+ * to remove a network while a deployment on it is still shutting down, so a network removal that Zimory refuses
+ * because the network is still in use is retried on the default backoff schedule for up to 10 minutes. Any other
+ * error fails the network at once. A network still attached to a resource that could not be removed is not
+ * attempted.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class Teardown {
+    static private final Logger logger = Zimory.getLogger(Teardown.class);
+
+    /**
+     * The outcome of each removal in a teardown.
+     */
+    static public class Report {
+        private List<Outcome<Void>> deployments;
+        private List<Outcome<Void>> networks;
+        private List<Outcome<Void>> volumes;
+
+        public Report(@Nonnull List<Outcome<Void>> deployments, @Nonnull List<Outcome<Void>> volumes, @Nonnull List<Outcome<Void>> networks) {
+            this.deployments = deployments;
+            this.volumes = volumes;
+            this.networks = networks;
+        }
+
+        /**
+         * @return one outcome per requested deployment in the order requested
+         */
+        public @Nonnull List<Outcome<Void>> getDeployments() {
+            return deployments;
+        }
+
+        /**
+         * @return one outcome per network removed, requested ones first and then those discovered on removed resources
+         */
+        public @Nonnull List<Outcome<Void>> getNetworks() {
+            return networks;
+        }
+
+        /**
+         * @return one outcome per requested volume in the order requested
+         */
+        public @Nonnull List<Outcome<Void>> getVolumes() {
+            return volumes;
+        }
+
+        /**
+         * @return true if every removal succeeded
+         */
+        public boolean isComplete() {
+            return (isComplete(deployments) && isComplete(volumes) && isComplete(networks));
+        }
+
+        private boolean isComplete(@Nonnull List<Outcome<Void>> outcomes) {
+            for( Outcome<Void> outcome : outcomes ) {
+                if( !outcome.isSuccess() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes the specified resources in dependency order.
+     * @param provider the provider for the account and region holding the resources
+     * @param vmIds the IDs of the deployments to terminate
+     * @param volumeIds the IDs of the volumes to remove
+     * @param vlanIds the IDs of networks to remove in addition to those the deployments and volumes are attached to
+     * @return the outcome of each removal
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    static public @Nonnull Report run(@Nonnull final Zimory provider, @Nonnull Collection<String> vmIds, @Nonnull Collection<String> volumeIds, @Nonnull Collection<String> vlanIds) throws InternalException {
+        final Deployments deployments = provider.getComputeServices().getVirtualMachineSupport();
+        final NetworkVolume storage = provider.getComputeServices().getVolumeSupport();
+        final Networks networks = provider.getNetworkServices().getVlanSupport();
+        final Map<String,String> attachments = new ConcurrentHashMap<String, String>();
+        ArrayList<BulkRunner.Task<Void>> tasks = new ArrayList<BulkRunner.Task<Void>>();
+
+        for( final String vmId : vmIds ) {
+            tasks.add(new BulkRunner.Task<Void>() {
+                @Override
+                public @Nonnull String getId() {
+                    return vmId;
+                }
+
+                @Override
+                public @Nullable Void run() throws CloudException, InternalException {
+                    VirtualMachine vm = deployments.getVirtualMachine(vmId);
+
+                    if( vm != null ) {
+                        if( vm.getProviderVlanId() != null ) {
+                            attachments.put("deployments:" + vmId, vm.getProviderVlanId());
+                        }
+                        deployments.terminate(vmId);
+                    }
+                    return null;
+                }
+            });
+        }
+        for( final String volumeId : volumeIds ) {
+            tasks.add(new BulkRunner.Task<Void>() {
+                @Override
+                public @Nonnull String getId() {
+                    return volumeId;
+                }
+
+                @Override
+                public @Nullable Void run() throws CloudException, InternalException {
+                    Volume volume = storage.getVolume(volumeId);
+
+                    if( volume != null ) {
+                        if( volume.getProviderVlanId() != null ) {
+                            attachments.put("networkStorages:" + volumeId, volume.getProviderVlanId());
+                        }
+                        storage.remove(volumeId);
+                    }
+                    return null;
+                }
+            });
+        }
+        int parallelism = (int)Math.max(1L, provider.getCustomLong("bulkParallelism", 10L));
+        List<Outcome<Void>> removed = BulkRunner.runAll("Zimory Teardown", parallelism, tasks);
+        List<Outcome<Void>> vmOutcomes = new ArrayList<Outcome<Void>>(removed.subList(0, vmIds.size()));
+        List<Outcome<Void>> volumeOutcomes = new ArrayList<Outcome<Void>>(removed.subList(vmIds.size(), removed.size()));
+        HashMap<String,String> blockers = new HashMap<String, String>();
+        LinkedHashSet<String> targets = new LinkedHashSet<String>(vlanIds);
+
+        for( int i=0; i<removed.size(); i++ ) {
+            Outcome<Void> outcome = removed.get(i);
+            String key = (i < vmIds.size() ? "deployments:" : "networkStorages:") + outcome.getId();
+            String vlanId = attachments.get(key);
+
+            if( vlanId != null ) {
+                targets.add(vlanId);
+                if( !outcome.isSuccess() ) {
+                    blockers.put(vlanId, key);
+                }
+            }
+        }
+        ArrayList<BulkRunner.Task<Void>> vlanTasks = new ArrayList<BulkRunner.Task<Void>>();
+
+        for( final String vlanId : targets ) {
+            final String blocker = blockers.get(vlanId);
+
+            vlanTasks.add(new BulkRunner.Task<Void>() {
+                @Override
+                public @Nonnull String getId() {
+                    return vlanId;
+                }
+
+                @Override
+                public @Nullable Void run() throws CloudException, InternalException {
+                    if( blocker != null ) {
+                        throw new CloudException("Network " + vlanId + " is still referenced by " + blocker + ", which could not be removed");
+                    }
+                    if( networks.getVlan(vlanId) == null ) {
+                        return null;
+                    }
+                    final CloudException[] last = new CloudException[1];
+                    Boolean done = PollSchedule.backoff(provider).await(new PollSchedule.Probe<Boolean>() {
+                        @Override
+                        public @Nullable Boolean probe() throws CloudException, InternalException {
+                            try {
+                                networks.removeVlan(vlanId);
+                                return Boolean.TRUE;
+                            }
+                            catch( ZimoryException e ) {
+                                if( !e.isResourceInUse() ) {
+                                    throw e;
+                                }
+                                logger.debug("Network " + vlanId + " not yet removable: " + e.getMessage());
+                                last[0] = e;
+                                return null;
+                            }
+                        }
+                    }, CalendarWrapper.MINUTE * 10L);
+
+                    if( done == null ) {
+                        throw (last[0] == null ? new CloudException("Timed out removing network " + vlanId) : last[0]);
+                    }
+                    return null;
+                }
+            });
+        }
+        return new Report(vmOutcomes, volumeOutcomes, BulkRunner.runAll("Zimory Teardown", parallelism, vlanTasks));
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.zimory.Zimory;
+import org.dasein.cloud.zimory.ZimoryMethod;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the resources in a Zimory listing without building a DOM for the whole response. The response is
+ * read off the wire with a streaming parser and each matching element is turned into a small DOM fragment and
+ * mapped only when iteration reaches it, so a caller that stops after the first match never reads, parses or maps
+ * the rest.
+ * <p>
+ *     Like a directory stream, an XML stream holds an open connection and may be iterated only once. It closes itself
+ *     when iteration runs off the end of the listing or fails; a caller that stops early must call {@link #close()}.
+ *     The request is made when the stream is created, so errors in the request surface immediately as checked
+ *     exceptions. Errors reading or mapping the body surface during iteration as a {@link StreamException}, which
+ *     carries the underlying {@link CloudException} or {@link InternalException}. Elements the mapping turns into
+ *     <code>null</code> are skipped.
+ * </p>
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class XmlStream<T> implements Iterable<T>, Closeable {
+    /**
+     * Thrown from {@link Iterator#hasNext()} and {@link Iterator#next()} when the listing cannot be read or one of its
+     * elements cannot be mapped. The iterator contract leaves no room for checked exceptions, so the cause is
+     * wrapped here and may be unwrapped with {@link #rethrow()}.
+     */
+    static public class StreamException extends RuntimeException {
+        private static final long serialVersionUID = -4391730915264285763L;
+
+        public StreamException(@Nonnull CloudException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        public StreamException(@Nonnull InternalException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        /**
+         * Rethrows the checked exception that caused this failure.
+         * @throws CloudException the listing could not be read from Zimory
+         * @throws InternalException an error occurred within Dasein Cloud mapping the listing
+         */
+        public void rethrow() throws CloudException, InternalException {
+            Throwable cause = getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            throw (InternalException)cause;
+        }
+    }
+
+    static private final XMLInputFactory factory;
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * Requests a listing and prepares to stream its resources. The caller must close the stream unless it
+     * iterates to the end.
+     * @param provider the provider for the account being listed
+     * @param resource the endpoint (e.g. deployments)
+     * @param element the name of the element representing one resource in the response
+     * @param materializer the mapping of an element to its model object
+     * @param <T> the type of resource being listed
+     * @return the stream of resources
+     * @throws CloudException an error occurred requesting the listing from Zimory
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    static public @Nonnull <T> XmlStream<T> stream(@Nonnull Zimory provider, @Nonnull String resource, @Nonnull String element, @Nonnull OffHeapMap.Materializer<T> materializer) throws CloudException, InternalException {
+        InputStream input = new ZimoryMethod(provider).getStream(resource);
+
+        if( input == null ) {
+            throw new CloudException("Unable to identify endpoint for " + resource);
+        }
+        try {
+            return new XmlStream<T>(resource, input, open(input), element, materializer);
+        }
+        catch( CloudException e ) {
+            try { input.close(); }
+            catch( IOException ignore ) { }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a streaming parser over an XML document.
+     * @param body the XML document
+     * @return a parser positioned at the start of the document
+     * @throws CloudException the document could not be read
+     */
+    static public @Nonnull XMLStreamReader open(@Nonnull String body) throws CloudException {
+        try {
+            return factory.createXMLStreamReader(new StringReader(body));
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Opens a streaming parser over an XML document as it is read. Closing the parser does not close the input.
+     * @param input the XML document
+     * @return a parser positioned at the start of the document
+     * @throws CloudException the document could not be read
+     */
+    static public @Nonnull XMLStreamReader open(@Nonnull InputStream input) throws CloudException {
+        try {
+            return factory.createXMLStreamReader(input);
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    static private @Nonnull String getName(@Nonnull XMLStreamReader reader) {
+        String prefix = reader.getPrefix();
+
+        return (prefix == null || prefix.equals("") ? reader.getLocalName() : prefix + ":" + reader.getLocalName());
+    }
+
+    private final String                     element;
+    private InputStream                      input;
+    private boolean                          iterated = false;
+    private final OffHeapMap.Materializer<T> materializer;
+    private XMLStreamReader                  reader;
+    private final String                     resource;
+
+    private XmlStream(@Nonnull String resource, @Nonnull InputStream input, @Nonnull XMLStreamReader reader, @Nonnull String element, @Nonnull OffHeapMap.Materializer<T> materializer) {
+        this.resource = resource;
+        this.input = input;
+        this.reader = reader;
+        this.element = element;
+        this.materializer = materializer;
+    }
+
+    /**
+     * Releases the parser and the connection behind it. Iteration stops at whatever has already been read. Closing
+     * an already closed stream has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if( reader != null ) {
+            try { reader.close(); }
+            catch( Throwable ignore ) { }
+            reader = null;
+        }
+        if( input != null ) {
+            try { input.close(); }
+            catch( Throwable ignore ) { }
+            input = null;
+        }
+    }
+
+    /**
+     * Provides the one iterator over this stream.
+     * @return an iterator over the listing
+     * @throws IllegalStateException the stream has already been iterated or has been closed
+     */
+    @Override
+    public synchronized @Nonnull Iterator<T> iterator() {
+        if( iterated ) {
+            throw new IllegalStateException("The stream for " + resource + " has already been iterated");
+        }
+        if( reader == null ) {
+            throw new IllegalStateException("The stream for " + resource + " is closed");
+        }
+        iterated = true;
+        return new Reader();
+    }
+
+    private class Reader implements Iterator<T> {
+        private Document document;
+        private T        next;
+
+        private @Nullable T advance() throws XMLStreamException, CloudException, InternalException {
+            while( reader != null && reader.hasNext() ) {
+                if( reader.next() == XMLStreamConstants.START_ELEMENT && getName(reader).equalsIgnoreCase(element) ) {
+                    T item = materializer.materialize(toNode());
+
+                    if( item != null ) {
+                        return item;
+                    }
+                }
+            }
+            close();
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if( next == null && reader != null ) {
+                try {
+                    next = advance();
+                }
+                catch( XMLStreamException e ) {
+                    close();
+                    throw new StreamException(new CloudException(e));
+                }
+                catch( CloudException e ) {
+                    close();
+                    throw new StreamException(e);
+                }
+                catch( InternalException e ) {
+                    close();
+                    throw new StreamException(e);
+                }
+                catch( RuntimeException e ) {
+                    close();
+                    throw e;
+                }
+            }
+            return (next != null);
+        }
+
+        @Override
+        public T next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            T item = next;
+
+            next = null;
+            return item;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Copies the element at the current position, with its attributes and subtree, into a DOM fragment and
+         * leaves the parser at its end tag.
+         * @return the element as a DOM node
+         * @throws XMLStreamException the document is malformed
+         * @throws InternalException no DOM implementation is available
+         */
+        private @Nonnull Node toNode() throws XMLStreamException, InternalException {
+            if( document == null ) {
+                try {
+                    document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+                }
+                catch( ParserConfigurationException e ) {
+                    throw new InternalException(e);
+                }
+            }
+            Element root = toElement();
+            Node current = root;
+
+            while( current != null ) {
+                int event = reader.next();
+
+                if( event == XMLStreamConstants.START_ELEMENT ) {
+                    Element child = toElement();
+
+                    current.appendChild(child);
+                    current = child;
+                }
+                else if( event == XMLStreamConstants.END_ELEMENT ) {
+                    current = (current == root ? null : current.getParentNode());
+                }
+                else if( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE ) {
+                    current.appendChild(document.createTextNode(reader.getText()));
+                }
+            }
+            return root;
+        }
+
+        private @Nonnull Element toElement() {
+            Element e = document.createElement(getName(reader));
+
+            for( int i=0; i<reader.getAttributeCount(); i++ ) {
+                String prefix = reader.getAttributePrefix(i);
+                String name = reader.getAttributeLocalName(i);
+
+                e.setAttribute(prefix == null || prefix.equals("") ? name : prefix + ":" + name, reader.getAttributeValue(i));
+            }
+            return e;
+        }
+    }
+}
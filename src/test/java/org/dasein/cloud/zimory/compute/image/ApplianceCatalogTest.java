@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.compute.image;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.ImageClass;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.Platform;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Tests that searches of the {@link ApplianceCatalog} indexes return exactly what a linear scan would return.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ApplianceCatalogTest {
+    @SuppressWarnings("deprecation")
+    static private MachineImage image(String id, String owner, String name, String description, Platform platform, Architecture architecture) {
+        MachineImage img = new MachineImage();
+
+        img.setProviderMachineImageId(id);
+        img.setProviderOwnerId(owner);
+        img.setName(name);
+        img.setDescription(description);
+        img.setPlatform(platform);
+        img.setArchitecture(architecture);
+        img.setImageClass(ImageClass.MACHINE);
+        return img;
+    }
+
+    static private List<MachineImage> images() {
+        ArrayList<MachineImage> images = new ArrayList<MachineImage>();
+        MachineImage tagged = image("5", null, "Base", "Minimal image", Platform.UNIX, Architecture.I64);
+
+        tagged.setTag("tier", "Gold Support");
+        images.add(image("1", null, "Ubuntu 12.04 Server", "Ubuntu LTS web server", Platform.UBUNTU, Architecture.I64));
+        images.add(image("2", null, "CentOS 6", "CentOS minimal", Platform.CENT_OS, Architecture.I32));
+        images.add(image("3", "acct", "Windows 2008", "Windows web server", Platform.WINDOWS, Architecture.I64));
+        images.add(image("4", "acct", "ubuntu-custom", "Private Ubuntu build", Platform.UBUNTU, Architecture.I32));
+        images.add(tagged);
+        return images;
+    }
+
+    static private List<String> ids(Iterable<MachineImage> images) {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for( MachineImage img : images ) {
+            ids.add(img.getProviderMachineImageId());
+        }
+        return ids;
+    }
+
+    static private List<String> scan(List<MachineImage> images, ImageFilterOptions options, boolean publicOnly) {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for( MachineImage img : images ) {
+            if( publicOnly && img.getProviderOwnerId() != null ) {
+                continue;
+            }
+            if( options.matches(img) ) {
+                ids.add(img.getProviderMachineImageId());
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void searchMatchesLinearScan() {
+        List<MachineImage> images = images();
+        ApplianceCatalog catalog = new ApplianceCatalog(images, System.currentTimeMillis());
+        List<ImageFilterOptions> filters = Arrays.asList(
+                ImageFilterOptions.getInstance(),
+                ImageFilterOptions.getInstance("(?i).*ubuntu.*"),
+                ImageFilterOptions.getInstance("(?i).*web server.*"),
+                ImageFilterOptions.getInstance(".*Server.*"),
+                ImageFilterOptions.getInstance("(?i).*gold.*"),
+                ImageFilterOptions.getInstance("(?i).*gold support.*"),
+                ImageFilterOptions.getInstance("Windows.*"),
+                ImageFilterOptions.getInstance("(?i).*ubuntu.*").withArchitecture(Architecture.I32),
+                ImageFilterOptions.getInstance().onPlatform(Platform.UBUNTU),
+                ImageFilterOptions.getInstance().withAccountNumber("acct"),
+                ImageFilterOptions.getInstance("(?i).*nothing.*"),
+                ImageFilterOptions.getInstance("(?i).*gold.*").onPlatform(Platform.WINDOWS).matchingAny());
+
+        for( ImageFilterOptions options : filters ) {
+            for( boolean publicOnly : new boolean[] { false, true } ) {
+                assertEquals(options + " public=" + publicOnly, scan(images, options, publicOnly), ids(catalog.search(options, publicOnly)));
+            }
+        }
+    }
+
+    @Test
+    public void tagValuesAreSearchable() {
+        ApplianceCatalog catalog = new ApplianceCatalog(images(), System.currentTimeMillis());
+
+        assertEquals(Arrays.asList("5"), ids(catalog.search(ImageFilterOptions.getInstance("(?i).*gold.*"), true)));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void callersReceiveCopies() {
+        ApplianceCatalog catalog = new ApplianceCatalog(images(), System.currentTimeMillis());
+        MachineImage img = catalog.getImage("1");
+
+        img.setName("changed");
+        img.setTag("tier", "changed");
+        assertEquals("Ubuntu 12.04 Server", catalog.getImage("1").getName());
+        assertEquals(0, catalog.getImage("1").getTags().size());
+        assertNotSame(catalog.getImage("1"), catalog.getImage("1"));
+        for( MachineImage found : catalog.listImages() ) {
+            found.setDescription("changed");
+        }
+        assertEquals(Arrays.asList("1", "3"), ids(catalog.search(ImageFilterOptions.getInstance("(?i).*web server.*"), false)));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void copiesCarryEveryField() {
+        MachineImage original = image("9", "acct", "Name", "Description", Platform.UBUNTU, Architecture.I32);
+
+        original.setTag("role", "db");
+        original.setKernelImageId("kernel");
+        original.setCreationTimestamp(1234L);
+        MachineImage copy = new ApplianceCatalog(Arrays.asList(original), 0L).getImage("9");
+
+        assertNotSame(original, copy);
+        assertEquals("acct", copy.getProviderOwnerId());
+        assertEquals("Name", copy.getName());
+        assertEquals("Description", copy.getDescription());
+        assertEquals(Platform.UBUNTU, copy.getPlatform());
+        assertEquals(Architecture.I32, copy.getArchitecture());
+        assertEquals(ImageClass.MACHINE, copy.getImageClass());
+        assertEquals("db", copy.getTag("role"));
+        assertEquals("kernel", copy.getKernelImageId());
+        assertEquals(1234L, copy.getCreationTimestamp());
+    }
+}
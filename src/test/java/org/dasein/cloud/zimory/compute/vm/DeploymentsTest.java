@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.compute.vm;
+
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.zimory.Zimory;
+import org.dasein.cloud.zimory.util.ResponseCache;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that {@link Deployments#listVirtualMachineStatus()} reports the same status whether or not deployment
+ * snapshots are cached. The listing is seeded into the {@link ResponseCache} so that no request reaches Zimory.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class DeploymentsTest {
+    static private final AtomicInteger clouds = new AtomicInteger();
+
+    static private final String LISTING = "<deployments>" +
+            "<deployment id='1'><state>RUNNING</state><locationId>7</locationId><providerId>3</providerId></deployment>" +
+            "<deployment id='2'><active>false</active><locationId>7</locationId><providerId>3</providerId></deployment>" +
+            "<deployment id='3'><active>true</active><locationId>7</locationId><providerId>3</providerId></deployment>" +
+            "<deployment id='4'><state>STOPPED</state><locationId>8</locationId><providerId>3</providerId></deployment>" +
+            "</deployments>";
+
+    private Zimory provider;
+
+    @After
+    public void tearDown() {
+        if( provider != null ) {
+            provider.close();
+        }
+    }
+
+    private @Nonnull List<String> listStatus(boolean cached) throws Exception {
+        ProviderContext ctx = new ProviderContext("account", "7:3");
+        Properties custom = new Properties();
+
+        custom.setProperty("responseCacheTTL", "600000");
+        if( cached ) {
+            custom.setProperty("deploymentCacheTTL", "600000");
+        }
+        ctx.setEndpoint("https://deployments-" + clouds.incrementAndGet() + ".test");
+        ctx.setCustomProperties(custom);
+        provider = new Zimory();
+        provider.connect(ctx);
+
+        ResponseCache cache = ResponseCache.getInstance(provider);
+        String group = ResponseCache.toGroup(provider, "deployments");
+
+        cache.put(ResponseCache.toKey(provider, "deployments"), group, cache.getGeneration(group), LISTING, 600000L);
+
+        ArrayList<String> status = new ArrayList<String>();
+
+        for( ResourceStatus s : new Deployments(provider).listVirtualMachineStatus() ) {
+            status.add(s.getProviderResourceId() + "=" + s.getResourceStatus());
+        }
+        provider.close();
+        provider = null;
+        return status;
+    }
+
+    @Test
+    public void cachedStatusMatchesUncachedStatus() throws Exception {
+        List<String> expected = new ArrayList<String>();
+
+        expected.add("1=RUNNING");
+        expected.add("2=PENDING");
+        expected.add("3=PENDING");
+        assertEquals(expected, listStatus(false));
+        assertEquals(expected, listStatus(true));
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.network.VLAN;
+import org.dasein.cloud.zimory.Zimory;
+import org.dasein.cloud.zimory.compute.ZimoryCompute;
+import org.dasein.cloud.zimory.compute.storage.NetworkVolume;
+import org.dasein.cloud.zimory.compute.vm.Deployments;
+import org.dasein.cloud.zimory.network.ZimoryNetwork;
+import org.dasein.cloud.zimory.network.vlan.Networks;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the cursors and resyncs of the {@link ChangeFeed} against a provider whose listings are held in memory.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ChangeFeedTest {
+    static private final AtomicInteger clouds = new AtomicInteger();
+
+    /**
+     * A provider listing the virtual machines held by the test and no volumes or networks.
+     */
+    static private class StubZimory extends Zimory {
+        public final LinkedHashMap<String,VmState> vms   = new LinkedHashMap<String, VmState>();
+        public final AtomicInteger                 polls = new AtomicInteger();
+
+        @Override
+        public @Nonnull ZimoryCompute getComputeServices() {
+            final StubZimory provider = this;
+
+            return new ZimoryCompute(this) {
+                @Override
+                @SuppressWarnings("unchecked") // AbstractVMSupport declares raw iterables
+                public @Nonnull Deployments getVirtualMachineSupport() {
+                    return new Deployments(provider) {
+                        @Override
+                        public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+                            ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
+
+                            polls.incrementAndGet();
+                            synchronized( vms ) {
+                                for( Map.Entry<String,VmState> entry : vms.entrySet() ) {
+                                    VirtualMachine vm = new VirtualMachine();
+
+                                    vm.setProviderVirtualMachineId(entry.getKey());
+                                    vm.setCurrentState(entry.getValue());
+                                    list.add(vm);
+                                }
+                            }
+                            return list;
+                        }
+                    };
+                }
+
+                @Override
+                public @Nonnull NetworkVolume getVolumeSupport() {
+                    return new NetworkVolume(provider) {
+                        @Override
+                        public @Nonnull Iterable<Volume> listVolumes() {
+                            return Collections.emptyList();
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public @Nonnull ZimoryNetwork getNetworkServices() {
+            final StubZimory provider = this;
+
+            return new ZimoryNetwork(this) {
+                @Override
+                public @Nonnull Networks getVlanSupport() {
+                    return new Networks(provider) {
+                        @Override
+                        public @Nonnull Iterable<VLAN> listVlans() {
+                            return Collections.emptyList();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    private StubZimory provider;
+
+    @Before
+    public void setUp() {
+        connect("0", "10");
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    private void connect(@Nonnull String interval, @Nonnull String size) {
+        ProviderContext ctx = new ProviderContext("account", "test");
+        Properties custom = new Properties();
+
+        custom.setProperty("changeFeedInterval", interval);
+        custom.setProperty("changeFeedSize", size);
+        ctx.setEndpoint("https://change-feed-" + clouds.incrementAndGet() + ".test");
+        ctx.setCustomProperties(custom);
+        if( provider != null ) {
+            provider.close();
+        }
+        provider = new StubZimory();
+        provider.connect(ctx);
+        provider.vms.put("vm-1", VmState.RUNNING);
+        provider.vms.put("vm-2", VmState.STOPPED);
+    }
+
+    private @Nonnull Map<String,ChangeFeed.Change> index(@Nonnull ChangeFeed.Changes changes) {
+        HashMap<String,ChangeFeed.Change> index = new HashMap<String, ChangeFeed.Change>();
+
+        for( ChangeFeed.Change change : changes.getChanges() ) {
+            assertEquals("deployments", change.getResourceType());
+            index.put(change.getId(), change);
+        }
+        return index;
+    }
+
+    @Test
+    public void nullCursorResyncsWithCurrentState() throws Exception {
+        ChangeFeed.Changes changes = provider.changesSince(null);
+        Map<String,ChangeFeed.Change> index = index(changes);
+
+        assertTrue(changes.isResync());
+        assertEquals(2, index.size());
+        assertEquals(ChangeFeed.ChangeType.ADDED, index.get("vm-1").getChangeType());
+        assertEquals("RUNNING", index.get("vm-1").getState());
+        assertEquals("STOPPED", index.get("vm-2").getState());
+    }
+
+    @Test
+    public void cursorReturnsOnlyLaterChanges() throws Exception {
+        String cursor = provider.changesSince(null).getCursor();
+
+        provider.vms.put("vm-1", VmState.STOPPED);
+        provider.vms.remove("vm-2");
+        provider.vms.put("vm-3", VmState.PENDING);
+
+        ChangeFeed.Changes changes = provider.changesSince(cursor);
+        Map<String,ChangeFeed.Change> index = index(changes);
+
+        assertFalse(changes.isResync());
+        assertEquals(3, changes.getChanges().size());
+        assertEquals(ChangeFeed.ChangeType.CHANGED, index.get("vm-1").getChangeType());
+        assertEquals("STOPPED", index.get("vm-1").getState());
+        assertEquals(ChangeFeed.ChangeType.REMOVED, index.get("vm-2").getChangeType());
+        assertNull(index.get("vm-2").getResource());
+        assertEquals(ChangeFeed.ChangeType.ADDED, index.get("vm-3").getChangeType());
+
+        changes = provider.changesSince(changes.getCursor());
+        assertFalse(changes.isResync());
+        assertTrue(changes.getChanges().isEmpty());
+    }
+
+    @Test
+    public void unchangedStateProducesNoChanges() throws Exception {
+        String cursor = provider.changesSince(null).getCursor();
+        ChangeFeed.Changes changes = provider.changesSince(cursor);
+
+        assertFalse(changes.isResync());
+        assertTrue(changes.getChanges().isEmpty());
+        assertEquals(cursor, changes.getCursor());
+    }
+
+    @Test
+    public void cursorOlderThanJournalResyncs() throws Exception {
+        connect("0", "2");
+
+        String cursor = provider.changesSince(null).getCursor();
+
+        provider.vms.put("vm-3", VmState.PENDING);
+        provider.vms.put("vm-4", VmState.PENDING);
+        provider.vms.put("vm-5", VmState.PENDING);
+
+        ChangeFeed.Changes changes = provider.changesSince(cursor);
+
+        assertTrue("A cursor older than the journal did not resync", changes.isResync());
+        assertEquals(5, changes.getChanges().size());
+
+        provider.vms.remove("vm-5");
+        changes = provider.changesSince(changes.getCursor());
+        assertFalse(changes.isResync());
+        assertEquals(1, changes.getChanges().size());
+        assertEquals(ChangeFeed.ChangeType.REMOVED, changes.getChanges().get(0).getChangeType());
+    }
+
+    @Test
+    public void foreignCursorResyncs() throws Exception {
+        String cursor = provider.changesSince(null).getCursor();
+        String epoch = cursor.substring(0, cursor.indexOf(':'));
+
+        assertTrue(provider.changesSince("not-a-cursor").isResync());
+        assertTrue(provider.changesSince("other:0").isResync());
+        assertTrue(provider.changesSince(epoch + ":999").isResync());
+        assertTrue(provider.changesSince(epoch + ":junk").isResync());
+    }
+
+    @Test
+    public void consumersSharePollsUntilInvalidated() throws Exception {
+        connect("600000", "10");
+
+        String cursor = provider.changesSince(null).getCursor();
+        int polls = provider.polls.get();
+
+        provider.vms.put("vm-3", VmState.PENDING);
+        assertTrue(provider.changesSince(cursor).getChanges().isEmpty());
+        assertEquals("A fresh poll was repeated", polls, provider.polls.get());
+
+        InvalidationBus.getInstance(provider).publish("deployments", "vm-3", InvalidationBus.Change.CREATED);
+
+        ChangeFeed.Changes changes = provider.changesSince(cursor);
+
+        assertEquals(1, changes.getChanges().size());
+        assertEquals("vm-3", changes.getChanges().get(0).getId());
+        assertEquals(polls + 1, provider.polls.get());
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the diffing and retention of {@link IncrementalMapper}.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class IncrementalMapperTest {
+    static private final AtomicInteger accounts = new AtomicInteger();
+
+    static private class CountingMapper implements IncrementalMapper.Mapper<String[]> {
+        public int mapped = 0;
+
+        @Override
+        public @Nullable String getId(@Nonnull Node node) {
+            Node id = node.getAttributes().getNamedItem("id");
+
+            return (id == null ? null : id.getNodeValue());
+        }
+
+        @Override
+        public @Nullable String[] map(@Nonnull Node node) throws CloudException, InternalException {
+            mapped++;
+            return new String[] { getId(node), node.getTextContent() };
+        }
+    }
+
+    static private NodeList parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml))).getElementsByTagName("deployment");
+    }
+
+    static private List<String> list(Collection<String> ids) {
+        return new ArrayList<String>(ids);
+    }
+
+    private Zimory provider;
+
+    @Before
+    public void setUp() {
+        provider = new Zimory();
+        provider.connect(new ProviderContext("incremental-" + accounts.incrementAndGet(), "test"));
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    private IncrementalMapper<String[]> getMapper() throws CloudException {
+        return IncrementalMapper.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+    }
+
+    @Test
+    public void firstListingAddsEverything() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        IncrementalMapper.Mapping<String[]> mapping = getMapper().map(parse("<d><deployment id='1'>a</deployment><deployment id='2'>b</deployment><deployment>x</deployment></d>"), mapper, 60000L);
+
+        assertEquals(Arrays.asList("1", "2"), list(mapping.getDiff().getAdded()));
+        assertEquals(Collections.<String>emptyList(), list(mapping.getDiff().getChanged()));
+        assertEquals(Collections.<String>emptyList(), list(mapping.getDiff().getRemoved()));
+        assertEquals(Arrays.asList("1", "2"), Arrays.asList(mapping.getResources().keySet().toArray()));
+        assertEquals(2, mapper.mapped);
+    }
+
+    @Test
+    public void onlyChangedElementsAreRemapped() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        IncrementalMapper.Mapping<String[]> first = getMapper().map(parse("<d><deployment id='1'>a</deployment><deployment id='2'>b</deployment><deployment id='3'>c</deployment></d>"), mapper, 60000L);
+        IncrementalMapper.Mapping<String[]> second = getMapper().map(parse("<d><deployment id='1'>a</deployment><deployment id='2' state='x'>b</deployment><deployment id='4'>d</deployment></d>"), mapper, 60000L);
+
+        assertEquals(Arrays.asList("4"), list(second.getDiff().getAdded()));
+        assertEquals(Arrays.asList("2"), list(second.getDiff().getChanged()));
+        assertEquals(Arrays.asList("3"), list(second.getDiff().getRemoved()));
+        assertSame(first.getResources().get("1"), second.getResources().get("1"));
+        assertNotSame(first.getResources().get("2"), second.getResources().get("2"));
+        assertEquals(5, mapper.mapped);
+    }
+
+    @Test
+    public void unchangedListingHasEmptyDiff() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        String xml = "<d><deployment id='1'><name>a</name></deployment></d>";
+
+        getMapper().map(parse(xml), mapper, 60000L);
+        assertEquals(true, getMapper().map(parse(xml), mapper, 60000L).getDiff().isEmpty());
+        assertEquals(1, mapper.mapped);
+    }
+
+    @Test
+    public void expiredListingIsNotRetained() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        String xml = "<d><deployment id='1'>a</deployment></d>";
+
+        getMapper().map(parse(xml), mapper, 1L);
+        Thread.sleep(20L);
+        IncrementalMapper.Mapping<String[]> mapping = getMapper().map(parse(xml), mapper, 1L);
+
+        assertEquals(Arrays.asList("1"), list(mapping.getDiff().getAdded()));
+        assertEquals(2, mapper.mapped);
+    }
+}
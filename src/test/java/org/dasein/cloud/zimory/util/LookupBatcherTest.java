@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the batching of concurrent lookups by {@link LookupBatcher}.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class LookupBatcherTest {
+    static private final AtomicInteger accounts = new AtomicInteger();
+
+    /**
+     * A source answering every ID with its upper-case form and counting the fetches made of it.
+     */
+    static private class CountingSource implements LookupBatcher.Source<String> {
+        public final AtomicInteger fetches   = new AtomicInteger();
+        public final AtomicInteger fetchAlls = new AtomicInteger();
+
+        @Override
+        public @Nullable String fetch(@Nonnull String id) throws CloudException, InternalException {
+            fetches.incrementAndGet();
+            return (id.startsWith("missing") ? null : id.toUpperCase());
+        }
+
+        @Override
+        public @Nonnull Map<String,String> fetchAll() throws CloudException, InternalException {
+            HashMap<String,String> all = new HashMap<String, String>();
+
+            fetchAlls.incrementAndGet();
+            for( String id : new String[] { "a", "b", "c" } ) {
+                all.put(id, id.toUpperCase());
+            }
+            return all;
+        }
+    }
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private Zimory                provider;
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        if( provider != null ) {
+            provider.close();
+        }
+    }
+
+    private @Nonnull LookupBatcher<String> connect(@Nonnull Properties custom) throws CloudException {
+        ProviderContext ctx = new ProviderContext("account-" + accounts.incrementAndGet(), "test");
+
+        ctx.setEndpoint("https://lookup-batcher.test");
+        ctx.setCustomProperties(custom);
+        provider = new Zimory();
+        provider.connect(ctx);
+        return LookupBatcher.getInstance(provider, "deployments", CacheLevel.REGION_ACCOUNT);
+    }
+
+    private @Nonnull Future<String> lookup(@Nonnull final LookupBatcher<String> batcher, @Nonnull final String id, @Nonnull final LookupBatcher.Source<String> source) {
+        return callers.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return batcher.get(provider, id, source);
+            }
+        });
+    }
+
+    private @Nonnull Properties window(long window) {
+        Properties custom = new Properties();
+
+        custom.setProperty("lookupBatchWindow", String.valueOf(window));
+        return custom;
+    }
+
+    @Test
+    public void lookupsGoStraightToSourceWithoutWindow() throws Exception {
+        LookupBatcher<String> batcher = connect(new Properties());
+        CountingSource source = new CountingSource();
+
+        assertEquals("A", batcher.get(provider, "a", source));
+        assertEquals("A", batcher.get(provider, "a", source));
+        assertEquals(2, source.fetches.get());
+    }
+
+    @Test
+    public void lookupsOfSameIdInBatchShareOneFetch() throws Exception {
+        LookupBatcher<String> batcher = connect(window(200L));
+        CountingSource source = new CountingSource();
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+
+        for( int i=0; i<5; i++ ) {
+            results.add(lookup(batcher, "a", source));
+        }
+        Future<String> missing = lookup(batcher, "missing", source);
+
+        for( Future<String> result : results ) {
+            assertEquals("A", result.get(5, TimeUnit.SECONDS));
+        }
+        assertNull(missing.get(5, TimeUnit.SECONDS));
+        assertEquals("Lookups of the same ID were not shared", 2, source.fetches.get());
+        assertEquals(0, source.fetchAlls.get());
+    }
+
+    @Test
+    public void largeBatchIsAnsweredFromListing() throws Exception {
+        Properties custom = window(200L);
+
+        custom.setProperty("lookupBatchListThreshold", "3");
+
+        LookupBatcher<String> batcher = connect(custom);
+        CountingSource source = new CountingSource();
+        Future<String> a = lookup(batcher, "a", source);
+        Future<String> b = lookup(batcher, "b", source);
+        Future<String> c = lookup(batcher, "c", source);
+        Future<String> missing = lookup(batcher, "missing", source);
+
+        assertEquals("A", a.get(5, TimeUnit.SECONDS));
+        assertEquals("B", b.get(5, TimeUnit.SECONDS));
+        assertEquals("C", c.get(5, TimeUnit.SECONDS));
+        assertNull(missing.get(5, TimeUnit.SECONDS));
+        assertEquals(1, source.fetchAlls.get());
+        assertEquals(0, source.fetches.get());
+    }
+
+    @Test
+    public void failureReachesEveryCallerInBatch() throws Exception {
+        LookupBatcher<String> batcher = connect(window(200L));
+        final AtomicInteger attempts = new AtomicInteger();
+        LookupBatcher.Source<String> source = new CountingSource() {
+            @Override
+            public @Nullable String fetch(@Nonnull String id) throws CloudException {
+                attempts.incrementAndGet();
+                throw new CloudException("Zimory is down");
+            }
+        };
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+
+        for( int i=0; i<3; i++ ) {
+            results.add(lookup(batcher, "a", source));
+        }
+        for( Future<String> result : results ) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("The failure of the batch was swallowed");
+            }
+            catch( ExecutionException e ) {
+                assertTrue("Unexpected failure: " + e.getCause(), e.getCause() instanceof CloudException);
+                assertEquals("Zimory is down", e.getCause().getMessage());
+            }
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void stuckBatchFallsBackToDirectFetch() throws Exception {
+        Properties custom = window(50L);
+
+        custom.setProperty("lookupBatchTimeout", "200");
+
+        LookupBatcher<String> batcher = connect(custom);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        LookupBatcher.Source<String> source = new CountingSource() {
+            @Override
+            public @Nullable String fetch(@Nonnull String id) throws CloudException, InternalException {
+                if( attempts.incrementAndGet() == 1 ) {
+                    try {
+                        release.await();
+                    }
+                    catch( InterruptedException e ) {
+                        throw new InternalException(e);
+                    }
+                    return "STALE";
+                }
+                return id.toUpperCase();
+            }
+        };
+
+        try {
+            long start = System.currentTimeMillis();
+
+            assertEquals("A", batcher.get(provider, "a", source));
+            assertTrue("The caller did not wait out the timeout", System.currentTimeMillis() - start >= 250L);
+            assertEquals(2, attempts.get());
+        }
+        finally {
+            release.countDown();
+        }
+    }
+}
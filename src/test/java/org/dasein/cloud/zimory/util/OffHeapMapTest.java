@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the lazy mapping, partitioning, patching, and failure handling of {@link OffHeapMap}.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class OffHeapMapTest {
+    private final AtomicInteger materialized = new AtomicInteger();
+
+    private final OffHeapMap.Materializer<String> names = new OffHeapMap.Materializer<String>() {
+        @Override
+        public @Nullable String materialize(@Nonnull Node node) throws CloudException, InternalException {
+            String name = ((Element)node).getAttribute("name");
+
+            materialized.incrementAndGet();
+            if( name.equals("broken") ) {
+                throw new CloudException("Unable to load related data");
+            }
+            return name;
+        }
+    };
+
+    private OffHeapMap<String> map;
+
+    @Before
+    public void setUp() throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        OffHeapMap.Builder<String> builder = new OffHeapMap.Builder<String>();
+        String[][] resources = { { "1", "east", "one" }, { "2", "west", "broken" }, { "3", "east", "three" } };
+
+        for( String[] resource : resources ) {
+            Element e = doc.createElement("deployment");
+
+            e.setAttribute("name", resource[2]);
+            builder.add(resource[0], resource[1], e);
+        }
+        map = builder.build(names, 10);
+    }
+
+    @Test
+    public void resourcesAreMappedOnceWhenRead() {
+        assertEquals(0, materialized.get());
+        assertEquals("one", map.get("1"));
+        assertEquals("one", map.get("1"));
+        assertEquals(1, materialized.get());
+        assertNull(map.get("4"));
+    }
+
+    @Test
+    public void failedResourceIsDroppedConsistently() {
+        assertEquals(3, map.size());
+        assertNull(map.get("2"));
+        assertEquals(2, map.size());
+        assertFalse(map.containsKey("2"));
+        assertEquals(Arrays.asList("1", "3"), new ArrayList<String>(map.keySet()));
+        assertEquals(Arrays.asList("one", "three"), new ArrayList<String>(map.values()));
+
+        OffHeapMap<String> copy = map.with("5", "five");
+
+        assertEquals(3, copy.size());
+        assertFalse(copy.containsKey("2"));
+    }
+
+    @Test
+    public void iterationAgreesWithSizeWhenResourceFails() {
+        ArrayList<String> values = new ArrayList<String>(map.values());
+
+        assertEquals(Arrays.asList("one", "three"), values);
+        assertEquals(values.size(), map.size());
+        assertEquals(values.size(), map.keySet().size());
+    }
+
+    @Test
+    public void partitionIsFilteredWithoutMapping() {
+        OffHeapMap<String> east = map.inPartition("east", new InventorySnapshot.RegionMapper<String>() {
+            @Override
+            public @Nullable String getRegionId(@Nonnull String resource) {
+                return (resource.equals("five") ? "east" : "west");
+            }
+        });
+
+        assertEquals(2, east.size());
+        assertEquals(0, materialized.get());
+        assertTrue(east.containsKey("1"));
+        assertFalse(east.containsKey("2"));
+    }
+
+    @Test
+    public void patchedCopiesLeaveOriginalUntouched() {
+        OffHeapMap<String> patched = map.with("1", "uno").without("3");
+
+        assertEquals("uno", patched.get("1"));
+        assertNull(patched.get("3"));
+        assertEquals("one", map.get("1"));
+        assertEquals("three", map.get("3"));
+    }
+}
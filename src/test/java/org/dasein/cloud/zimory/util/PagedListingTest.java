@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.zimory.Zimory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the paging, filtering, and capability detection of {@link PagedListing}. Responses are seeded into the
+ * {@link ResponseCache} so that no request reaches Zimory; a request for a response that was not seeded fails.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class PagedListingTest {
+    static private final AtomicInteger clouds = new AtomicInteger();
+
+    static private final LinkedHashMap<ListQuery.Field,String> FIELDS = new LinkedHashMap<ListQuery.Field, String>();
+
+    static {
+        FIELDS.put(ListQuery.Field.STATE, "state");
+        FIELDS.put(ListQuery.Field.NAME, "name");
+    }
+
+    static private final OffHeapMap.Materializer<String> NAMES = new OffHeapMap.Materializer<String>() {
+        @Override
+        public @Nullable String materialize(@Nonnull Node node) throws CloudException, InternalException {
+            NodeList children = node.getChildNodes();
+
+            for( int i=0; i<children.getLength(); i++ ) {
+                if( children.item(i).getNodeName().equals("name") ) {
+                    return children.item(i).getTextContent();
+                }
+            }
+            return null;
+        }
+    };
+
+    private Zimory provider;
+
+    @Before
+    public void setUp() {
+        ProviderContext ctx = new ProviderContext("account", "test");
+        Properties custom = new Properties();
+
+        custom.setProperty("responseCacheTTL", "600000");
+        ctx.setEndpoint("https://paged-listing-" + clouds.incrementAndGet() + ".test");
+        ctx.setCustomProperties(custom);
+        provider = new Zimory();
+        provider.connect(ctx);
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    private @Nonnull String deployments(@Nonnull String ... states) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<deployments>");
+        for( int i=0; i<states.length; i++ ) {
+            xml.append("<deployment><name>vm").append(i).append("</name><state>").append(states[i]).append("</state></deployment>");
+        }
+        xml.append("</deployments>");
+        return xml.toString();
+    }
+
+    private @Nonnull String page(int first, int count) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<deployments>");
+        for( int i=first; i<first + count; i++ ) {
+            xml.append("<deployment><name>vm").append(i).append("</name><state>running</state></deployment>");
+        }
+        xml.append("</deployments>");
+        return xml.toString();
+    }
+
+    private @Nonnull List<String> list(@Nonnull ListQuery query) throws CloudException, InternalException {
+        ArrayList<String> names = new ArrayList<String>();
+
+        for( String name : PagedListing.list(provider, "deployments", "deployment", FIELDS, query, NAMES) ) {
+            names.add(name);
+        }
+        return names;
+    }
+
+    private void seed(@Nonnull ListQuery query, boolean filtered, int offset, int limit, @Nonnull String body) throws CloudException {
+        ListQuery.Field[] sent = (filtered ? FIELDS.keySet().toArray(new ListQuery.Field[FIELDS.size()]) : new ListQuery.Field[0]);
+        String resource = "deployments" + query.toQueryString(sent, offset, limit);
+        ResponseCache cache = ResponseCache.getInstance(provider);
+
+        cache.put(ResponseCache.toKey(provider, resource), ResponseCache.toGroup(provider, resource), cache.getGeneration(ResponseCache.toGroup(provider, resource)), body, 600000L);
+    }
+
+    @Test
+    public void pagesAreFetchedAsIterationReachesThem() throws Exception {
+        ListQuery query = ListQuery.getInstance().withPageSize(2);
+
+        seed(query, false, 0, 2, page(0, 2));
+
+        PagedListing<String> listing = PagedListing.list(provider, "deployments", "deployment", FIELDS, query, NAMES);
+        Iterator<String> it = listing.iterator();
+
+        // only the first page exists, so reading further than it would fail
+        assertEquals("vm0", it.next());
+        assertEquals("vm1", it.next());
+
+        seed(query, false, 2, 2, page(2, 2));
+        seed(query, false, 4, 2, page(4, 1));
+        assertEquals("vm2", it.next());
+        assertEquals("vm3", it.next());
+        assertEquals("vm4", it.next());
+        assertEquals(false, it.hasNext());
+        assertEquals(Boolean.TRUE, listing.getCapabilities().isPagingSupported());
+    }
+
+    @Test
+    public void oversizedPageMarksPagingUnsupported() throws Exception {
+        ListQuery query = ListQuery.getInstance().withPageSize(2);
+
+        seed(query, false, 0, 2, page(0, 5));
+        assertEquals(5, list(query).size());
+        assertEquals(Boolean.FALSE, PagedListing.getCapabilities(provider, "deployments").isPagingSupported());
+
+        // paging is no longer requested once it is known to be ignored
+        seed(query, false, -1, 2, page(0, 3));
+        assertEquals(3, list(query).size());
+    }
+
+    @Test
+    public void repeatedPageMarksPagingUnsupported() throws Exception {
+        ListQuery query = ListQuery.getInstance().withPageSize(2);
+
+        seed(query, false, 0, 2, page(0, 2));
+        seed(query, false, 2, 2, page(0, 2));
+
+        List<String> names = list(query);
+
+        assertEquals(2, names.size());
+        assertEquals("vm0", names.get(0));
+        assertEquals("vm1", names.get(1));
+        assertEquals(Boolean.FALSE, PagedListing.getCapabilities(provider, "deployments").isPagingSupported());
+    }
+
+    @Test
+    public void honoredFilterMarksFilteringSupported() throws Exception {
+        ListQuery query = ListQuery.getInstance().withState("running").withPageSize(10);
+
+        seed(query, true, 0, 10, deployments("running", "running"));
+        assertEquals(2, list(query).size());
+
+        PagedListing.Capabilities capabilities = PagedListing.getCapabilities(provider, "deployments");
+
+        assertEquals(Boolean.TRUE, capabilities.isFilteringSupported());
+        assertNull(capabilities.isPagingSupported());
+    }
+
+    @Test
+    public void ignoredFilterIsAppliedOnClient() throws Exception {
+        ListQuery query = ListQuery.getInstance().withState("running").withPageSize(10);
+
+        seed(query, true, 0, 10, deployments("running", "stopped", "running"));
+
+        List<String> names = list(query);
+
+        assertEquals(2, names.size());
+        assertEquals("vm0", names.get(0));
+        assertEquals("vm2", names.get(1));
+        assertEquals(Boolean.FALSE, PagedListing.getCapabilities(provider, "deployments").isFilteringSupported());
+
+        // filters are no longer sent once they are known to be ignored
+        seed(query, false, 0, 10, deployments("stopped", "running"));
+        names = list(query);
+        assertEquals(1, names.size());
+        assertEquals("vm1", names.get(0));
+    }
+}
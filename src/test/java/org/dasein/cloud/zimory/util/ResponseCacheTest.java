@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the admission, eviction, expiration, and invalidation rules of the {@link ResponseCache}.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ResponseCacheTest {
+    static private final long CAPACITY = 2000000L;
+
+    static private final AtomicInteger accounts = new AtomicInteger();
+
+    private ResponseCache cache;
+    private String        group;
+    private Zimory        provider;
+
+    @Before
+    public void setUp() throws Exception {
+        ProviderContext ctx = new ProviderContext("account-" + accounts.incrementAndGet(), "test");
+        Properties custom = new Properties();
+
+        custom.setProperty("responseCacheSize", String.valueOf(CAPACITY));
+        ctx.setEndpoint("https://response-cache.test");
+        ctx.setCustomProperties(custom);
+        provider = new Zimory();
+        provider.connect(ctx);
+        cache = ResponseCache.getInstance(provider);
+        group = ResponseCache.toGroup(provider, "deployments");
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    private @Nonnull String body(int size) {
+        StringBuilder str = new StringBuilder();
+
+        while( str.length() < size ) {
+            str.append('x');
+        }
+        return str.toString();
+    }
+
+    /**
+     * Looks up and then caches a response the way {@link org.dasein.cloud.zimory.ZimoryMethod} does on a miss.
+     * @param resource the resource path
+     * @param body the response body
+     * @throws Exception the key could not be constructed
+     */
+    private void fetch(@Nonnull String resource, @Nonnull String body) throws Exception {
+        String key = ResponseCache.toKey(provider, resource);
+
+        if( cache.get(key) == null ) {
+            cache.put(key, group, cache.getGeneration(group), body, 60000L);
+        }
+    }
+
+    @Test
+    public void hotResponseSurvivesScan() throws Exception {
+        String hot = ResponseCache.toKey(provider, "deployments/hot");
+
+        fetch("deployments/hot", body(100));
+        for( int i=0; i<5; i++ ) {
+            assertNotNull(cache.get(hot));
+        }
+        for( int i=0; i<10000; i++ ) {
+            fetch("deployments/" + i, body(100));
+        }
+        assertNotNull("A scan of one-off lookups flushed the hot response", cache.get(hot));
+        assertTrue("The cache exceeded its capacity", cache.getWeight() <= CAPACITY);
+    }
+
+    @Test
+    public void oversizedResponseIsNotCached() throws Exception {
+        String key = ResponseCache.toKey(provider, "deployments/huge");
+
+        cache.put(key, group, cache.getGeneration(group), body((int)CAPACITY), 60000L);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void expiredResponseIsNotServed() throws Exception {
+        String key = ResponseCache.toKey(provider, "deployments/short");
+
+        cache.put(key, group, cache.getGeneration(group), "<deployment/>", 1L);
+        Thread.sleep(20L);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void invalidationRemovesOnlyItsResourceClass() throws Exception {
+        String deployment = ResponseCache.toKey(provider, "deployments/1");
+        String listing = ResponseCache.toKey(provider, "deployments?state=running");
+        String other = ResponseCache.toKey(provider, "deploymentsArchive/1");
+
+        cache.put(deployment, group, cache.getGeneration(group), "<deployment/>", 60000L);
+        cache.put(listing, group, cache.getGeneration(group), "<deployments/>", 60000L);
+        cache.put(other, ResponseCache.toGroup(provider, "deploymentsArchive"), 0L, "<archive/>", 60000L);
+        ResponseCache.invalidate(provider.getCacheKey(CacheLevel.CLOUD_ACCOUNT), "deployments");
+        assertNull(cache.get(deployment));
+        assertNull(cache.get(listing));
+        assertEquals("<archive/>", cache.get(other));
+    }
+
+    @Test
+    public void responseFetchedAcrossInvalidationIsNotCached() throws Exception {
+        String key = ResponseCache.toKey(provider, "deployments/2");
+        long generation = cache.getGeneration(group);
+
+        // a mutation is published while the GET is in flight
+        ResponseCache.invalidate(provider.getCacheKey(CacheLevel.CLOUD_ACCOUNT), "deployments");
+        cache.put(key, group, generation, "<deployment state='stale'/>", 60000L);
+        assertNull(cache.get(key));
+
+        cache.put(key, group, cache.getGeneration(group), "<deployment state='fresh'/>", 60000L);
+        assertEquals("<deployment state='fresh'/>", cache.get(key));
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.zimory.Zimory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the sharing of fetches among concurrent callers of {@link SingleFlight}.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class SingleFlightTest {
+    static private final AtomicInteger accounts = new AtomicInteger();
+
+    static private @Nonnull Zimory connect(@Nonnull String accountNumber) {
+        ProviderContext ctx = new ProviderContext(accountNumber, "test");
+        Zimory provider = new Zimory();
+
+        ctx.setEndpoint("https://single-flight.test");
+        provider.connect(ctx);
+        return provider;
+    }
+
+    static private boolean allWaiting(@Nonnull Collection<Thread> threads, int count) {
+        if( threads.size() < count ) {
+            return false;
+        }
+        for( Thread thread : threads ) {
+            if( thread.getState() != Thread.State.WAITING ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ExecutorService callers;
+    private Zimory          provider;
+
+    @Before
+    public void setUp() {
+        callers = Executors.newCachedThreadPool();
+        provider = connect("account-" + accounts.incrementAndGet());
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        provider.close();
+    }
+
+    @Test
+    public void concurrentCallersShareOneFetch() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> fetch = new Callable<String>() {
+            public String call() throws Exception {
+                fetches.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "owner";
+            }
+        };
+        final ConcurrentLinkedQueue<Thread> threads = new ConcurrentLinkedQueue<Thread>();
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+
+        for( int i=0; i<4; i++ ) {
+            results.add(callers.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    threads.add(Thread.currentThread());
+                    return SingleFlight.get(provider, "owner", 0L, fetch);
+                }
+            }));
+            if( i == 0 ) {
+                assertTrue("The first fetch never started", started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        // the fetching caller waits on the release and the others on the flight, so land it only once all are waiting
+        long deadline = System.currentTimeMillis() + 5000L;
+
+        while( !allWaiting(threads, 4) ) {
+            assertTrue("The other callers never joined the fetch", System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+        }
+        release.countDown();
+        for( Future<String> result : results ) {
+            assertEquals("owner", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals("Concurrent callers did not share the fetch", 1, fetches.get());
+    }
+
+    @Test
+    public void completedFetchIsReusedOnlyWithinTTL() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        Callable<Integer> fetch = new Callable<Integer>() {
+            public Integer call() {
+                return fetches.incrementAndGet();
+            }
+        };
+
+        assertEquals(Integer.valueOf(1), SingleFlight.get(provider, "reused", 60000L, fetch));
+        assertEquals(Integer.valueOf(1), SingleFlight.get(provider, "reused", 60000L, fetch));
+        assertEquals(Integer.valueOf(2), SingleFlight.get(provider, "reused", 0L, fetch));
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void failureIsRethrownAndNotReused() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        Callable<String> fetch = new Callable<String>() {
+            public String call() throws CloudException {
+                if( fetches.incrementAndGet() == 1 ) {
+                    throw new CloudException("Zimory is down");
+                }
+                return "recovered";
+            }
+        };
+
+        try {
+            SingleFlight.get(provider, "failing", 60000L, fetch);
+            fail("The failure of the fetch was swallowed");
+        }
+        catch( CloudException e ) {
+            assertEquals("Zimory is down", e.getMessage());
+        }
+        assertEquals("recovered", SingleFlight.get(provider, "failing", 60000L, fetch));
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void uncheckedCauseIsWrapped() throws Exception {
+        Callable<String> fetch = new Callable<String>() {
+            public String call() throws Exception {
+                throw new Exception("checked");
+            }
+        };
+
+        try {
+            SingleFlight.get(provider, "wrapped", 0L, fetch);
+            fail("The failure of the fetch was swallowed");
+        }
+        catch( InternalException e ) {
+            assertEquals("checked", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void accountsDoNotShareFetches() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        Callable<Integer> fetch = new Callable<Integer>() {
+            public Integer call() {
+                return fetches.incrementAndGet();
+            }
+        };
+        Zimory other = connect("account-" + accounts.incrementAndGet());
+
+        try {
+            assertEquals(Integer.valueOf(1), SingleFlight.get(provider, "shared", 60000L, fetch));
+            assertEquals(Integer.valueOf(2), SingleFlight.get(other, "shared", 60000L, fetch));
+        }
+        finally {
+            other.close();
+        }
+    }
+}
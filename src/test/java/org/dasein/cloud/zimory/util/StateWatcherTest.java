@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.zimory.Zimory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the shared poll loop of {@link StateWatcher}.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class StateWatcherTest {
+    static private final AtomicInteger accounts = new AtomicInteger();
+
+    static private class CountingLoader implements InventoryCache.Loader<String> {
+        public final AtomicInteger loads = new AtomicInteger();
+        public volatile String     value;
+
+        public CountingLoader(@Nullable String value) {
+            this.value = value;
+        }
+
+        @Override
+        public @Nonnull Map<String,String> load() throws CloudException, InternalException {
+            loads.incrementAndGet();
+            if( value == null ) {
+                return Collections.emptyMap();
+            }
+            return Collections.singletonMap("1", value);
+        }
+    }
+
+    static private StateWatcher.Condition<String> stateOf(final String state) {
+        return new StateWatcher.Condition<String>() {
+            @Override
+            public @Nullable String match(@Nonnull Map<String,String> resources) {
+                return (state.equals(resources.get("1")) ? state : null);
+            }
+        };
+    }
+
+    private Zimory provider;
+
+    @Before
+    public void setUp() {
+        ProviderContext ctx = new ProviderContext("watcher-" + accounts.incrementAndGet(), "test");
+        Properties custom = new Properties();
+
+        custom.setProperty("watchMinInterval", "1000");
+        custom.setProperty("watchMaxInterval", "1000");
+        ctx.setCustomProperties(custom);
+        provider = new Zimory();
+        provider.connect(ctx);
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    private StateWatcher<String> getWatcher() throws CloudException {
+        return StateWatcher.getInstance(provider, "deployments", CacheLevel.CLOUD_ACCOUNT);
+    }
+
+    @Test
+    public void waitCompletesWhenConditionMatches() throws Exception {
+        CountingLoader loader = new CountingLoader("pending");
+        Future<String> future = getWatcher().watch(provider, stateOf("running"), 60000L, loader);
+
+        Thread.sleep(200L);
+        loader.value = "running";
+        assertEquals("running", future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waitCompletesWithNullAtDeadline() throws Exception {
+        Future<String> future = getWatcher().watch(provider, stateOf("running"), 500L, new CountingLoader("pending"));
+
+        assertNull(future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void longestWaitingCallerSuppliesTheLoader() throws Exception {
+        CountingLoader first = new CountingLoader("pending");
+        CountingLoader second = new CountingLoader("stopped");
+        Future<String> running = getWatcher().watch(provider, stateOf("running"), 60000L, first);
+
+        Thread.sleep(200L);
+        Future<String> stopped = getWatcher().watch(provider, stateOf("stopped"), 60000L, second);
+
+        Thread.sleep(1500L);
+        assertFalse(stopped.isDone());
+        assertEquals(0, second.loads.get());
+        first.value = "running";
+        assertEquals("running", running.get(5, TimeUnit.SECONDS));
+        assertEquals("stopped", stopped.get(5, TimeUnit.SECONDS));
+    }
+}
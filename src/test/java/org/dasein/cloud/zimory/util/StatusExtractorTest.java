@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.zimory.util;
+
+import org.dasein.cloud.CloudException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the extraction of status fields from Zimory listings by {@link StatusExtractor}.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class StatusExtractorTest {
+    @Test
+    public void statusFieldsAreExtractedInOrder() throws Exception {
+        String body = "<deployments>" +
+                "<deployment id=' 1 '><name>web</name><state>RUNNING</state><locationId>7</locationId><providerId>3</providerId></deployment>" +
+                "<deployment id='2'><state> STOPPED </state><locationId>8</locationId><providerId>3</providerId></deployment>" +
+                "</deployments>";
+        List<StatusExtractor.Entry> entries = StatusExtractor.extract(body, "deployment");
+
+        assertEquals(2, entries.size());
+        assertEquals("1", entries.get(0).getId());
+        assertEquals("RUNNING", entries.get(0).getState());
+        assertEquals("7:3", entries.get(0).getRegionId());
+        assertEquals("2", entries.get(1).getId());
+        assertEquals("STOPPED", entries.get(1).getState());
+        assertEquals("8:3", entries.get(1).getRegionId());
+    }
+
+    @Test
+    public void nestedElementsDoNotLeakIntoStatus() throws Exception {
+        String body = "<deployments><deployment id='1'>" +
+                "<appliance id='9'><state>DEPRECATED</state><locationId>99</locationId></appliance>" +
+                "<state>RUNNING</state><locationId>7</locationId>" +
+                "<network><deployment id='inner'><state>BROKEN</state></deployment></network>" +
+                "</deployment></deployments>";
+        List<StatusExtractor.Entry> entries = StatusExtractor.extract(body, "deployment");
+
+        assertEquals(1, entries.size());
+        assertEquals("RUNNING", entries.get(0).getState());
+        assertEquals("7", entries.get(0).getLocationId());
+        assertNull(entries.get(0).getProviderId());
+    }
+
+    @Test
+    public void missingAndEmptyFieldsAreNull() throws Exception {
+        String body = "<deployments>" +
+                "<deployment id='1'><state> </state></deployment>" +
+                "<deployment><state>RUNNING</state></deployment>" +
+                "<deployment id=''/>" +
+                "</deployments>";
+        List<StatusExtractor.Entry> entries = StatusExtractor.extract(body, "deployment");
+
+        assertEquals(1, entries.size());
+        assertEquals("1", entries.get(0).getId());
+        assertNull(entries.get(0).getState());
+        assertNull(entries.get(0).getLocationId());
+    }
+
+    @Test
+    public void elementNamesMatchIgnoringCase() throws Exception {
+        String body = "<NetworkStorages><NetworkStorage id='5'><State>ACTIVE</State></NetworkStorage></NetworkStorages>";
+        List<StatusExtractor.Entry> entries = StatusExtractor.extract(body, "networkStorage");
+
+        assertEquals(1, entries.size());
+        assertEquals("ACTIVE", entries.get(0).getState());
+    }
+
+    @Test(expected=CloudException.class)
+    public void malformedListingFails() throws Exception {
+        StatusExtractor.extract("<deployments><deployment id='1'>", "deployment");
+    }
+}